@@ -0,0 +1,110 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.bserengine.utilities.BserTaskBusinessStatus;
+import edu.gatech.chai.bserengine.utilities.Gzip;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * CPU cost and bytes on the wire of gzipping referral and feedback message
+ * Bundles as the engine sends them (Gzip.compress), and of decompressing them
+ * as a receiver would. The wire counters report the uncompressed and
+ * compressed size of one body; their ratio is the saving.
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="CompressionBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class CompressionBenchmark {
+	@Param({ "REFERRAL", "FEEDBACK" })
+	public String message;
+
+	@Param({ "5", "50", "500" })
+	public int observations;
+
+	@Param({ "true", "false" })
+	public boolean pretty;
+
+	@Param({ "1", "6", "9" })
+	public int level;
+
+	private byte[] body;
+	private byte[] compressed;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Wire {
+		public long uncompressedBytes;
+		public long compressedBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			uncompressedBytes = 0;
+			compressedBytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Bundle bundle;
+		if ("REFERRAL".equals(message)) {
+			bundle = MessageBundleFixtures.referralMessage(observations);
+		} else {
+			bundle = MessageBundleFixtures.feedbackMessage(observations, UUID.randomUUID().toString(), BserTaskBusinessStatus.SERVICE_REQUEST_EVENT_COMPLETED);
+		}
+
+		IParser parser = StaticValues.myFhirContext.newJsonParser();
+		parser.setPrettyPrint(pretty);
+		body = parser.encodeResourceToString(bundle).getBytes(StandardCharsets.UTF_8);
+		compressed = Gzip.compress(body, level);
+	}
+
+	@Benchmark
+	public byte[] compress(Wire wire) {
+		byte[] result = Gzip.compress(body, level);
+		wire.uncompressedBytes = body.length;
+		wire.compressedBytes = result.length;
+		return result;
+	}
+
+	@Benchmark
+	public long decompress() throws IOException {
+		long total = 0;
+		byte[] buffer = new byte[8192];
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				total += read;
+			}
+		}
+
+		return total;
+	}
+}
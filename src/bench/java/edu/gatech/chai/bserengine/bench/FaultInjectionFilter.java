@@ -0,0 +1,63 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Applies a FaultProfile in front of a stand-in server: requests over the
+ * concurrency limit get 429 with Retry-After, the rest are delayed by the
+ * configured latency and a fraction of them fail with 503.
+ */
+public class FaultInjectionFilter implements Filter {
+	private final FaultProfile profile;
+	private final Semaphore permits;
+
+	public FaultInjectionFilter(FaultProfile profile) {
+		this.profile = profile;
+		this.permits = profile.getMaxConcurrent() > 0 ? new Semaphore(profile.getMaxConcurrent()) : null;
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		if (permits != null && !permits.tryAcquire()) {
+			httpResponse.setHeader("Retry-After", "1");
+			httpResponse.sendError(429, "Stand-in throttled the request");
+			return;
+		}
+
+		try {
+			long delay = profile.getLatencyMs();
+			if (profile.getJitterMs() > 0) {
+				delay += ThreadLocalRandom.current().nextLong(-profile.getJitterMs(), profile.getJitterMs() + 1);
+			}
+
+			if (delay > 0) {
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			if (profile.getErrorRate() > 0 && ThreadLocalRandom.current().nextDouble() < profile.getErrorRate()) {
+				httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Stand-in injected failure");
+				return;
+			}
+
+			chain.doFilter(request, response);
+		} finally {
+			if (permits != null) {
+				permits.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package edu.gatech.chai.bserengine.bench;
+
+/**
+ * Latency, error rate and throttling applied by a stand-in server. Read from
+ * system properties with a per-server prefix, e.g. -Dstore.latencyMs=200
+ * -Dstore.jitterMs=50 -Dstore.errorRate=0.01 -Dstore.maxConcurrent=20.
+ */
+public class FaultProfile {
+	public static final FaultProfile NONE = new FaultProfile(0, 0, 0.0, 0);
+
+	private final long latencyMs;
+	private final long jitterMs;
+	private final double errorRate;
+	private final int maxConcurrent;
+
+	public FaultProfile(long latencyMs, long jitterMs, double errorRate, int maxConcurrent) {
+		this.latencyMs = latencyMs;
+		this.jitterMs = jitterMs;
+		this.errorRate = errorRate;
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	public static FaultProfile fromSystemProperties(String prefix) {
+		return new FaultProfile(
+			Long.getLong(prefix + ".latencyMs", 0),
+			Long.getLong(prefix + ".jitterMs", 0),
+			Double.parseDouble(System.getProperty(prefix + ".errorRate", "0")),
+			Integer.getInteger(prefix + ".maxConcurrent", 0));
+	}
+
+	public boolean isNone() {
+		return latencyMs <= 0 && jitterMs <= 0 && errorRate <= 0 && maxConcurrent <= 0;
+	}
+
+	public long getLatencyMs() {
+		return latencyMs;
+	}
+
+	public long getJitterMs() {
+		return jitterMs;
+	}
+
+	public double getErrorRate() {
+		return errorRate;
+	}
+
+	/**
+	 * @return requests allowed in flight before answering 429, 0 for unlimited.
+	 */
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	@Override
+	public String toString() {
+		return "latency=" + latencyMs + "ms+/-" + jitterMs + "ms, errorRate=" + errorRate + ", maxConcurrent=" + (maxConcurrent <= 0 ? "unlimited" : maxConcurrent);
+	}
+}
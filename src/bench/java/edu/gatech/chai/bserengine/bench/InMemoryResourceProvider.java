@@ -0,0 +1,218 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.annotation.Create;
+import ca.uhn.fhir.rest.annotation.Delete;
+import ca.uhn.fhir.rest.annotation.IdParam;
+import ca.uhn.fhir.rest.annotation.IncludeParam;
+import ca.uhn.fhir.rest.annotation.OptionalParam;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.annotation.ResourceParam;
+import ca.uhn.fhir.rest.annotation.Search;
+import ca.uhn.fhir.rest.annotation.Update;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * Map backed resource provider for the stand-in FHIR store. It supports just
+ * enough of the REST API for the engine: create, read, update, delete and the
+ * handful of searches ServerOperations issues (_id, identifier, practitioner,
+ * message). HAPI serves includes from references that have their resource
+ * set, so search results are copied and their included references resolved
+ * against the rest of the stand-in store.
+ */
+public class InMemoryResourceProvider implements IResourceProvider {
+	private final Class<? extends IBaseResource> resourceType;
+	private final String resourceTypeName;
+	private final Map<String, IBaseResource> resources = new ConcurrentHashMap<String, IBaseResource>();
+	private final AtomicLong nextId = new AtomicLong(1);
+	private Function<IIdType, IBaseResource> resolver = id -> null;
+
+	public InMemoryResourceProvider(Class<? extends IBaseResource> resourceType) {
+		this.resourceType = resourceType;
+		this.resourceTypeName = StaticValues.myFhirContext.getResourceType(resourceType);
+	}
+
+	@Override
+	public Class<? extends IBaseResource> getResourceType() {
+		return resourceType;
+	}
+
+	/**
+	 * Stores the resource under its current id part without going through HTTP.
+	 */
+	public void seed(IBaseResource resource) {
+		String idPart = resource.getIdElement().getIdPart();
+		resource.setId(new IdType(resourceTypeName, idPart, "1"));
+		resources.put(idPart, resource);
+	}
+
+	void setResolver(Function<IIdType, IBaseResource> resolver) {
+		this.resolver = resolver;
+	}
+
+	IBaseResource get(String idPart) {
+		return resources.get(idPart);
+	}
+
+	public int size() {
+		return resources.size();
+	}
+
+	public void clear() {
+		resources.clear();
+	}
+
+	@Create
+	public MethodOutcome create(@ResourceParam IBaseResource theResource) {
+		String idPart = Long.toString(nextId.getAndIncrement());
+		IdType id = new IdType(resourceTypeName, idPart, "1");
+		theResource.setId(id);
+		resources.put(idPart, theResource);
+
+		return new MethodOutcome(id, true);
+	}
+
+	@Read
+	public IBaseResource read(@IdParam IdType theId) {
+		IBaseResource resource = resources.get(theId.getIdPart());
+		if (resource == null) {
+			throw new ResourceNotFoundException(theId);
+		}
+
+		return resource;
+	}
+
+	@Update
+	public MethodOutcome update(@IdParam IdType theId, @ResourceParam IBaseResource theResource) {
+		IBaseResource existing = resources.get(theId.getIdPart());
+		long version = 1;
+		if (existing != null && existing.getIdElement().hasVersionIdPart()) {
+			version = existing.getIdElement().getVersionIdPartAsLong() + 1;
+		}
+
+		IdType id = new IdType(resourceTypeName, theId.getIdPart(), Long.toString(version));
+		theResource.setId(id);
+		resources.put(theId.getIdPart(), theResource);
+
+		return new MethodOutcome(id, existing == null);
+	}
+
+	@Delete
+	public MethodOutcome delete(@IdParam IdType theId) {
+		if (resources.remove(theId.getIdPart()) == null) {
+			throw new ResourceNotFoundException(theId);
+		}
+
+		return new MethodOutcome();
+	}
+
+	@Search(allowUnknownParams = true)
+	public List<IBaseResource> search(
+			@OptionalParam(name = "_id") TokenParam theId,
+			@OptionalParam(name = "identifier") TokenParam theIdentifier,
+			@OptionalParam(name = "practitioner") ReferenceParam thePractitioner,
+			@OptionalParam(name = "message") ReferenceParam theMessage,
+			@IncludeParam(allow = "*") Set<Include> theIncludes) {
+		FhirTerser terser = StaticValues.myFhirContext.newTerser();
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+
+		for (IBaseResource resource : resources.values()) {
+			if (theId != null && !theId.getValue().equals(resource.getIdElement().getIdPart())) {
+				continue;
+			}
+
+			if (theIdentifier != null && !hasIdentifier(terser, resource, theIdentifier)) {
+				continue;
+			}
+
+			if (thePractitioner != null) {
+				if (!(resource instanceof PractitionerRole)
+					|| !thePractitioner.getIdPart().equals(((PractitionerRole) resource).getPractitioner().getReferenceElement().getIdPart())) {
+					continue;
+				}
+			}
+
+			if (theMessage != null) {
+				if (!(resource instanceof Bundle)) {
+					continue;
+				}
+
+				Resource header = ((Bundle) resource).getEntryFirstRep().getResource();
+				if (header == null || !theMessage.getIdPart().equals(header.getIdPart())) {
+					continue;
+				}
+			}
+
+			retVal.add(theIncludes == null || theIncludes.isEmpty() ? resource : withIncludes(terser, resource, theIncludes));
+		}
+
+		return retVal;
+	}
+
+	private IBaseResource withIncludes(FhirTerser terser, IBaseResource resource, Set<Include> theIncludes) {
+		if (!(resource instanceof Resource)) {
+			return resource;
+		}
+
+		Resource copy = ((Resource) resource).copy();
+		for (Include include : theIncludes) {
+			RuntimeSearchParam searchParam = StaticValues.myFhirContext.getResourceDefinition(resourceType).getSearchParam(include.getParamName());
+			if (searchParam == null || searchParam.getPath() == null) {
+				continue;
+			}
+
+			for (String path : searchParam.getPath().split("\\|")) {
+				path = path.trim();
+				if (path.contains("(") || !path.startsWith(resourceTypeName + ".")) {
+					continue;
+				}
+
+				for (Reference reference : terser.getValues(copy, path, Reference.class)) {
+					if (reference.getResource() == null && reference.hasReference()) {
+						reference.setResource(resolver.apply(reference.getReferenceElement()));
+					}
+				}
+			}
+		}
+
+		return copy;
+	}
+
+	private boolean hasIdentifier(FhirTerser terser, IBaseResource resource, TokenParam theIdentifier) {
+		for (Identifier identifier : terser.getValues(resource, resourceTypeName + ".identifier", Identifier.class)) {
+			if (theIdentifier.getSystem() != null && !theIdentifier.getSystem().equals(identifier.getSystem())) {
+				continue;
+			}
+
+			if (theIdentifier.getValue().equals(identifier.getValue())) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
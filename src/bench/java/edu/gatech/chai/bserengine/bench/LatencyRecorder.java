@@ -0,0 +1,85 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects per-call latencies and outcomes for one operation of the load test.
+ * Latency is measured from the scheduled start of the call, not from when a
+ * worker picked it up, so a saturated engine shows up in the percentiles
+ * instead of silently lowering the offered rate.
+ */
+public class LatencyRecorder {
+	private final String operation;
+	private final ConcurrentLinkedQueue<Long> latenciesNanos = new ConcurrentLinkedQueue<Long>();
+	private final LongAdder successes = new LongAdder();
+	private final LongAdder failures = new LongAdder();
+	private final Map<String, LongAdder> failuresByCause = new ConcurrentHashMap<String, LongAdder>();
+
+	public LatencyRecorder(String operation) {
+		this.operation = operation;
+	}
+
+	public void success(long latencyNanos) {
+		latenciesNanos.add(latencyNanos);
+		successes.increment();
+	}
+
+	/**
+	 * @param cause HTTP status or exception class, used to group failures in the report.
+	 */
+	public void failure(long latencyNanos, String cause) {
+		latenciesNanos.add(latencyNanos);
+		failures.increment();
+		failuresByCause.computeIfAbsent(cause, k -> new LongAdder()).increment();
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public long getCount() {
+		return successes.sum() + failures.sum();
+	}
+
+	public long getFailures() {
+		return failures.sum();
+	}
+
+	public String report(long elapsedNanos) {
+		List<Long> sorted = new ArrayList<Long>(latenciesNanos);
+		Collections.sort(sorted);
+
+		long count = getCount();
+		double seconds = elapsedNanos / 1_000_000_000.0;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-18s count=%d ok=%d failed=%d throughput=%.1f/s%n",
+			operation, count, successes.sum(), failures.sum(), seconds > 0 ? successes.sum() / seconds : 0.0));
+		if (!sorted.isEmpty()) {
+			sb.append(String.format("%-18s p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n", "",
+				millis(percentile(sorted, 50)), millis(percentile(sorted, 90)), millis(percentile(sorted, 99)),
+				millis(percentile(sorted, 99.9)), millis(sorted.get(sorted.size() - 1))));
+		}
+		if (!failuresByCause.isEmpty()) {
+			sb.append(String.format("%-18s failures=%s%n", "", new TreeMap<String, LongAdder>(failuresByCause)));
+		}
+
+		return sb.toString();
+	}
+
+	static long percentile(List<Long> sorted, double percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+		return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,182 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jetty.ee10.webapp.WebAppContext;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import edu.gatech.chai.bserengine.utilities.VirtualThreads;
+
+/**
+ * Capacity test for the engine. Starts the WAR (src/main/webapp with the test
+ * classpath) on embedded Jetty next to stand-in FHIR store, EHR, token and
+ * recipient servers, replays $referral-request and $process-message at a
+ * target rate and prints throughput and latency percentiles per operation.
+ * Exits with status 1 when the failure ratio is over loadtest.maxFailureRatio.
+ *
+ * The engine reads its configuration from the environment, so the stand-in
+ * ports are fixed and the loadtest execution in the benchmark profile sets
+ * FHIRSTORE_URL, BSERENDPOINTE_URL, FHIR_READONLY and the recipient token URLs
+ * to match.
+ *
+ * mvn -Pbenchmark test-compile exec:exec@loadtest -Dloadtest.args="-Dloadtest.rate=50 -Dstore.latencyMs=200"
+ *
+ * With -Dloadtest.virtualThreads=true (a Maven property, passed to the engine as
+ * VIRTUAL_THREADS) Jetty and the engine both run requests on virtual threads, so
+ * the two thread modes can be compared at the same rate.
+ *
+ * System properties:
+ *   loadtest.rate             calls offered per second (10)
+ *   loadtest.durationSeconds  measured run length (60)
+ *   loadtest.warmupSeconds    unmeasured run before it (15)
+ *   loadtest.feedbackRatio    share of calls that are feedback messages (0.5)
+ *   loadtest.requestTimeoutSeconds  client timeout per call (60)
+ *   loadtest.maxFailureRatio  failed/total that fails the run (0.01)
+ *   loadtest.referrals, loadtest.feedback  NDJSON from WorkloadGenerator to replay
+ *   workload.*                shape of generated calls, see WorkloadProfile
+ *   store.*, ehr.*, token.*, recipient.*  FaultProfile of each stand-in
+ */
+public class LoadTestHarness {
+	public static final int ENGINE_PORT = 18080;
+	public static final int STORE_PORT = 18081;
+	public static final int EHR_PORT = 18082;
+	public static final int RECIPIENT_PORT = 18083;
+	public static final int TOKEN_PORT = 18084;
+	public static final String ENGINE_BASE_URL = "http://127.0.0.1:" + ENGINE_PORT + "/bser-engine/fhir";
+
+	public static void main(String[] args) throws Exception {
+		double rate = Double.parseDouble(System.getProperty("loadtest.rate", "10"));
+		Duration duration = Duration.ofSeconds(Long.getLong("loadtest.durationSeconds", 60));
+		Duration warmup = Duration.ofSeconds(Long.getLong("loadtest.warmupSeconds", 15));
+		double feedbackRatio = Double.parseDouble(System.getProperty("loadtest.feedbackRatio", "0.5"));
+		Duration requestTimeout = Duration.ofSeconds(Long.getLong("loadtest.requestTimeoutSeconds", 60));
+		double maxFailureRatio = Double.parseDouble(System.getProperty("loadtest.maxFailureRatio", "0.01"));
+
+		StandInServer fhirStore = StandInServer.fhirStore(STORE_PORT, FaultProfile.fromSystemProperties("store"));
+		StandInServer ehr = StandInServer.fhirStore(EHR_PORT, FaultProfile.fromSystemProperties("ehr"));
+		StandInRecipient standInRecipient = new StandInRecipient();
+		StandInServer recipient = new StandInServer(RECIPIENT_PORT, FaultProfile.fromSystemProperties("recipient"), standInRecipient);
+		StandInServer tokenServer = StandInServer.tokenServer(TOKEN_PORT, FaultProfile.fromSystemProperties("token"));
+
+		checkEnvironment("FHIRSTORE_URL", fhirStore.getBaseUrl());
+		checkEnvironment("BSERENDPOINTE_URL", ENGINE_BASE_URL);
+
+		ReferralFixtures fixtures = new ReferralFixtures(fhirStore, ehr, recipient.getBaseUrl());
+		fixtures.seed();
+
+		Server engine = startEngine();
+		int exitCode = 0;
+		try {
+			awaitReady(Duration.ofMinutes(2));
+
+			String authBearer = System.getenv("AUTH_BEARER");
+			WorkloadGenerator generator = WorkloadGenerator.replay(fixtures, WorkloadProfile.fromSystemProperties(), new Random(Long.getLong("workload.seed", 1L)),
+				path("loadtest.referrals"), path("loadtest.feedback"));
+			WorkloadDriver driver = new WorkloadDriver(ENGINE_BASE_URL, "Bearer " + (authBearer == null || authBearer.isEmpty() ? "12345" : authBearer),
+				generator, feedbackRatio, requestTimeout);
+
+			System.out.println("Stand-ins: store [" + FaultProfile.fromSystemProperties("store") + "], ehr [" + FaultProfile.fromSystemProperties("ehr")
+				+ "], recipient [" + FaultProfile.fromSystemProperties("recipient") + "], token [" + FaultProfile.fromSystemProperties("token") + "]");
+			System.out.println("Warming up for " + warmup.toSeconds() + "s at " + rate + "/s");
+			driver.run(rate, warmup, new LatencyRecorder("$referral-request"), new LatencyRecorder("$process-message"));
+
+			System.out.println("Measuring for " + duration.toSeconds() + "s at " + rate + "/s");
+			LatencyRecorder referrals = new LatencyRecorder("$referral-request");
+			LatencyRecorder feedback = new LatencyRecorder("$process-message");
+			long start = System.nanoTime();
+			driver.run(rate, duration, referrals, feedback);
+			long elapsed = System.nanoTime() - start;
+
+			System.out.print(referrals.report(elapsed));
+			System.out.print(feedback.report(elapsed));
+			System.out.println("Recipient received " + standInRecipient.getReceived() + " referral messages in total");
+
+			long total = referrals.getCount() + feedback.getCount();
+			long failed = referrals.getFailures() + feedback.getFailures();
+			double failureRatio = total == 0 ? 1.0 : failed / (double) total;
+			if (failureRatio > maxFailureRatio) {
+				System.out.println(String.format("FAILED: %d of %d calls failed (%.2f%% > %.2f%%)", failed, total, failureRatio * 100, maxFailureRatio * 100));
+				exitCode = 1;
+			} else {
+				System.out.println(String.format("PASSED: %d of %d calls failed (%.2f%%)", failed, total, failureRatio * 100));
+			}
+		} finally {
+			engine.stop();
+			tokenServer.close();
+			recipient.close();
+			ehr.close();
+			fhirStore.close();
+		}
+
+		System.exit(exitCode);
+	}
+
+	private static Server startEngine() throws Exception {
+		WebAppContext webApp = new WebAppContext();
+		webApp.setContextPath("/bser-engine");
+		webApp.setWar("src/main/webapp");
+		webApp.setParentLoaderPriority(true);
+
+		Server server;
+		if (VirtualThreads.isEnabled()) {
+			QueuedThreadPool threadPool = new QueuedThreadPool();
+			threadPool.setVirtualThreadsExecutor(Executors.newVirtualThreadPerTaskExecutor());
+			server = new Server(threadPool);
+			ServerConnector connector = new ServerConnector(server);
+			connector.setHost("127.0.0.1");
+			connector.setPort(ENGINE_PORT);
+			server.addConnector(connector);
+		} else {
+			server = new Server(new InetSocketAddress("127.0.0.1", ENGINE_PORT));
+		}
+		server.setHandler(webApp);
+		server.start();
+
+		return server;
+	}
+
+	/**
+	 * Waits for /support/ready, as a load balancer would, so the warm-up is not
+	 * measured as part of the run.
+	 */
+	private static void awaitReady(Duration timeout) throws Exception {
+		HttpClient httpClient = HttpClient.newHttpClient();
+		HttpRequest request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + ENGINE_PORT + "/bser-engine/support/ready")).GET().build();
+		long deadline = System.nanoTime() + timeout.toNanos();
+		while (System.nanoTime() < deadline) {
+			try {
+				if (httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+					return;
+				}
+			} catch (Exception e) {
+				// Not listening yet.
+			}
+			Thread.sleep(250);
+		}
+
+		System.err.println("WARNING: engine did not report ready within " + timeout.toSeconds() + "s");
+	}
+
+	private static Path path(String property) {
+		String value = System.getProperty(property);
+		return value == null || value.isBlank() ? null : Paths.get(value);
+	}
+
+	private static void checkEnvironment(String name, String expected) {
+		String value = System.getenv(name);
+		if (!expected.equals(value)) {
+			System.err.println("WARNING: " + name + " is " + value + ", the load test expects " + expected);
+		}
+	}
+}
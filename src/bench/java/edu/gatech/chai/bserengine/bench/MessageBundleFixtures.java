@@ -0,0 +1,238 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Composition;
+import org.hl7.fhir.r4.model.Composition.CompositionStatus;
+import org.hl7.fhir.r4.model.Composition.SectionComponent;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.ServiceRequest.ServiceRequestIntent;
+import org.hl7.fhir.r4.model.ServiceRequest.ServiceRequestStatus;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.Task.TaskIntent;
+import org.hl7.fhir.r4.model.Task.TaskOutputComponent;
+import org.hl7.fhir.r4.model.Task.TaskStatus;
+
+import edu.gatech.chai.BSER.model.BSERReferralMessageBundle;
+import edu.gatech.chai.BSER.model.BSERReferralMessageHeader;
+import edu.gatech.chai.BSER.model.BSERReferralRequestComposition;
+import edu.gatech.chai.BSER.model.BSERReferralRequestDocumentBundle;
+import edu.gatech.chai.BSER.model.BSERReferralTask;
+import edu.gatech.chai.bserengine.utilities.BserTaskBusinessStatus;
+
+/**
+ * Builds referral and feedback message Bundles shaped like the ones the engine
+ * sends and receives: message Bundle -> Task -> ServiceRequest -> document Bundle
+ * -> Composition -> section entries. The number of section entry Observations
+ * controls the size.
+ */
+public class MessageBundleFixtures {
+	public static final String PLAC_SYSTEM = "urn:bser:request:id";
+
+	/**
+	 * Referral message as produced by processReferral.
+	 */
+	public static BSERReferralMessageBundle referralMessage(int observationCount) {
+		Reference subject = new Reference("Patient/" + ReferralFixtures.PATIENT_ID).setDisplay("Pat Bench");
+		Reference initiator = new Reference("PractitionerRole/bench-initiator-role");
+		Reference recipient = new Reference("PractitionerRole/" + ReferralFixtures.RECIPIENT_ROLE_ID);
+
+		List<Resource> observations = observations(observationCount, subject);
+		List<Reference> observationReferences = new ArrayList<Reference>();
+		for (Resource observation : observations) {
+			observationReferences.add(new Reference(observation.fhirType() + "/" + observation.getIdPart()));
+		}
+
+		List<SectionComponent> obesitySections = new ArrayList<SectionComponent>();
+		obesitySections.add(BSERReferralRequestComposition.createObesityReferralSupportingInformation(null,
+			observationReferences, null, null, null, null));
+
+		BSERReferralRequestComposition composition = new BSERReferralRequestComposition(
+			CompositionStatus.FINAL,
+			new CodeableConcept(new Coding("http://loinc.org", "57133-1", "Referral note")),
+			subject,
+			new Date(),
+			initiator,
+			"Referral request",
+			obesitySections,
+			new ArrayList<SectionComponent>(),
+			new ArrayList<SectionComponent>(),
+			new ArrayList<SectionComponent>(),
+			new ArrayList<SectionComponent>(),
+			new ArrayList<SectionComponent>());
+		composition.setId(UUID.randomUUID().toString());
+
+		BSERReferralRequestDocumentBundle document = new BSERReferralRequestDocumentBundle(composition);
+		document.setId(UUID.randomUUID().toString());
+		document.setTimestamp(new Date());
+		document.setIdentifier(new Identifier().setSystem("urn:bser:request:document").setValue(UUID.randomUUID().toString()));
+		for (Resource observation : observations) {
+			document.addEntry(new BundleEntryComponent().setFullUrl(observation.fhirType() + "/" + observation.getIdPart()).setResource(observation));
+		}
+
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setId(UUID.randomUUID().toString());
+		serviceRequest.setStatus(ServiceRequestStatus.ACTIVE);
+		serviceRequest.setIntent(ServiceRequestIntent.ORDER);
+		serviceRequest.setSubject(subject);
+		serviceRequest.setRequester(initiator);
+		serviceRequest.addPerformer(recipient);
+		serviceRequest.addSupportingInfo(new Reference("Bundle/" + document.getIdPart()));
+
+		String placValue = UUID.randomUUID().toString();
+		BSERReferralTask task = new BSERReferralTask(
+			PLAC_SYSTEM, placValue,
+			null, null,
+			new Reference("Organization/bench-initiator-org"),
+			new Reference("Organization/bench-recipient-org"),
+			TaskStatus.REQUESTED,
+			BserTaskBusinessStatus.SERVICE_REQUEST_CREATED.getCodeableConcept(),
+			new Reference("ServiceRequest/" + serviceRequest.getIdPart()),
+			subject,
+			new Date(),
+			initiator,
+			recipient);
+		task.setId(UUID.randomUUID().toString());
+		task.setIntent(TaskIntent.ORDER);
+
+		BSERReferralMessageHeader header = new BSERReferralMessageHeader(
+			recipient,
+			initiator,
+			new Reference("Task/" + task.getIdPart()),
+			ReferralPipelineBenchmark.ENGINE_BASE_URL + "/$process-message",
+			"http://127.0.0.1:8081/recipient/fhir");
+		header.setId(UUID.randomUUID().toString());
+
+		BSERReferralMessageBundle messageBundle = new BSERReferralMessageBundle(header);
+		messageBundle.addEntry(new BundleEntryComponent().setFullUrl("Task/" + task.getIdPart()).setResource(task));
+		messageBundle.addEntry(new BundleEntryComponent().setFullUrl("ServiceRequest/" + serviceRequest.getIdPart()).setResource(serviceRequest));
+		messageBundle.addEntry(new BundleEntryComponent().setFullUrl("Bundle/" + document.getIdPart()).setResource(document));
+
+		return messageBundle;
+	}
+
+	/**
+	 * Feedback message as a recipient sends it to $process-message.
+	 */
+	public static Bundle feedbackMessage(int observationCount, String placValue, BserTaskBusinessStatus businessStatus) {
+		return feedbackMessage(observationCount, 0, placValue, businessStatus);
+	}
+
+	/**
+	 * Feedback message with textBytes of free text in a Task note.
+	 */
+	public static Bundle feedbackMessage(int observationCount, int textBytes, String placValue, BserTaskBusinessStatus businessStatus) {
+		Reference subject = new Reference("Patient/recipient-patient");
+		List<Resource> observations = observations(observationCount, subject);
+
+		Composition composition = new Composition();
+		composition.setId(UUID.randomUUID().toString());
+		composition.setStatus(CompositionStatus.FINAL);
+		composition.setType(new CodeableConcept(new Coding("http://loinc.org", "57133-1", "Referral note")));
+		composition.setSubject(subject);
+		composition.setDate(new Date());
+		composition.setTitle("Referral feedback");
+		SectionComponent section = composition.addSection().setTitle("Feedback supporting information");
+		for (Resource observation : observations) {
+			section.addEntry(new Reference(observation.fhirType() + "/" + observation.getIdPart()));
+		}
+
+		Bundle document = new Bundle();
+		document.setId(UUID.randomUUID().toString());
+		document.setType(BundleType.DOCUMENT);
+		document.setTimestamp(new Date());
+		document.setIdentifier(new Identifier().setSystem("urn:bser:feedback:document").setValue(UUID.randomUUID().toString()));
+		document.getMeta().addProfile("http://hl7.org/fhir/us/bser/StructureDefinition/BSeR-ReferralFeedbackDocumentBundle");
+		document.addEntry().setFullUrl("Composition/" + composition.getIdPart()).setResource(composition);
+		for (Resource observation : observations) {
+			document.addEntry().setFullUrl(observation.fhirType() + "/" + observation.getIdPart()).setResource(observation);
+		}
+
+		Task task = new Task();
+		task.setId(UUID.randomUUID().toString());
+		task.addIdentifier()
+			.setType(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "PLAC", "Placer Identifier")))
+			.setSystem(PLAC_SYSTEM).setValue(placValue);
+		task.addIdentifier()
+			.setType(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", "Filler Identifier")))
+			.setSystem("urn:bser:recipient:id").setValue(UUID.randomUUID().toString());
+		TaskStatus taskStatus = BserTaskBusinessStatus.taskStatusFromCodeableConcept(businessStatus.getCodeableConcept());
+		task.setStatus(taskStatus == TaskStatus.NULL ? TaskStatus.INPROGRESS : taskStatus);
+		task.setIntent(TaskIntent.ORDER);
+		task.setBusinessStatus(businessStatus.getCodeableConcept());
+		if (textBytes > 0) {
+			task.addNote().setText(text(textBytes));
+		}
+		if (observationCount > 0) {
+			TaskOutputComponent output = task.addOutput();
+			output.setType(new CodeableConcept().setText("Referral Feedback Document"));
+			output.setValue(new Reference("Bundle/" + document.getIdPart()));
+		}
+
+		MessageHeader header = new MessageHeader();
+		header.setId(UUID.randomUUID().toString());
+		header.setEvent(new Coding("http://hl7.org/fhir/us/bser/CodeSystem/BSeRReferralMessageTypeCS", "bser-referral-feedback", "BSeR Referral Feedback"));
+		header.addDestination().setEndpoint(ReferralPipelineBenchmark.ENGINE_BASE_URL + "/$process-message");
+		header.setSender(new Reference("PractitionerRole/bench-initiator-role"));
+		header.getSource().setEndpoint("http://127.0.0.1:8081/recipient/fhir");
+		header.addFocus(new Reference("Task/" + task.getIdPart()));
+
+		Bundle message = new Bundle();
+		message.setId(UUID.randomUUID().toString());
+		message.setType(BundleType.MESSAGE);
+		message.setTimestamp(new Date());
+		message.setIdentifier(new Identifier().setSystem("urn:ietf:rfc:3986").setValue("urn:uuid:" + UUID.randomUUID()));
+		message.addEntry().setFullUrl("MessageHeader/" + header.getIdPart()).setResource(header);
+		message.addEntry().setFullUrl("Task/" + task.getIdPart()).setResource(task);
+		if (observationCount > 0) {
+			message.addEntry().setFullUrl("Bundle/" + document.getIdPart()).setResource(document);
+		}
+
+		return message;
+	}
+
+	/**
+	 * Filler text of the given length in bytes.
+	 */
+	static String text(int bytes) {
+		String words = "Participant attended the session and reported progress toward the program goals. ";
+		StringBuilder sb = new StringBuilder(bytes);
+		while (sb.length() < bytes) {
+			sb.append(words, 0, Math.min(words.length(), bytes - sb.length()));
+		}
+
+		return sb.toString();
+	}
+
+	static List<Resource> observations(int count, Reference subject) {
+		List<Resource> retVal = new ArrayList<Resource>();
+		for (int i = 0; i < count; i++) {
+			Observation observation = new Observation();
+			observation.setId(UUID.randomUUID().toString());
+			observation.setStatus(ObservationStatus.FINAL);
+			observation.addCategory(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "Vital Signs")));
+			observation.setCode(new CodeableConcept(new Coding("http://loinc.org", "29463-7", "Body weight")));
+			observation.setSubject(subject);
+			observation.setEffective(new DateTimeType(new Date()));
+			observation.setValue(ReferralFixtures.quantity(70 + (i % 30), "kg", "kg"));
+			retVal.add(observation);
+		}
+
+		return retVal;
+	}
+}
@@ -0,0 +1,313 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Endpoint;
+import org.hl7.fhir.r4.model.Endpoint.EndpointStatus;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.HealthcareService;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.MedicationStatement.MedicationStatementStatus;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.ServiceRequest.ServiceRequestIntent;
+import org.hl7.fhir.r4.model.ServiceRequest.ServiceRequestStatus;
+import org.hl7.fhir.r4.model.StringType;
+
+import edu.gatech.chai.bserengine.provider.ServerOperations.ServiceType;
+
+/**
+ * Builds $referral-request inputs for each ServiceType and seeds the stand-in
+ * FHIR store with the resources the engine expects to find there: the patient,
+ * the initiating practitioner and the recipient PractitionerRole together with
+ * its Organization, HealthcareService and Endpoint (pointing at the stand-in
+ * recipient). When a separate EHR stand-in is given, the recipient directory
+ * and the patient's clinical data live there and are referenced absolutely.
+ */
+public class ReferralFixtures {
+	public static final String PATIENT_ID = "bench-patient";
+	public static final String INITIATOR_ID = "bench-initiator";
+	public static final String RECIPIENT_ROLE_ID = "bench-recipient-role";
+	public static final String BODY_WEIGHT_ID = "bench-body-weight";
+	public static final String BMI_ID = "bench-bmi";
+	public static final String HA1C_ID = "bench-ha1c";
+	public static final String CONDITION_ID = "bench-condition";
+
+	private final StandInServer fhirStore;
+	private final StandInServer ehr;
+	private final String recipientBaseUrl;
+	private final AtomicLong serviceRequestCounter = new AtomicLong();
+
+	public ReferralFixtures(StandInServer fhirStore, String recipientBaseUrl) {
+		this(fhirStore, fhirStore, recipientBaseUrl);
+	}
+
+	public ReferralFixtures(StandInServer fhirStore, StandInServer ehr, String recipientBaseUrl) {
+		this.fhirStore = fhirStore;
+		this.ehr = ehr;
+		this.recipientBaseUrl = recipientBaseUrl;
+	}
+
+	public void seed() {
+		fhirStore.provider(Patient.class).seed(patient());
+		fhirStore.provider(Practitioner.class).seed(initiator());
+
+		Practitioner recipientPractitioner = new Practitioner();
+		recipientPractitioner.setId("bench-recipient");
+		recipientPractitioner.addName(new HumanName().setFamily("Recipient").addGiven("Rita"));
+
+		Organization recipientOrganization = new Organization();
+		recipientOrganization.setId("bench-recipient-org");
+		recipientOrganization.setName("Community Program");
+
+		HealthcareService recipientService = new HealthcareService();
+		recipientService.setId("bench-recipient-service");
+		recipientService.setName("Lifestyle Change Program");
+
+		Endpoint recipientEndpoint = new Endpoint();
+		recipientEndpoint.setId("bench-recipient-endpoint");
+		recipientEndpoint.setStatus(EndpointStatus.ACTIVE);
+		recipientEndpoint.setConnectionType(new Coding("http://terminology.hl7.org/CodeSystem/endpoint-connection-type", "hl7-fhir-msg", null));
+		recipientEndpoint.addPayloadType(new CodeableConcept().setText("BSeR Referral Request Message"));
+		recipientEndpoint.setAddress(recipientBaseUrl);
+
+		PractitionerRole recipientRole = new PractitionerRole();
+		recipientRole.setId(RECIPIENT_ROLE_ID);
+		recipientRole.setPractitioner(reference("Practitioner/bench-recipient", recipientPractitioner));
+		recipientRole.setOrganization(reference("Organization/bench-recipient-org", recipientOrganization));
+		recipientRole.addHealthcareService(reference("HealthcareService/bench-recipient-service", recipientService));
+		recipientRole.addEndpoint(reference("Endpoint/bench-recipient-endpoint", recipientEndpoint));
+
+		ehr.provider(Practitioner.class).seed(recipientPractitioner);
+		ehr.provider(Organization.class).seed(recipientOrganization);
+		ehr.provider(HealthcareService.class).seed(recipientService);
+		ehr.provider(Endpoint.class).seed(recipientEndpoint);
+		ehr.provider(PractitionerRole.class).seed(recipientRole);
+
+		ehr.provider(Observation.class).seed(observation(BODY_WEIGHT_ID, new Coding("http://loinc.org", "29463-7", "Body weight"), quantity(80, "kg", "kg")));
+		ehr.provider(Observation.class).seed(observation(BMI_ID, new Coding("http://loinc.org", "39156-5", "Body mass index (BMI) [Ratio]"), quantity(27.7, "kg/m2", "kg/m2")));
+		ehr.provider(Observation.class).seed(observation(HA1C_ID, new Coding("http://loinc.org", "4548-4", "Hemoglobin A1c/Hemoglobin.total in Blood"), quantity(6.1, "%", "%")));
+
+		Condition condition = new Condition();
+		condition.setId(CONDITION_ID);
+		condition.setSubject(new Reference("Patient/" + PATIENT_ID));
+		condition.setCode(new CodeableConcept(new Coding("http://snomed.info/sct", "38341003", "Hypertensive disorder")));
+		ehr.provider(Condition.class).seed(condition);
+	}
+
+	public String getFhirStoreBaseUrl() {
+		return fhirStore.getBaseUrl();
+	}
+
+	/**
+	 * Reference to a resource seeded in the EHR, absolute when the EHR is not the
+	 * FHIR store so the engine pulls it from there.
+	 */
+	Reference ehrReference(String resourceType, String id) {
+		if (ehr == fhirStore) {
+			return new Reference(resourceType + "/" + id);
+		}
+
+		return new Reference(ehr.getBaseUrl() + "/" + resourceType + "/" + id);
+	}
+
+	/**
+	 * Seeds a fresh draft ServiceRequest in the store, as the UI would have created it.
+	 */
+	ServiceRequest seedDraftServiceRequest() {
+		ServiceRequest serviceRequest = draftServiceRequest();
+		fhirStore.provider(ServiceRequest.class).seed(serviceRequest.copy());
+		return serviceRequest;
+	}
+
+	/**
+	 * Gives a recorded $referral-request a new draft ServiceRequest id and seeds it,
+	 * so the same input can be replayed more than once.
+	 */
+	Parameters reseed(Parameters parameters) {
+		Parameters retVal = parameters.copy();
+		ParametersParameterComponent referral = retVal.getParameter("referral");
+		if (referral != null && referral.getResource() instanceof ServiceRequest) {
+			ServiceRequest serviceRequest = (ServiceRequest) referral.getResource();
+			serviceRequest.setId("bench-sr-" + serviceRequestCounter.incrementAndGet());
+			fhirStore.provider(ServiceRequest.class).seed(serviceRequest.copy());
+		}
+
+		StringType bserProviderBaseUrl = new StringType(fhirStore.getBaseUrl());
+		if (retVal.getParameter("bserProviderBaseUrl") != null) {
+			retVal.getParameter("bserProviderBaseUrl").setValue(bserProviderBaseUrl);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Builds the $referral-request Parameters for the service type. A fresh draft
+	 * ServiceRequest is seeded in the store, as the UI would have created it.
+	 */
+	public Parameters referralRequest(ServiceType serviceType) {
+		ServiceRequest serviceRequest = seedDraftServiceRequest();
+
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("referral").setResource(serviceRequest);
+		parameters.addParameter().setName("patient").setResource(patient());
+		parameters.addParameter().setName("requester").setResource(initiator());
+		parameters.addParameter("bserProviderBaseUrl", new StringType(fhirStore.getBaseUrl()));
+		parameters.addParameter("serviceType", new CodeType(serviceType.getCode()));
+		parameters.addParameter("educationLevel", new CodeType("BD"));
+		parameters.addParameter("employmentStatus", new CodeType("Employed"));
+
+		switch (serviceType) {
+			case ARTHRITIS:
+				parameters.addParameter().setName("allergies").setResource(allergies(2));
+				parameters.addParameter().setName("medications").setResource(medications(2));
+				addVitals(parameters);
+				break;
+			case DIABETES_PREVENTION:
+				parameters.addParameter("ha1cObservation", quantity(6.1, "%", "%"));
+				addVitals(parameters);
+				break;
+			case EARLY_CHILDHOOD_NUTRITION:
+				parameters.addParameter("isBabyLatching", new BooleanType(true));
+				parameters.addParameter("momsConcerns", new StringType("Baby is not gaining weight"));
+				parameters.addParameter("nippleShieldUse", new BooleanType(false));
+				ParametersParameterComponent child = parameters.addParameter().setName("child");
+				child.addPart().setName("firstName").setValue(new StringType("Sam"));
+				child.addPart().setName("lastName").setValue(new StringType("Bench"));
+				child.addPart().setName("gender").setValue(new CodeType(AdministrativeGender.FEMALE.toCode()));
+				addBloodPressure(parameters);
+				break;
+			case HYPERTENSION:
+				parameters.addParameter("diagnosis", new Coding("http://snomed.info/sct", "38341003", "Hypertensive disorder"));
+				addVitals(parameters);
+				break;
+			case OBESITY:
+				parameters.addParameter().setName("allergies").setResource(allergies(2));
+				addVitals(parameters);
+				break;
+			case TOBACCO_USE_CESSATION:
+				parameters.addParameter("nrtAuthorizationStatus", new CodeType("AP"));
+				parameters.addParameter("smokingStatus", new CodeType("449868002"));
+				ParametersParameterComponent commPrefs = parameters.addParameter().setName("communicationPreferences");
+				commPrefs.addPart().setName("bestDay").setValue(new StringType("Monday"));
+				commPrefs.addPart().setName("bestTime").setValue(new StringType("Morning"));
+				commPrefs.addPart().setName("leaveMessage").setValue(new StringType("true"));
+				break;
+		}
+
+		return parameters;
+	}
+
+	Patient patient() {
+		Patient patient = new Patient();
+		patient.setId(PATIENT_ID);
+		patient.addIdentifier().setSystem("urn:bser:bench:mrn").setValue("MRN-0001");
+		patient.addName(new HumanName().setFamily("Bench").addGiven("Pat"));
+		patient.setGender(AdministrativeGender.FEMALE);
+		return patient;
+	}
+
+	Practitioner initiator() {
+		Practitioner practitioner = new Practitioner();
+		practitioner.setId(INITIATOR_ID);
+		practitioner.addName(new HumanName().setFamily("Initiator").addGiven("Ian"));
+		return practitioner;
+	}
+
+	ServiceRequest draftServiceRequest() {
+		ServiceRequest serviceRequest = new ServiceRequest();
+		serviceRequest.setId("bench-sr-" + serviceRequestCounter.incrementAndGet());
+		serviceRequest.setStatus(ServiceRequestStatus.DRAFT);
+		serviceRequest.setIntent(ServiceRequestIntent.ORDER);
+		serviceRequest.setCode(new CodeableConcept(new Coding("http://snomed.info/sct", "306206005", "Referral to service")));
+		serviceRequest.setSubject(new Reference("Patient/" + PATIENT_ID));
+		serviceRequest.setRequester(new Reference("Practitioner/" + INITIATOR_ID).setType("Practitioner"));
+		serviceRequest.addPerformer(ehrReference("PractitionerRole", RECIPIENT_ROLE_ID));
+		return serviceRequest;
+	}
+
+	Bundle allergies(int count) {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.COLLECTION);
+		for (int i = 0; i < count; i++) {
+			AllergyIntolerance allergy = new AllergyIntolerance();
+			allergy.setId("bench-allergy-" + i);
+			allergy.setPatient(new Reference("Patient/" + PATIENT_ID));
+			allergy.setCode(new CodeableConcept(new Coding("http://snomed.info/sct", "91936005", "Allergy to penicillin")));
+			bundle.addEntry().setFullUrl("AllergyIntolerance/bench-allergy-" + i).setResource(allergy);
+		}
+
+		return bundle;
+	}
+
+	Bundle medications(int count) {
+		Bundle bundle = new Bundle();
+		bundle.setType(BundleType.COLLECTION);
+		for (int i = 0; i < count; i++) {
+			MedicationStatement medication = new MedicationStatement();
+			medication.setId("bench-medication-" + i);
+			medication.setStatus(MedicationStatementStatus.ACTIVE);
+			medication.setSubject(new Reference("Patient/" + PATIENT_ID));
+			medication.setMedication(new CodeableConcept(new Coding("http://www.nlm.nih.gov/research/umls/rxnorm", "197361", "Amlodipine 5 MG Oral Tablet")));
+			bundle.addEntry().setFullUrl("MedicationStatement/bench-medication-" + i).setResource(medication);
+		}
+
+		return bundle;
+	}
+
+	Observation observation(String id, Coding code, Quantity value) {
+		Observation observation = new Observation();
+		observation.setId(id);
+		observation.setStatus(ObservationStatus.FINAL);
+		observation.addCategory(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/observation-category", "vital-signs", "Vital Signs")));
+		observation.setCode(new CodeableConcept(code));
+		observation.setSubject(new Reference("Patient/" + PATIENT_ID));
+		observation.setEffective(new DateTimeType(new Date()));
+		observation.setValue(value);
+		return observation;
+	}
+
+	void addVitals(Parameters parameters) {
+		addBloodPressure(parameters);
+		parameters.addParameter("bodyHeight", quantity(170, "cm", "cm"));
+		parameters.addParameter("bodyWeight", quantity(80, "kg", "kg"));
+		parameters.addParameter("bmi", quantity(27.7, "kg/m2", "kg/m2"));
+	}
+
+	void addBloodPressure(Parameters parameters) {
+		ParametersParameterComponent bloodPressure = parameters.addParameter().setName("bloodPressure");
+		bloodPressure.addPart().setName("date").setValue(new DateTimeType(new Date()));
+		bloodPressure.addPart().setName("systolic").setValue(quantity(135, "mm[Hg]", "mmHg"));
+		bloodPressure.addPart().setName("diastolic").setValue(quantity(85, "mm[Hg]", "mmHg"));
+	}
+
+	static Quantity quantity(double value, String code, String unit) {
+		return new Quantity().setValue(value).setSystem("http://unitsofmeasure.org").setCode(code).setUnit(unit);
+	}
+
+	private static Reference reference(String reference, org.hl7.fhir.r4.model.Resource resource) {
+		Reference retVal = new Reference(reference);
+		retVal.setResource(resource);
+		return retVal;
+	}
+}
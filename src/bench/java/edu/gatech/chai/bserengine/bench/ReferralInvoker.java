@@ -0,0 +1,88 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coverage;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Type;
+
+import edu.gatech.chai.bserengine.provider.ServerOperations;
+
+/**
+ * Unpacks $referral-request Parameters into the arguments of
+ * ServerOperations.processReferral, the same way HAPI binds them for an HTTP call.
+ */
+public class ReferralInvoker {
+
+	public static Parameters processReferral(ServerOperations serverOperations, Parameters request) {
+		return serverOperations.processReferral(
+			(ServiceRequest) resource(request, "referral"),
+			(Patient) resource(request, "patient"),
+			(Practitioner) resource(request, "requester"),
+			(Coverage) resource(request, "coverage"),
+			(StringType) value(request, "bserProviderBaseUrl"),
+			(CodeType) value(request, "serviceType"),
+			(CodeType) value(request, "educationLevel"),
+			(CodeType) value(request, "employmentStatus"),
+			(Bundle) resource(request, "allergies"),
+			parameter(request, "bloodPressure"),
+			parameter(request, "bodyHeight"),
+			parameter(request, "bodyWeight"),
+			parameter(request, "bmi"),
+			parameters(request, "diagnosis"),
+			(BooleanType) value(request, "isBabyLatching"),
+			(StringType) value(request, "momsConcerns"),
+			(BooleanType) value(request, "nippleShieldUse"),
+			parameter(request, "ha1cObservation"),
+			(Bundle) resource(request, "medications"),
+			(CodeType) value(request, "nrtAuthorizationStatus"),
+			parameter(request, "child"),
+			(CodeType) value(request, "smokingStatus"),
+			parameter(request, "communicationPreferences"),
+			(IntegerType) value(request, "timeoutMs"),
+			(CodeType) value(request, "return"),
+			null);
+	}
+
+	static ParametersParameterComponent parameter(Parameters request, String name) {
+		for (ParametersParameterComponent parameter : request.getParameter()) {
+			if (name.equals(parameter.getName())) {
+				return parameter;
+			}
+		}
+
+		return null;
+	}
+
+	static List<ParametersParameterComponent> parameters(Parameters request, String name) {
+		List<ParametersParameterComponent> retVal = new ArrayList<ParametersParameterComponent>();
+		for (ParametersParameterComponent parameter : request.getParameter()) {
+			if (name.equals(parameter.getName())) {
+				retVal.add(parameter);
+			}
+		}
+
+		return retVal.isEmpty() ? null : retVal;
+	}
+
+	static Resource resource(Parameters request, String name) {
+		ParametersParameterComponent parameter = parameter(request, name);
+		return parameter == null ? null : parameter.getResource();
+	}
+
+	static Type value(Parameters request, String name) {
+		ParametersParameterComponent parameter = parameter(request, name);
+		return parameter == null ? null : parameter.getValue();
+	}
+}
@@ -0,0 +1,75 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Parameters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import edu.gatech.chai.bserengine.config.FhirServerConfig;
+import edu.gatech.chai.bserengine.persistence.MessageDeduplicator;
+import edu.gatech.chai.bserengine.provider.ServerOperations;
+import edu.gatech.chai.bserengine.provider.ServerOperations.ServiceType;
+
+/**
+ * Drives ServerOperations.processReferral end to end for every ServiceType against
+ * an in-process stand-in FHIR store and recipient. Throughput mode gives referrals
+ * per second, sample mode gives the latency percentiles; add -prof gc for the
+ * allocation rate.
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="ReferralPipelineBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ReferralPipelineBenchmark {
+	public static final String ENGINE_BASE_URL = "http://127.0.0.1:8080/bser-engine/fhir";
+
+	@Param({ "ARTHRITIS", "DIABETES_PREVENTION", "EARLY_CHILDHOOD_NUTRITION", "HYPERTENSION", "OBESITY", "TOBACCO_USE_CESSATION" })
+	public ServiceType serviceType;
+
+	private StandInServer fhirStore;
+	private StandInServer recipient;
+	private AnnotationConfigApplicationContext applicationContext;
+	private ServerOperations serverOperations;
+	private ReferralFixtures fixtures;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		recipient = new StandInServer(0, FaultProfile.NONE, new StandInRecipient());
+		fhirStore = StandInServer.fhirStore();
+
+		fixtures = new ReferralFixtures(fhirStore, recipient.getBaseUrl());
+		fixtures.seed();
+
+		applicationContext = new AnnotationConfigApplicationContext(FhirServerConfig.class);
+		serverOperations = new ServerOperations(applicationContext, fhirStore.getBaseUrl(), ENGINE_BASE_URL, MessageDeduplicator.fromEnv());
+	}
+
+	@Benchmark
+	public Parameters processReferral() {
+		return ReferralInvoker.processReferral(serverOperations, fixtures.referralRequest(serviceType));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		applicationContext.close();
+		fhirStore.close();
+		recipient.close();
+	}
+}
@@ -0,0 +1,104 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.bserengine.utilities.BserTaskBusinessStatus;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * Encode and parse cost of the referral message Bundle and of feedback message
+ * Bundles through StaticValues.myFhirContext.
+ *
+ * narrative: NONE - no narrative generator, resources carry no text.
+ *            GENERATED - Thymeleaf generator registered, text rendered at encode time
+ *                        (what RestfulServerWithOpenApi does today).
+ *            EMBEDDED - text rendered once up front and carried in the resources.
+ *
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="SerializationBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SerializationBenchmark {
+	public enum Narrative { NONE, GENERATED, EMBEDDED }
+
+	@Param({ "REFERRAL", "FEEDBACK" })
+	public String message;
+
+	@Param({ "5", "50", "500" })
+	public int observations;
+
+	@Param({ "JSON", "XML" })
+	public String encoding;
+
+	@Param({ "true", "false" })
+	public boolean pretty;
+
+	@Param({ "NONE", "GENERATED", "EMBEDDED" })
+	public Narrative narrative;
+
+	private Bundle bundle;
+	private IParser parser;
+	private String encoded;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		if ("REFERRAL".equals(message)) {
+			bundle = MessageBundleFixtures.referralMessage(observations);
+		} else {
+			bundle = MessageBundleFixtures.feedbackMessage(observations, UUID.randomUUID().toString(), BserTaskBusinessStatus.SERVICE_REQUEST_EVENT_COMPLETED);
+		}
+
+		if (narrative == Narrative.EMBEDDED) {
+			// Render once, keep the text in the resources, then encode without a generator.
+			StaticValues.myFhirContext.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+			bundle = (Bundle) StaticValues.myFhirContext.newJsonParser().parseResource(StaticValues.myFhirContext.newJsonParser().encodeResourceToString(bundle));
+			StaticValues.myFhirContext.setNarrativeGenerator(null);
+		} else if (narrative == Narrative.GENERATED) {
+			StaticValues.myFhirContext.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
+		} else {
+			StaticValues.myFhirContext.setNarrativeGenerator(null);
+		}
+
+		parser = "XML".equals(encoding) ? StaticValues.myFhirContext.newXmlParser() : StaticValues.myFhirContext.newJsonParser();
+		parser.setPrettyPrint(pretty);
+		encoded = parser.encodeResourceToString(bundle);
+	}
+
+	@Benchmark
+	public String encode() {
+		return parser.encodeResourceToString(bundle);
+	}
+
+	@Benchmark
+	public IBaseResource parse() {
+		return parser.parseResource(Bundle.class, encoded);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		StaticValues.myFhirContext.setNarrativeGenerator(null);
+	}
+}
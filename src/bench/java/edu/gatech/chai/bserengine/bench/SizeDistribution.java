@@ -0,0 +1,90 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.Random;
+
+/**
+ * Distribution of an entry count or payload size for the workload generator.
+ * Written as a fixed value ("5"), an inclusive uniform range ("0-10") or
+ * weighted values ("0:50,2:30,10:15,100:5" picks 0 half of the time).
+ */
+public class SizeDistribution {
+	private final int[] values;
+	private final int[] cumulativeWeights;
+	private final boolean range;
+
+	private SizeDistribution(int[] values, int[] cumulativeWeights, boolean range) {
+		this.values = values;
+		this.cumulativeWeights = cumulativeWeights;
+		this.range = range;
+	}
+
+	public static SizeDistribution fixed(int value) {
+		return new SizeDistribution(new int[] { value }, new int[] { 1 }, false);
+	}
+
+	public static SizeDistribution parse(String spec) {
+		spec = spec.trim();
+		if (spec.contains(":")) {
+			String[] pairs = spec.split(",");
+			int[] values = new int[pairs.length];
+			int[] cumulativeWeights = new int[pairs.length];
+			int total = 0;
+			for (int i = 0; i < pairs.length; i++) {
+				String[] pair = pairs[i].split(":");
+				if (pair.length != 2) {
+					throw new IllegalArgumentException("Expected value:weight in " + spec);
+				}
+				values[i] = Integer.parseInt(pair[0].trim());
+				total += Integer.parseInt(pair[1].trim());
+				cumulativeWeights[i] = total;
+			}
+
+			return new SizeDistribution(values, cumulativeWeights, false);
+		}
+
+		int dash = spec.indexOf('-', 1);
+		if (dash > 0) {
+			return new SizeDistribution(new int[] { Integer.parseInt(spec.substring(0, dash).trim()), Integer.parseInt(spec.substring(dash + 1).trim()) }, null, true);
+		}
+
+		return fixed(Integer.parseInt(spec));
+	}
+
+	public static SizeDistribution fromSystemProperty(String name, String defaultSpec) {
+		return parse(System.getProperty(name, defaultSpec));
+	}
+
+	public int sample(Random random) {
+		if (range) {
+			return values[0] + random.nextInt(values[1] - values[0] + 1);
+		}
+
+		int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			if (pick < cumulativeWeights[i]) {
+				return values[i];
+			}
+		}
+
+		return values[values.length - 1];
+	}
+
+	@Override
+	public String toString() {
+		if (range) {
+			return values[0] + "-" + values[1];
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int previous = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(values[i]).append(':').append(cumulativeWeights[i] - previous);
+			previous = cumulativeWeights[i];
+		}
+
+		return sb.toString();
+	}
+}
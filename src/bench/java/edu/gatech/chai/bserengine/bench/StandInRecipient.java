@@ -0,0 +1,37 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+
+import ca.uhn.fhir.rest.annotation.Operation;
+import ca.uhn.fhir.rest.annotation.OperationParam;
+
+/**
+ * Stand-in referral recipient. Accepts $process-message and answers with an
+ * informational OperationOutcome, the way a recipient acknowledges an
+ * asynchronous referral message.
+ */
+public class StandInRecipient {
+	private final AtomicLong received = new AtomicLong();
+
+	@Operation(name = "$process-message")
+	public OperationOutcome processMessage(
+		@OperationParam(name = "content") Bundle theContent,
+		@OperationParam(name = "async") BooleanType theAsync
+	) {
+		received.incrementAndGet();
+
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue().setSeverity(IssueSeverity.INFORMATION).setCode(IssueType.INFORMATIONAL).setDiagnostics("Message accepted");
+		return oo;
+	}
+
+	public long getReceived() {
+		return received.get();
+	}
+}
@@ -0,0 +1,142 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jetty.ee10.servlet.FilterHolder;
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+
+import ca.uhn.fhir.rest.server.RestfulServer;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * A HAPI RestfulServer (or the token endpoint) on an embedded Jetty bound to
+ * loopback. Used as the stand-in FHIR store, EHR, token server and referral
+ * recipient. Port 0 picks an ephemeral port.
+ */
+public class StandInServer implements AutoCloseable {
+	private final Server server;
+	private final Map<Class<? extends IBaseResource>, InMemoryResourceProvider> resourceProviders = new LinkedHashMap<Class<? extends IBaseResource>, InMemoryResourceProvider>();
+
+	public StandInServer(int port, FaultProfile faults, Object... plainProviders) throws Exception {
+		this(port, faults, Arrays.asList(plainProviders), new ArrayList<InMemoryResourceProvider>());
+	}
+
+	private StandInServer(int port, FaultProfile faults, List<Object> plainProviders, List<InMemoryResourceProvider> providers) throws Exception {
+		RestfulServer restfulServer = new RestfulServer(StaticValues.myFhirContext);
+		for (InMemoryResourceProvider provider : providers) {
+			provider.setResolver(this::resolve);
+			resourceProviders.put(provider.getResourceType(), provider);
+		}
+
+		List<Object> allProviders = new ArrayList<Object>(plainProviders);
+		allProviders.addAll(providers);
+		restfulServer.registerProviders(allProviders);
+
+		server = start(port, faults, new ServletHolder(restfulServer), "/fhir/*");
+	}
+
+	private StandInServer(int port, FaultProfile faults, HttpServlet servlet, String path) throws Exception {
+		server = start(port, faults, new ServletHolder(servlet), path);
+	}
+
+	private static Server start(int port, FaultProfile faults, ServletHolder servlet, String path) throws Exception {
+		Server server = new Server(new InetSocketAddress("127.0.0.1", port));
+		ServletContextHandler context = new ServletContextHandler();
+		context.setContextPath("/");
+		if (!faults.isNone()) {
+			context.addFilter(new FilterHolder(new FaultInjectionFilter(faults)), "/*", EnumSet.of(DispatcherType.REQUEST));
+		}
+		context.addServlet(servlet, path);
+		server.setHandler(context);
+		server.start();
+
+		return server;
+	}
+
+	/**
+	 * Creates a FHIR store that accepts every R4 resource type.
+	 */
+	public static StandInServer fhirStore() throws Exception {
+		return fhirStore(0, FaultProfile.NONE);
+	}
+
+	public static StandInServer fhirStore(int port, FaultProfile faults) throws Exception {
+		List<InMemoryResourceProvider> providers = new ArrayList<InMemoryResourceProvider>();
+		for (String resourceType : StaticValues.myFhirContext.getResourceTypes()) {
+			Class<? extends IBaseResource> resourceClass = StaticValues.myFhirContext.getResourceDefinition(resourceType).getImplementingClass();
+			providers.add(new InMemoryResourceProvider(resourceClass));
+		}
+
+		return new StandInServer(port, faults, new ArrayList<Object>(), providers);
+	}
+
+	/**
+	 * Creates a token endpoint at /token that hands out a fixed token. POST answers
+	 * both an OAuth2 client credentials request and the YUSA authorization call;
+	 * GET answers the YUSA authentication call with an auth code.
+	 */
+	public static StandInServer tokenServer(int port, FaultProfile faults) throws Exception {
+		HttpServlet tokenServlet = new HttpServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+				resp.setContentType("application/json");
+				resp.getWriter().write("{\"authCode\":\"stand-in-code\",\"expiresInMin\":5}");
+			}
+
+			@Override
+			protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+				resp.setContentType("application/json");
+				resp.getWriter().write("{\"access_token\":\"stand-in-token\",\"token_type\":\"bearer\",\"expires_in\":300,\"scope\":\"system/*.*\","
+					+ "\"accessToken\":\"stand-in-token\",\"expiresInMin\":5}");
+			}
+		};
+
+		return new StandInServer(port, faults, tokenServlet, "/token");
+	}
+
+	public InMemoryResourceProvider provider(Class<? extends IBaseResource> resourceType) {
+		return resourceProviders.get(resourceType);
+	}
+
+	IBaseResource resolve(IIdType id) {
+		if (!id.hasResourceType() || !id.hasIdPart()) {
+			return null;
+		}
+
+		Class<? extends IBaseResource> resourceClass = StaticValues.myFhirContext.getResourceDefinition(id.getResourceType()).getImplementingClass();
+		InMemoryResourceProvider provider = resourceProviders.get(resourceClass);
+		return provider == null ? null : provider.get(id.getIdPart());
+	}
+
+	public String getUrl() {
+		int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		return "http://127.0.0.1:" + port;
+	}
+
+	public String getBaseUrl() {
+		return getUrl() + "/fhir";
+	}
+
+	@Override
+	public void close() throws Exception {
+		server.stop();
+	}
+}
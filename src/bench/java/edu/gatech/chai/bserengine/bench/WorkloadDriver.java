@@ -0,0 +1,162 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Task;
+
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * Open-loop load generator for a running engine. Calls are started on a fixed
+ * schedule at the target rate, each on its own virtual thread, whether or not
+ * earlier calls have returned. A share of the calls (feedbackRatio) are
+ * $process-message feedback messages for referrals that were accepted earlier
+ * in the run; the rest are $referral-request calls. Inputs come from a
+ * WorkloadGenerator.
+ */
+public class WorkloadDriver {
+	private final HttpClient httpClient;
+	private final String engineBaseUrl;
+	private final String authorization;
+	private final WorkloadGenerator generator;
+	private final double feedbackRatio;
+	private final Duration requestTimeout;
+	private final ConcurrentLinkedQueue<String> placValues = new ConcurrentLinkedQueue<String>();
+
+	public WorkloadDriver(String engineBaseUrl, String authorization, WorkloadGenerator generator, double feedbackRatio, Duration requestTimeout) {
+		this.httpClient = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.connectTimeout(Duration.ofSeconds(10))
+			.build();
+		this.engineBaseUrl = engineBaseUrl;
+		this.authorization = authorization;
+		this.generator = generator;
+		this.feedbackRatio = feedbackRatio;
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Offers ratePerSecond calls per second for the given duration and waits for
+	 * the calls still in flight to finish.
+	 */
+	public void run(double ratePerSecond, Duration duration, LatencyRecorder referrals, LatencyRecorder feedback) throws InterruptedException {
+		long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+		long durationNanos = duration.toNanos();
+		ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+		long start = System.nanoTime();
+		for (long i = 0; i * intervalNanos < durationNanos; i++) {
+			long scheduledAt = start + i * intervalNanos;
+			long wait;
+			while ((wait = scheduledAt - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(wait);
+			}
+
+			executor.execute(() -> {
+				String placValue = ThreadLocalRandom.current().nextDouble() < feedbackRatio ? placValues.poll() : null;
+				if (placValue != null) {
+					sendFeedback(placValue, scheduledAt, feedback);
+				} else {
+					sendReferral(scheduledAt, referrals);
+				}
+			});
+		}
+
+		executor.shutdown();
+		if (!executor.awaitTermination(requestTimeout.toSeconds() + 5, TimeUnit.SECONDS)) {
+			executor.shutdownNow();
+		}
+	}
+
+	private void sendReferral(long scheduledAt, LatencyRecorder recorder) {
+		String body = StaticValues.myFhirContext.newJsonParser().encodeResourceToString(generator.nextReferral());
+
+		HttpResponse<String> response = post("$referral-request", body, scheduledAt, recorder);
+		if (response != null) {
+			String placValue = placValue(response.body());
+			if (placValue != null) {
+				placValues.add(placValue);
+			}
+		}
+	}
+
+	private void sendFeedback(String placValue, long scheduledAt, LatencyRecorder recorder) {
+		String body = StaticValues.myFhirContext.newJsonParser().encodeResourceToString(generator.nextFeedback(placValue));
+
+		post("$process-message", body, scheduledAt, recorder);
+	}
+
+	/**
+	 * @return the response when the engine answered 2xx, null when the call was recorded as failed.
+	 */
+	private HttpResponse<String> post(String operation, String body, long scheduledAt, LatencyRecorder recorder) {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(engineBaseUrl + "/" + operation))
+			.timeout(requestTimeout)
+			.header("Content-Type", "application/fhir+json")
+			.header("Accept", "application/fhir+json")
+			.header("Authorization", authorization)
+			.POST(HttpRequest.BodyPublishers.ofString(body))
+			.build();
+
+		try {
+			HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+			long latency = System.nanoTime() - scheduledAt;
+			if (response.statusCode() / 100 == 2) {
+				recorder.success(latency);
+				return response;
+			}
+
+			recorder.failure(latency, "HTTP " + response.statusCode());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			recorder.failure(System.nanoTime() - scheduledAt, e.getClass().getSimpleName());
+		} catch (Exception e) {
+			recorder.failure(System.nanoTime() - scheduledAt, e.getClass().getSimpleName());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Pulls the PLAC identifier the engine assigned from the Task in the returned
+	 * referral message bundle.
+	 */
+	private static String placValue(String responseBody) {
+		try {
+			Parameters parameters = StaticValues.myFhirContext.newJsonParser().parseResource(Parameters.class, responseBody);
+			IBaseResource messageBundle = parameters.getParameter("referral_request_resource") == null ? null : parameters.getParameter("referral_request_resource").getResource();
+			if (!(messageBundle instanceof Bundle)) {
+				return null;
+			}
+
+			for (BundleEntryComponent entry : ((Bundle) messageBundle).getEntry()) {
+				if (entry.getResource() instanceof Task) {
+					for (Identifier identifier : ((Task) entry.getResource()).getIdentifier()) {
+						if (MessageBundleFixtures.PLAC_SYSTEM.equals(identifier.getSystem())) {
+							return identifier.getValue();
+						}
+					}
+				}
+			}
+		} catch (Exception e) {
+			// Not a Parameters response; there is nothing to send feedback for.
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,336 @@
+package edu.gatech.chai.bserengine.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Coverage;
+import org.hl7.fhir.r4.model.Coverage.CoverageStatus;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.ServiceRequest;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.Task;
+import org.hl7.fhir.r4.model.Type;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.bserengine.provider.ServerOperations.ServiceType;
+import edu.gatech.chai.bserengine.utilities.BserTaskBusinessStatus;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * Synthetic $referral-request inputs for every ServiceType and matching feedback
+ * messages that cycle through every BserTaskBusinessStatus. Entry counts and
+ * free text sizes come from a WorkloadProfile. Weight, BMI, HbA1c and
+ * diagnoses are sent either as values or as references to data seeded in the
+ * EHR stand-in. Blood pressure and body height are always sent as values; the
+ * engine does not resolve references for those two yet.
+ *
+ * Run main to write referrals.ndjson and feedback.ndjson, which
+ * LoadTestHarness replays with -Dloadtest.referrals and -Dloadtest.feedback:
+ *
+ * mvn -Pbenchmark test-compile exec:exec@workload -Dworkload.args="-Dworkload.count=1000 -Dworkload.medications=0-50"
+ */
+public class WorkloadGenerator {
+	private static final String[] EDUCATION_LEVELS = { "ELEM", "SEC", "HS", "SCOL", "ASSOC", "BD", "PB", "GD" };
+	private static final String[] EMPLOYMENT_STATUSES = { "Employed", "Unemployed", "Retired", "Student" };
+	private static final String[] NRT_AUTHORIZATION_STATUSES = { "AP", "DE", "PE" };
+	private static final String[] SMOKING_STATUSES = { "449868002", "428041000124106", "8517006", "266919005" };
+	private static final Coding[] DIAGNOSES = {
+		new Coding("http://snomed.info/sct", "38341003", "Hypertensive disorder"),
+		new Coding("http://snomed.info/sct", "44054006", "Diabetes mellitus type 2"),
+		new Coding("http://snomed.info/sct", "414916001", "Obesity"),
+		new Coding("http://snomed.info/sct", "69896004", "Rheumatoid arthritis"),
+		new Coding("http://snomed.info/sct", "714035009", "Prediabetes")
+	};
+
+	private final ReferralFixtures fixtures;
+	private final WorkloadProfile profile;
+	private final Random random;
+	private final List<Parameters> recordedReferrals;
+	private final List<Bundle> recordedFeedback;
+	private final AtomicLong referralSequence = new AtomicLong();
+	private final AtomicLong feedbackSequence = new AtomicLong();
+
+	public WorkloadGenerator(ReferralFixtures fixtures, WorkloadProfile profile, Random random) {
+		this(fixtures, profile, random, new ArrayList<Parameters>(), new ArrayList<Bundle>());
+	}
+
+	private WorkloadGenerator(ReferralFixtures fixtures, WorkloadProfile profile, Random random, List<Parameters> recordedReferrals, List<Bundle> recordedFeedback) {
+		this.fixtures = fixtures;
+		this.profile = profile;
+		this.random = random;
+		this.recordedReferrals = recordedReferrals;
+		this.recordedFeedback = recordedFeedback;
+	}
+
+	/**
+	 * A generator that replays recorded NDJSON. Either path may be null, in which
+	 * case that kind of call is generated.
+	 */
+	public static WorkloadGenerator replay(ReferralFixtures fixtures, WorkloadProfile profile, Random random, Path referrals, Path feedback) throws IOException {
+		IParser parser = StaticValues.myFhirContext.newJsonParser();
+		return new WorkloadGenerator(fixtures, profile, random,
+			referrals == null ? new ArrayList<Parameters>() : readNdjson(parser, referrals, Parameters.class),
+			feedback == null ? new ArrayList<Bundle>() : readNdjson(parser, feedback, Bundle.class));
+	}
+
+	/**
+	 * Next $referral-request input. Service types are used in turn.
+	 */
+	public Parameters nextReferral() {
+		long sequence = referralSequence.getAndIncrement();
+		if (!recordedReferrals.isEmpty()) {
+			return fixtures.reseed(recordedReferrals.get((int) (sequence % recordedReferrals.size())));
+		}
+
+		ServiceType[] serviceTypes = ServiceType.values();
+		return referral(serviceTypes[(int) (sequence % serviceTypes.length)]);
+	}
+
+	/**
+	 * Next feedback message for the referral with the given PLAC identifier.
+	 * Business statuses are used in turn.
+	 */
+	public Bundle nextFeedback(String placValue) {
+		long sequence = feedbackSequence.getAndIncrement();
+		if (!recordedFeedback.isEmpty()) {
+			return readdress(recordedFeedback.get((int) (sequence % recordedFeedback.size())), placValue);
+		}
+
+		BserTaskBusinessStatus[] statuses = feedbackStatuses();
+		return feedback(placValue, statuses[(int) (sequence % statuses.length)]);
+	}
+
+	public Parameters referral(ServiceType serviceType) {
+		ServiceRequest serviceRequest = fixtures.seedDraftServiceRequest();
+
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("referral").setResource(serviceRequest);
+		parameters.addParameter().setName("patient").setResource(fixtures.patient());
+		parameters.addParameter().setName("requester").setResource(fixtures.initiator());
+		if (random.nextBoolean()) {
+			parameters.addParameter().setName("coverage").setResource(coverage());
+		}
+		parameters.addParameter("bserProviderBaseUrl", new StringType(fixtures.getFhirStoreBaseUrl()));
+		parameters.addParameter("serviceType", new CodeType(serviceType.getCode()));
+		parameters.addParameter("educationLevel", new CodeType(pick(EDUCATION_LEVELS)));
+		parameters.addParameter("employmentStatus", new CodeType(pick(EMPLOYMENT_STATUSES)));
+
+		switch (serviceType) {
+			case ARTHRITIS:
+				addAllergies(parameters);
+				addMedications(parameters);
+				addVitals(parameters);
+				addDiagnoses(parameters);
+				break;
+			case DIABETES_PREVENTION:
+				parameters.addParameter().setName("ha1cObservation").setValue(
+					valueOrReference(ReferralFixtures.quantity(5.7 + random.nextInt(10) / 10.0, "%", "%"), "Observation", ReferralFixtures.HA1C_ID));
+				addVitals(parameters);
+				addDiagnoses(parameters);
+				break;
+			case EARLY_CHILDHOOD_NUTRITION:
+				parameters.addParameter("isBabyLatching", new BooleanType(random.nextBoolean()));
+				parameters.addParameter("momsConcerns", new StringType("Baby is not gaining weight. " + MessageBundleFixtures.text(profile.getTextBytes().sample(random))));
+				parameters.addParameter("nippleShieldUse", new BooleanType(random.nextBoolean()));
+				ParametersParameterComponent child = parameters.addParameter().setName("child");
+				child.addPart().setName("firstName").setValue(new StringType("Sam"));
+				child.addPart().setName("lastName").setValue(new StringType("Bench"));
+				child.addPart().setName("gender").setValue(new CodeType(random.nextBoolean() ? AdministrativeGender.FEMALE.toCode() : AdministrativeGender.MALE.toCode()));
+				child.addPart().setName("height").setValue(ReferralFixtures.quantity(50 + random.nextInt(30), "cm", "cm"));
+				child.addPart().setName("weight").setValue(ReferralFixtures.quantity(3 + random.nextInt(8), "kg", "kg"));
+				addBloodPressure(parameters);
+				break;
+			case HYPERTENSION:
+				addMedications(parameters);
+				addVitals(parameters);
+				addDiagnoses(parameters);
+				break;
+			case OBESITY:
+				addAllergies(parameters);
+				addVitals(parameters);
+				addDiagnoses(parameters);
+				break;
+			case TOBACCO_USE_CESSATION:
+				addMedications(parameters);
+				parameters.addParameter("nrtAuthorizationStatus", new CodeType(pick(NRT_AUTHORIZATION_STATUSES)));
+				parameters.addParameter("smokingStatus", new CodeType(pick(SMOKING_STATUSES)));
+				ParametersParameterComponent commPrefs = parameters.addParameter().setName("communicationPreferences");
+				commPrefs.addPart().setName("bestDay").setValue(new StringType(pick(new String[] { "Monday", "Tuesday", "Wednesday", "Thursday", "Friday" })));
+				commPrefs.addPart().setName("bestTime").setValue(new StringType(pick(new String[] { "Morning", "Afternoon", "Evening" })));
+				commPrefs.addPart().setName("leaveMessage").setValue(new StringType(Boolean.toString(random.nextBoolean())));
+				break;
+		}
+
+		return parameters;
+	}
+
+	public Bundle feedback(String placValue, BserTaskBusinessStatus businessStatus) {
+		return MessageBundleFixtures.feedbackMessage(profile.getFeedbackObservations().sample(random), profile.getTextBytes().sample(random), placValue, businessStatus);
+	}
+
+	/**
+	 * @return every status a recipient can send, i.e. all but NULL.
+	 */
+	static BserTaskBusinessStatus[] feedbackStatuses() {
+		List<BserTaskBusinessStatus> retVal = new ArrayList<BserTaskBusinessStatus>();
+		for (BserTaskBusinessStatus businessStatus : BserTaskBusinessStatus.values()) {
+			if (businessStatus != BserTaskBusinessStatus.NULL) {
+				retVal.add(businessStatus);
+			}
+		}
+
+		return retVal.toArray(new BserTaskBusinessStatus[0]);
+	}
+
+	private void addAllergies(Parameters parameters) {
+		int count = profile.getAllergies().sample(random);
+		if (count > 0) {
+			parameters.addParameter().setName("allergies").setResource(fixtures.allergies(count));
+		}
+	}
+
+	private void addMedications(Parameters parameters) {
+		int count = profile.getMedications().sample(random);
+		if (count > 0) {
+			parameters.addParameter().setName("medications").setResource(fixtures.medications(count));
+		}
+	}
+
+	private void addDiagnoses(Parameters parameters) {
+		int count = profile.getDiagnoses().sample(random);
+		for (int i = 0; i < count; i++) {
+			parameters.addParameter().setName("diagnosis").setValue(valueOrReference(pick(DIAGNOSES).copy(), "Condition", ReferralFixtures.CONDITION_ID));
+		}
+	}
+
+	private void addVitals(Parameters parameters) {
+		addBloodPressure(parameters);
+		parameters.addParameter("bodyHeight", ReferralFixtures.quantity(150 + random.nextInt(50), "cm", "cm"));
+		parameters.addParameter().setName("bodyWeight").setValue(
+			valueOrReference(ReferralFixtures.quantity(50 + random.nextInt(100), "kg", "kg"), "Observation", ReferralFixtures.BODY_WEIGHT_ID));
+		parameters.addParameter().setName("bmi").setValue(
+			valueOrReference(ReferralFixtures.quantity(18 + random.nextInt(25), "kg/m2", "kg/m2"), "Observation", ReferralFixtures.BMI_ID));
+	}
+
+	private void addBloodPressure(Parameters parameters) {
+		ParametersParameterComponent bloodPressure = parameters.addParameter().setName("bloodPressure");
+		bloodPressure.addPart().setName("date").setValue(new DateTimeType(new Date()));
+		bloodPressure.addPart().setName("systolic").setValue(ReferralFixtures.quantity(100 + random.nextInt(60), "mm[Hg]", "mmHg"));
+		bloodPressure.addPart().setName("diastolic").setValue(ReferralFixtures.quantity(60 + random.nextInt(40), "mm[Hg]", "mmHg"));
+	}
+
+	private Type valueOrReference(Type value, String resourceType, String id) {
+		if (random.nextDouble() < profile.getReferenceRatio()) {
+			return fixtures.ehrReference(resourceType, id);
+		}
+
+		return value;
+	}
+
+	private Coverage coverage() {
+		Coverage coverage = new Coverage();
+		coverage.setId(UUID.randomUUID().toString());
+		coverage.setStatus(CoverageStatus.ACTIVE);
+		coverage.setBeneficiary(new Reference("Patient/" + ReferralFixtures.PATIENT_ID));
+		coverage.addPayor(new Reference().setDisplay("Bench Health Plan"));
+		coverage.setType(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/v3-ActCode", "HIP", "health insurance plan policy")));
+		return coverage;
+	}
+
+	private <T> T pick(T[] values) {
+		return values[random.nextInt(values.length)];
+	}
+
+	/**
+	 * Points a recorded feedback message at another referral and gives it a new
+	 * MessageHeader id and Bundle identifier so it is not taken for a resend.
+	 */
+	private static Bundle readdress(Bundle recorded, String placValue) {
+		Bundle message = recorded.copy();
+		message.setId(UUID.randomUUID().toString());
+		message.setIdentifier(new Identifier().setSystem("urn:ietf:rfc:3986").setValue("urn:uuid:" + UUID.randomUUID()));
+		for (BundleEntryComponent entry : message.getEntry()) {
+			if (entry.getResource() instanceof MessageHeader) {
+				entry.getResource().setId(UUID.randomUUID().toString());
+				entry.setFullUrl("MessageHeader/" + entry.getResource().getIdElement().getIdPart());
+			} else if (entry.getResource() instanceof Task) {
+				for (Identifier identifier : ((Task) entry.getResource()).getIdentifier()) {
+					if (MessageBundleFixtures.PLAC_SYSTEM.equals(identifier.getSystem())) {
+						identifier.setValue(placValue);
+					}
+				}
+			}
+		}
+
+		return message;
+	}
+
+	private static <T extends org.hl7.fhir.r4.model.Resource> List<T> readNdjson(IParser parser, Path path, Class<T> resourceType) throws IOException {
+		List<T> retVal = new ArrayList<T>();
+		try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isBlank()) {
+					retVal.add(parser.parseResource(resourceType, line));
+				}
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Writes workload.count referrals (service types in turn) to referrals.ndjson
+	 * and as many feedback messages (business statuses in turn) to feedback.ndjson
+	 * under workload.output. The store and EHR stand-ins are started on the load
+	 * test ports so the recorded references resolve when the files are replayed.
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = Integer.getInteger("workload.count", 600);
+		Path output = Paths.get(System.getProperty("workload.output", "target/workload"));
+		Random random = new Random(Long.getLong("workload.seed", 1L));
+		WorkloadProfile profile = WorkloadProfile.fromSystemProperties();
+
+		Files.createDirectories(output);
+		try (StandInServer fhirStore = StandInServer.fhirStore(LoadTestHarness.STORE_PORT, FaultProfile.NONE);
+			StandInServer ehr = StandInServer.fhirStore(LoadTestHarness.EHR_PORT, FaultProfile.NONE);
+			BufferedWriter referrals = Files.newBufferedWriter(output.resolve("referrals.ndjson"), StandardCharsets.UTF_8);
+			BufferedWriter feedback = Files.newBufferedWriter(output.resolve("feedback.ndjson"), StandardCharsets.UTF_8)) {
+			ReferralFixtures fixtures = new ReferralFixtures(fhirStore, ehr, "http://127.0.0.1:" + LoadTestHarness.RECIPIENT_PORT + "/fhir");
+			WorkloadGenerator generator = new WorkloadGenerator(fixtures, profile, random);
+			IParser parser = StaticValues.myFhirContext.newJsonParser().setPrettyPrint(false);
+
+			for (int i = 0; i < count; i++) {
+				referrals.write(parser.encodeResourceToString(generator.nextReferral()));
+				referrals.newLine();
+				feedback.write(parser.encodeResourceToString(generator.nextFeedback(UUID.randomUUID().toString())));
+				feedback.newLine();
+			}
+		}
+
+		System.out.println("Wrote " + count + " referrals and " + count + " feedback messages to " + output.toAbsolutePath() + " [" + profile + "]");
+	}
+}
@@ -0,0 +1,75 @@
+package edu.gatech.chai.bserengine.bench;
+
+/**
+ * Shape of the synthetic workload: how many entries each referral and feedback
+ * message carries and how much free text is in them. Read from system
+ * properties with the workload. prefix, e.g.
+ * -Dworkload.medications=0:20,2:40,5:30,20:10 -Dworkload.referenceRatio=0.5.
+ */
+public class WorkloadProfile {
+	private final SizeDistribution allergies;
+	private final SizeDistribution medications;
+	private final SizeDistribution diagnoses;
+	private final SizeDistribution feedbackObservations;
+	private final SizeDistribution textBytes;
+	private final double referenceRatio;
+
+	public WorkloadProfile(SizeDistribution allergies, SizeDistribution medications, SizeDistribution diagnoses,
+			SizeDistribution feedbackObservations, SizeDistribution textBytes, double referenceRatio) {
+		this.allergies = allergies;
+		this.medications = medications;
+		this.diagnoses = diagnoses;
+		this.feedbackObservations = feedbackObservations;
+		this.textBytes = textBytes;
+		this.referenceRatio = referenceRatio;
+	}
+
+	public static WorkloadProfile fromSystemProperties() {
+		return new WorkloadProfile(
+			SizeDistribution.fromSystemProperty("workload.allergies", "0:40,1:30,3:20,10:10"),
+			SizeDistribution.fromSystemProperty("workload.medications", "0:20,2:40,5:30,20:10"),
+			SizeDistribution.fromSystemProperty("workload.diagnoses", "1:80,2:15,5:5"),
+			SizeDistribution.fromSystemProperty("workload.feedbackObservations", "0:50,3:30,10:15,50:5"),
+			SizeDistribution.fromSystemProperty("workload.textBytes", "0:60,200:30,4000:10"),
+			Double.parseDouble(System.getProperty("workload.referenceRatio", "0.3")));
+	}
+
+	public SizeDistribution getAllergies() {
+		return allergies;
+	}
+
+	public SizeDistribution getMedications() {
+		return medications;
+	}
+
+	public SizeDistribution getDiagnoses() {
+		return diagnoses;
+	}
+
+	/**
+	 * @return section entries in a feedback document, 0 for a status-only feedback message.
+	 */
+	public SizeDistribution getFeedbackObservations() {
+		return feedbackObservations;
+	}
+
+	/**
+	 * @return bytes of free text (notes, concerns) added to a message.
+	 */
+	public SizeDistribution getTextBytes() {
+		return textBytes;
+	}
+
+	/**
+	 * @return share of vitals, HbA1c and diagnoses sent as EHR references instead of values.
+	 */
+	public double getReferenceRatio() {
+		return referenceRatio;
+	}
+
+	@Override
+	public String toString() {
+		return "allergies=" + allergies + ", medications=" + medications + ", diagnoses=" + diagnoses
+			+ ", feedbackObservations=" + feedbackObservations + ", textBytes=" + textBytes + ", referenceRatio=" + referenceRatio;
+	}
+}
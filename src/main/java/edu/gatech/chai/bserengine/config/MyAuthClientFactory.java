@@ -7,14 +7,15 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BasicAuthInterceptor;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import ca.uhn.fhir.rest.server.util.ITestingUiClientFactory;
+import edu.gatech.chai.bserengine.resilience.Destinations;
 
 public class MyAuthClientFactory implements ITestingUiClientFactory {
 
 	@Override
 	public IGenericClient newClient(FhirContext theFhirContext, HttpServletRequest theRequest,
 			String theServerBaseUrl) {
-		// Create a client
-		IGenericClient client = theFhirContext.newRestfulGenericClient(theServerBaseUrl);
+		// Create a client with the timeouts for this server
+		IGenericClient client = Destinations.get(theServerBaseUrl).configure(theFhirContext.newRestfulGenericClient(theServerBaseUrl));
 
 		String authBasic = System.getenv("AUTH_BASIC");
 		String authBearer = System.getenv("AUTH_BEARER");
@@ -31,9 +32,6 @@ public class MyAuthClientFactory implements ITestingUiClientFactory {
 			client.registerInterceptor(new BearerTokenAuthInterceptor(authBearer));
 		}
 
-//		theFhirContext.getRestfulClientFactory().setConnectionRequestTimeout(600000);
-		theFhirContext.getRestfulClientFactory().setSocketTimeout(600000);
-
 		return client;
 	}
 
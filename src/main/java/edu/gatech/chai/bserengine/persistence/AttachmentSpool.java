@@ -0,0 +1,192 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Keeps large attachments of inbound messages out of the heap. While a JSON
+ * body is read, each Attachment.data larger than the threshold is base64
+ * decoded straight into a temporary file and replaced by an extension on the
+ * data element that names the file. HAPI then parses a body without the
+ * attachment, and the engine streams the file to the FHIR store as a Binary
+ * when it stores the resource.
+ *
+ * ATTACHMENT_SPOOL_THRESHOLD_BYTES: decoded size above which an attachment is
+ * spooled (default 1048576; 0 turns spooling off).
+ * ATTACHMENT_SPOOL_DIR: directory for the files (default the system temp directory).
+ */
+public class AttachmentSpool {
+	private static final Logger logger = LoggerFactory.getLogger(AttachmentSpool.class);
+
+	public static final String SPOOLED_DATA_EXTENSION = "urn:bser-engine:spooled-attachment";
+
+	private static final Set<String> resourceSlots = Set.of("resource", "contained");
+
+	private static final long threshold = EnvUtil.getLong("ATTACHMENT_SPOOL_THRESHOLD_BYTES", 1024L * 1024);
+	private static final Path directory = Paths.get(EnvUtil.getString("ATTACHMENT_SPOOL_DIR", System.getProperty("java.io.tmpdir")));
+
+	public static boolean isEnabled() {
+		return threshold > 0;
+	}
+
+	/**
+	 * @return whether the parser is on the name of an Attachment.data field.
+	 */
+	public static boolean isAttachmentData(JsonParser parser) throws IOException {
+		return parser.currentToken() == JsonToken.FIELD_NAME && "data".equals(parser.currentName()) && holdsAttachment(parser.getParsingContext());
+	}
+
+	/**
+	 * Reads the value of the Attachment.data field the parser is on and writes
+	 * the field to the generator, spooled if it is large.
+	 *
+	 * @param spooled receives the files written, for the caller to delete when
+	 *                the request is done
+	 */
+	public static void copyData(JsonParser parser, JsonGenerator generator, List<Path> spooled) throws IOException {
+		if (parser.nextToken() == JsonToken.VALUE_STRING) {
+			spool(parser, generator, spooled);
+		} else {
+			generator.writeFieldName("data");
+			generator.copyCurrentStructure(parser);
+		}
+	}
+
+	/**
+	 * @return the spooled file an extension value names, or null when the value
+	 *         is not one this class wrote.
+	 */
+	public static Path spooledFile(String id) {
+		try {
+			Path file = directory.resolve(spoolFileName(UUID.fromString(id)));
+			return Files.isRegularFile(file) ? file : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public static void delete(List<Path> spooled) {
+		for (Path file : spooled) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.warn("Could not delete spooled attachment " + file + ": " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * The object being read holds Attachment.data, not SampledData.data (decimals,
+	 * not base64), Signature.data, or Binary.data. Only a resource has data
+	 * directly, and the only one that does is Binary, so an object in a resource
+	 * slot (top level, Bundle.entry.resource, Parameters.parameter.resource,
+	 * contained) is a Binary, whether or not its resourceType has been read yet.
+	 * Only Attachments are uploaded from their spooled files.
+	 */
+	private static boolean holdsAttachment(JsonStreamContext object) {
+		JsonStreamContext holder = object.getParent();
+		if (holder != null && holder.inArray()) {
+			holder = holder.getParent();
+		}
+
+		String name = holder == null ? null : holder.getCurrentName();
+		return name != null && !resourceSlots.contains(name) && !name.equals("valueSampledData") && !name.equals("signature");
+	}
+
+	private static void spool(JsonParser parser, JsonGenerator generator, List<Path> spooled) throws IOException {
+		UUID id = UUID.randomUUID();
+		Path file = directory.resolve(spoolFileName(id));
+		try (SpillingOutputStream data = new SpillingOutputStream(file)) {
+			parser.readBinaryValue(data);
+			if (!data.spilled()) {
+				generator.writeFieldName("data");
+				generator.writeBinary(data.buffered());
+				return;
+			}
+		} finally {
+			if (Files.exists(file)) {
+				spooled.add(file);
+			}
+		}
+
+		generator.writeFieldName("_data");
+		generator.writeStartObject();
+		generator.writeArrayFieldStart("extension");
+		generator.writeStartObject();
+		generator.writeStringField("url", SPOOLED_DATA_EXTENSION);
+		generator.writeStringField("valueString", id.toString());
+		generator.writeEndObject();
+		generator.writeEndArray();
+		generator.writeEndObject();
+	}
+
+	private static String spoolFileName(UUID id) {
+		return "bser-attachment-" + id + ".bin";
+	}
+
+	/*
+	 * Holds the decoded bytes in memory up to the threshold, then moves them to
+	 * the file and writes the rest there.
+	 */
+	private static class SpillingOutputStream extends OutputStream {
+		private final Path file;
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private OutputStream disk;
+
+		SpillingOutputStream(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (disk == null && memory.size() + len > threshold) {
+				disk = Files.newOutputStream(file);
+				memory.writeTo(disk);
+				memory = null;
+			}
+
+			if (disk != null) {
+				disk.write(b, off, len);
+			} else {
+				memory.write(b, off, len);
+			}
+		}
+
+		boolean spilled() {
+			return disk != null;
+		}
+
+		byte[] buffered() {
+			return memory.toByteArray();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (disk != null) {
+				disk.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * The engine's own embedded SQLite database, for state that has to survive a
+ * restart but does not belong in the FHIR store.
+ *
+ * LOCAL_DB_DIR: directory for the database (default .bser-engine in the user's
+ * home directory). It is created when missing.
+ * LOCAL_DB_PATH: database file; a relative path is taken under LOCAL_DB_DIR
+ * (default bser-engine.db).
+ * LOCAL_DB_POOL_MAX: pooled connections (default 4).
+ */
+public class LocalDatabase {
+	private static final Logger logger = LoggerFactory.getLogger(LocalDatabase.class);
+
+	// Created on first use, so nothing touches the file unless a feature needs it.
+	private static class Holder {
+		static final BasicDataSource dataSource = createDataSource();
+	}
+
+	public static DataSource getDataSource() {
+		return Holder.dataSource;
+	}
+
+	private static BasicDataSource createDataSource() {
+		Path directory = Paths.get(EnvUtil.getString("LOCAL_DB_DIR", Paths.get(System.getProperty("user.home"), ".bser-engine").toString()));
+		Path path = directory.resolve(EnvUtil.getString("LOCAL_DB_PATH", "bser-engine.db")).toAbsolutePath();
+		try {
+			Files.createDirectories(path.getParent());
+		} catch (IOException e) {
+			// The driver reports it when the connection is opened.
+			logger.error("Could not create the local database directory " + path.getParent() + ": " + e.getMessage());
+		}
+
+		BasicDataSource dataSource = new BasicDataSource();
+		dataSource.setDriverClassName("org.sqlite.JDBC");
+		dataSource.setUrl("jdbc:sqlite:" + path);
+		dataSource.setMaxTotal(EnvUtil.getInt("LOCAL_DB_POOL_MAX", 4));
+		// WAL lets readers run while a write is in progress; busy_timeout waits out the other writers.
+		dataSource.setConnectionInitSqls(Arrays.asList("PRAGMA journal_mode=WAL", "PRAGMA busy_timeout=5000", "PRAGMA synchronous=NORMAL"));
+
+		logger.info("Local database at " + path);
+		return dataSource;
+	}
+
+	/**
+	 * Runs DDL statements (CREATE TABLE IF NOT EXISTS ...).
+	 */
+	public static void execute(String... statements) throws SQLException {
+		try (Connection connection = getDataSource().getConnection(); Statement statement = connection.createStatement()) {
+			for (String sql : statements) {
+				statement.execute(sql);
+			}
+		}
+	}
+}
@@ -0,0 +1,549 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
+import org.hl7.fhir.r4.model.Bundle.SearchEntryMode;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.MessageHeader;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy.Flow;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * FHIR resource store in the engine's local database. Each resource is one row
+ * holding its current version as JSON; status is a column generated from the
+ * JSON, and identifiers (plus the type and MessageHeader of Bundles) are
+ * copied to a token table, both indexed for the searches the engine makes.
+ * Only the latest version is kept.
+ *
+ * When it records changes, every write also adds a row to an outbox table in
+ * the same transaction, for {@link WriteBehindReplicator} to copy the resource
+ * to the remote FHIR store. PATCH is not supported; transactions take PUT
+ * entries only.
+ *
+ * The data of a Binary made by createBinary is kept in a BLOB column of its own
+ * table rather than base64 in the JSON, and is only loaded when the Binary is
+ * read.
+ */
+public class LocalResourceStore implements ResourceStore {
+	// SQLite takes one writer at a time. Writers queue here rather than fail on
+	// SQLITE_BUSY when two of them read a version and then both try to write.
+	private static final ReentrantLock writeLock = new ReentrantLock();
+
+	private final boolean recordChanges;
+	private final String baseUrl;
+
+	/**
+	 * @param baseUrl where the stored resources can be fetched, for the URLs
+	 *        createBinary returns; null to return relative URLs
+	 */
+	public LocalResourceStore(boolean recordChanges, String baseUrl) throws SQLException {
+		this.recordChanges = recordChanges;
+		this.baseUrl = baseUrl == null || baseUrl.isBlank() ? null : baseUrl.replaceAll("/+$", "");
+
+		LocalDatabase.execute(
+			"CREATE TABLE IF NOT EXISTS fhir_resource (resource_type TEXT NOT NULL, id TEXT NOT NULL, version INTEGER NOT NULL, last_updated INTEGER NOT NULL, "
+				+ "content TEXT NOT NULL CHECK (json_valid(content)), status TEXT GENERATED ALWAYS AS (json_extract(content, '$.status')) VIRTUAL, "
+				+ "PRIMARY KEY (resource_type, id))",
+			"CREATE INDEX IF NOT EXISTS fhir_resource_status ON fhir_resource (resource_type, status)",
+			"CREATE TABLE IF NOT EXISTS fhir_token (resource_type TEXT NOT NULL, id TEXT NOT NULL, parameter TEXT NOT NULL, system TEXT, code TEXT NOT NULL)",
+			"CREATE INDEX IF NOT EXISTS fhir_token_code ON fhir_token (resource_type, parameter, code)",
+			"CREATE INDEX IF NOT EXISTS fhir_token_resource ON fhir_token (resource_type, id)",
+			"CREATE TABLE IF NOT EXISTS fhir_outbox (seq INTEGER PRIMARY KEY AUTOINCREMENT, resource_type TEXT NOT NULL, id TEXT NOT NULL)",
+			"CREATE TABLE IF NOT EXISTS fhir_binary (id TEXT PRIMARY KEY, data BLOB NOT NULL)");
+	}
+
+	@Override
+	public IdType create(Resource resource) {
+		return write(resource, UUID.randomUUID().toString(), null);
+	}
+
+	@Override
+	public IdType update(Resource resource) {
+		IdType id = (IdType) resource.getIdElement();
+		if (!id.hasIdPart()) {
+			return create(resource);
+		}
+
+		return write(resource, id.getIdPart(), id.hasVersionIdPart() ? id.getVersionIdPart() : null);
+	}
+
+	private IdType write(Resource resource, String id, String expectedVersion) {
+		String resourceType = resource.fhirType();
+		IdType storedId = new IdType(resourceType, id);
+		resource.setId(storedId);
+		String content = encode(resource);
+
+		writeLock.lock();
+		try (Connection connection = LocalDatabase.getDataSource().getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				long version = writeRow(connection, resource, content, expectedVersion);
+				connection.commit();
+				return new IdType(resourceType, id, String.valueOf(version));
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to persist " + storedId.getValue() + ": " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/*
+	 * Writes the resource, which carries its id, within the caller's transaction.
+	 * @return the new version
+	 */
+	private long writeRow(Connection connection, Resource resource, String content, String expectedVersion) throws SQLException {
+		String resourceType = resource.fhirType();
+		String id = resource.getIdElement().getIdPart();
+		long version = currentVersion(connection, resourceType, id) + 1;
+		if (expectedVersion != null && !expectedVersion.equals(String.valueOf(version - 1))) {
+			throw new PreconditionFailedException(resourceType + "/" + id + " is not at version " + expectedVersion + ".");
+		}
+
+		try (PreparedStatement upsert = connection.prepareStatement(
+				"INSERT OR REPLACE INTO fhir_resource (resource_type, id, version, last_updated, content) VALUES (?, ?, ?, ?, ?)")) {
+			upsert.setString(1, resourceType);
+			upsert.setString(2, id);
+			upsert.setLong(3, version);
+			upsert.setLong(4, System.currentTimeMillis());
+			upsert.setString(5, content);
+			upsert.executeUpdate();
+		}
+
+		deleteTokens(connection, resourceType, id);
+		try (PreparedStatement insert = connection.prepareStatement(
+				"INSERT INTO fhir_token (resource_type, id, parameter, system, code) VALUES (?, ?, ?, ?, ?)")) {
+			for (String[] token : tokens(resource)) {
+				insert.setString(1, resourceType);
+				insert.setString(2, id);
+				insert.setString(3, token[0]);
+				insert.setString(4, token[1]);
+				insert.setString(5, token[2]);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		}
+
+		recordChange(connection, resourceType, id);
+		return version;
+	}
+
+	/*
+	 * PUT entries only, which is what the engine sends: each is written under its
+	 * id, with If-Match checked, all in one database transaction.
+	 */
+	@Override
+	public Bundle transaction(Bundle transaction) {
+		List<String> contents = new ArrayList<String>();
+		for (BundleEntryComponent entry : transaction.getEntry()) {
+			Resource resource = entry.getResource();
+			if (entry.getRequest().getMethod() != HTTPVerb.PUT || resource == null || !resource.getIdElement().hasIdPart()) {
+				throw new NotImplementedOperationException("The local FHIR store only takes PUT entries with an id in a transaction.");
+			}
+			contents.add(encode(resource));
+		}
+
+		Bundle response = new Bundle();
+		response.setType(BundleType.TRANSACTIONRESPONSE);
+		writeLock.lock();
+		try (Connection connection = LocalDatabase.getDataSource().getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				for (int i = 0; i < transaction.getEntry().size(); i++) {
+					BundleEntryComponent entry = transaction.getEntry().get(i);
+					Resource resource = entry.getResource();
+					long version = writeRow(connection, resource, contents.get(i), ifMatchVersion(entry.getRequest().getIfMatch()));
+					response.addEntry().getResponse()
+						.setStatus(version == 1 ? "201 Created" : "200 OK")
+						.setLocation(resource.fhirType() + "/" + resource.getIdElement().getIdPart() + "/_history/" + version);
+				}
+				connection.commit();
+				return response;
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to run a transaction: " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// W/"3" -> 3
+	private static String ifMatchVersion(String ifMatch) {
+		if (ifMatch == null || ifMatch.isBlank()) {
+			return null;
+		}
+
+		String version = ifMatch.trim();
+		if (version.startsWith("W/")) {
+			version = version.substring(2);
+		}
+		return version.replace("\"", "");
+	}
+
+	@Override
+	public Resource patch(String conditionalUrl, Parameters patch) {
+		throw new NotImplementedOperationException("The local FHIR store does not apply PATCH.");
+	}
+
+	@Override
+	public Resource patch(IdType id, Parameters patch) {
+		throw new NotImplementedOperationException("The local FHIR store does not apply PATCH.");
+	}
+
+	/*
+	 * The file is bound to the BLOB as a stream, so it is never base64-encoded into
+	 * the JSON or held as a String. The Binary's row and its data are written in
+	 * one transaction.
+	 */
+	@Override
+	public String createBinary(Path file, String contentType) {
+		Binary binary = new Binary();
+		binary.setContentType(contentType);
+		String id = UUID.randomUUID().toString();
+		binary.setId(new IdType("Binary", id));
+		String content = encode(binary);
+
+		writeLock.lock();
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				InputStream data = Files.newInputStream(file)) {
+			long size = Files.size(file);
+			if (size > Integer.MAX_VALUE) {
+				throw new FHIRException("Attachment of " + size + " bytes is too large for the local FHIR store.");
+			}
+
+			connection.setAutoCommit(false);
+			try {
+				try (PreparedStatement insert = connection.prepareStatement("INSERT OR REPLACE INTO fhir_binary (id, data) VALUES (?, ?)")) {
+					insert.setString(1, id);
+					insert.setBinaryStream(2, data, (int) size);
+					insert.executeUpdate();
+				}
+				writeRow(connection, binary, content, null);
+				connection.commit();
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (IOException e) {
+			throw new FHIRException("Attachment data set aside on receipt could not be read: " + e.getMessage());
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to persist Binary/" + id + ": " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+		}
+
+		return baseUrl == null ? "Binary/" + id : baseUrl + "/Binary/" + id;
+	}
+
+	@Override
+	public <T extends Resource> T read(Class<T> resourceClass, String id) {
+		String resourceType = StaticValues.myFhirContext.getResourceType(resourceClass);
+		T resource = select(resourceType, id, resourceClass);
+		if (resource == null) {
+			throw new ResourceNotFoundException(new IdType(resourceType, id));
+		}
+
+		return resource;
+	}
+
+	/**
+	 * @return the stored resource, or null when there is none.
+	 */
+	public Resource readIfExists(String resourceType, String id) {
+		return select(resourceType, id, null);
+	}
+
+	private <T extends Resource> T select(String resourceType, String id, Class<T> resourceClass) {
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement select = connection.prepareStatement(
+					"SELECT id, version, last_updated, content FROM fhir_resource WHERE resource_type = ? AND id = ?")) {
+			select.setString(1, resourceType);
+			select.setString(2, id);
+			T resource;
+			try (ResultSet resultSet = select.executeQuery()) {
+				resource = resultSet.next() ? toResource(resultSet, resourceType, resourceClass) : null;
+			}
+
+			if (resource instanceof Binary) {
+				readBinaryData(connection, (Binary) resource);
+			}
+			return resource;
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to read " + resourceType + "/" + id + ": " + e.getMessage(), e);
+		}
+	}
+
+	private static void readBinaryData(Connection connection, Binary binary) throws SQLException {
+		try (PreparedStatement select = connection.prepareStatement("SELECT data FROM fhir_binary WHERE id = ?")) {
+			select.setString(1, binary.getIdElement().getIdPart());
+			try (ResultSet resultSet = select.executeQuery()) {
+				if (resultSet.next()) {
+					binary.setData(resultSet.getBytes(1));
+				}
+			}
+		}
+	}
+
+	@Override
+	public OperationOutcome delete(String resourceType, String id) {
+		writeLock.lock();
+		try (Connection connection = LocalDatabase.getDataSource().getConnection()) {
+			connection.setAutoCommit(false);
+			try {
+				try (PreparedStatement delete = connection.prepareStatement("DELETE FROM fhir_resource WHERE resource_type = ? AND id = ?")) {
+					delete.setString(1, resourceType);
+					delete.setString(2, id);
+					delete.executeUpdate();
+				}
+				if ("Binary".equals(resourceType)) {
+					try (PreparedStatement delete = connection.prepareStatement("DELETE FROM fhir_binary WHERE id = ?")) {
+						delete.setString(1, id);
+						delete.executeUpdate();
+					}
+				}
+				deleteTokens(connection, resourceType, id);
+				recordChange(connection, resourceType, id);
+				connection.commit();
+				return null;
+			} catch (SQLException | RuntimeException e) {
+				connection.rollback();
+				throw e;
+			}
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to delete " + resourceType + "/" + id + ": " + e.getMessage(), e);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/*
+	 * The resources the matches reference in the element behind each include
+	 * (Task:subject is Task.for) are added when they are in this store.
+	 */
+	@Override
+	public Bundle search(String resourceType, String parameter, String system, String code, Include... includes) {
+		List<Resource> matches = find(resourceType, parameter, system, code);
+		Bundle searchset = new Bundle();
+		searchset.setType(BundleType.SEARCHSET);
+		searchset.setTotal(matches.size());
+
+		Set<String> added = new HashSet<String>();
+		for (Resource match : matches) {
+			String fullUrl = match.fhirType() + "/" + match.getIdElement().getIdPart();
+			added.add(fullUrl);
+			searchset.addEntry().setFullUrl(fullUrl).setResource(match).getSearch().setMode(SearchEntryMode.MATCH);
+		}
+
+		for (Include include : includes) {
+			String element = includedElement(resourceType, include);
+			if (element == null) {
+				continue;
+			}
+
+			for (Resource match : matches) {
+				Property property = match.getNamedProperty(element);
+				if (property == null) {
+					continue;
+				}
+
+				for (Base value : property.getValues()) {
+					if (!(value instanceof Reference)) {
+						continue;
+					}
+
+					IIdType reference = ((Reference) value).getReferenceElement();
+					if (!reference.hasResourceType() || !reference.hasIdPart() || reference.isAbsolute()
+						|| !added.add(reference.getResourceType() + "/" + reference.getIdPart())) {
+						continue;
+					}
+
+					Resource included = readIfExists(reference.getResourceType(), reference.getIdPart());
+					if (included != null) {
+						searchset.addEntry().setFullUrl(reference.getResourceType() + "/" + reference.getIdPart()).setResource(included).getSearch().setMode(SearchEntryMode.INCLUDE);
+					}
+				}
+			}
+		}
+
+		return searchset;
+	}
+
+	// Task:subject -> for; null unless the search parameter's path is a plain element.
+	private static String includedElement(String resourceType, Include include) {
+		RuntimeSearchParam searchParam = StaticValues.myFhirContext.getResourceDefinition(resourceType).getSearchParam(include.getParamName());
+		String path = searchParam == null ? null : searchParam.getPath();
+		if (path == null || !path.startsWith(resourceType + ".")) {
+			return null;
+		}
+
+		String element = path.substring(resourceType.length() + 1).trim();
+		return element.matches("[A-Za-z]+") ? element : null;
+	}
+
+	private List<Resource> find(String resourceType, String parameter, String system, String code) {
+		String sql;
+		if ("status".equals(parameter)) {
+			sql = "SELECT id, version, last_updated, content FROM fhir_resource WHERE resource_type = ? AND status = ? ORDER BY last_updated DESC";
+		} else {
+			sql = "SELECT r.id, r.version, r.last_updated, r.content FROM fhir_resource r JOIN "
+				+ "(SELECT DISTINCT id FROM fhir_token WHERE resource_type = ? AND parameter = ? AND code = ?" + (system == null ? "" : " AND system = ?") + ") t "
+				+ "ON r.resource_type = ? AND r.id = t.id ORDER BY r.last_updated DESC";
+		}
+
+		List<Resource> found = new ArrayList<Resource>();
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement select = connection.prepareStatement(sql)) {
+			select.setString(1, resourceType);
+			if ("status".equals(parameter)) {
+				select.setString(2, code);
+			} else {
+				select.setString(2, parameter);
+				select.setString(3, code);
+				if (system != null) {
+					select.setString(4, system);
+				}
+				select.setString(system == null ? 4 : 5, resourceType);
+			}
+
+			try (ResultSet resultSet = select.executeQuery()) {
+				while (resultSet.next()) {
+					found.add(toResource(resultSet, resourceType, null));
+				}
+			}
+		} catch (SQLException e) {
+			throw new InternalErrorException("Local FHIR store failed to search " + resourceType + "?" + parameter + "=" + code + ": " + e.getMessage(), e);
+		}
+
+		return found;
+	}
+
+	private static long currentVersion(Connection connection, String resourceType, String id) throws SQLException {
+		try (PreparedStatement select = connection.prepareStatement("SELECT version FROM fhir_resource WHERE resource_type = ? AND id = ?")) {
+			select.setString(1, resourceType);
+			select.setString(2, id);
+			try (ResultSet resultSet = select.executeQuery()) {
+				return resultSet.next() ? resultSet.getLong(1) : 0L;
+			}
+		}
+	}
+
+	private static void deleteTokens(Connection connection, String resourceType, String id) throws SQLException {
+		try (PreparedStatement delete = connection.prepareStatement("DELETE FROM fhir_token WHERE resource_type = ? AND id = ?")) {
+			delete.setString(1, resourceType);
+			delete.setString(2, id);
+			delete.executeUpdate();
+		}
+	}
+
+	private void recordChange(Connection connection, String resourceType, String id) throws SQLException {
+		if (!recordChanges) {
+			return;
+		}
+
+		try (PreparedStatement insert = connection.prepareStatement("INSERT INTO fhir_outbox (resource_type, id) VALUES (?, ?)")) {
+			insert.setString(1, resourceType);
+			insert.setString(2, id);
+			insert.executeUpdate();
+		}
+	}
+
+	/*
+	 * Rows are stored without version and lastUpdated, which come from their
+	 * columns, so a write does not have to change or copy the caller's resource.
+	 * A null class parses into the plain model class of the resource type.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T extends Resource> T toResource(ResultSet resultSet, String resourceType, Class<T> resourceClass) throws SQLException {
+		String content = resultSet.getString("content");
+		T resource = resourceClass == null ? (T) newParser().parseResource(content) : newParser().parseResource(resourceClass, content);
+		String version = String.valueOf(resultSet.getLong("version"));
+		resource.setId(new IdType(resourceType, resultSet.getString("id"), version));
+		resource.getMeta().setVersionId(version);
+		resource.getMeta().setLastUpdated(new Date(resultSet.getLong("last_updated")));
+		return resource;
+	}
+
+	/*
+	 * identifier for every resource that has one; type and message (the
+	 * MessageHeader id) for Bundles.
+	 */
+	private static List<String[]> tokens(Resource resource) {
+		List<String[]> tokens = new ArrayList<String[]>();
+		Property identifiers = resource.getNamedProperty("identifier");
+		if (identifiers != null) {
+			for (Base value : identifiers.getValues()) {
+				Identifier identifier = (Identifier) value;
+				if (identifier.hasValue()) {
+					tokens.add(new String[] { "identifier", identifier.getSystem(), identifier.getValue() });
+				}
+			}
+		}
+
+		if (resource instanceof Bundle) {
+			Bundle bundle = (Bundle) resource;
+			if (bundle.hasType()) {
+				tokens.add(new String[] { "type", bundle.getType().getSystem(), bundle.getType().toCode() });
+			}
+
+			if (bundle.getType() == BundleType.MESSAGE && bundle.getEntryFirstRep().getResource() instanceof MessageHeader) {
+				String messageHeaderId = bundle.getEntryFirstRep().getResource().getIdElement().getIdPart();
+				if (messageHeaderId != null) {
+					tokens.add(new String[] { "message", null, messageHeaderId });
+				}
+			}
+		}
+
+		return tokens;
+	}
+
+	private static String encode(Resource resource) {
+		return NarrativePolicy.call(Flow.STORE, () -> newParser().encodeResourceToString(resource));
+	}
+
+	private static IParser newParser() {
+		return StaticValues.myFhirContext.newJsonParser();
+	}
+}
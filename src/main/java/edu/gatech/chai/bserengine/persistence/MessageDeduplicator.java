@@ -0,0 +1,194 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Remembers the messages $process-message has already processed, by key
+ * (MessageHeader id, Bundle identifier), so a resent message is acknowledged
+ * without touching the FHIR store. Keys are kept in the local database for
+ * the retention period and in a Bloom filter in front of it: a key the filter
+ * has never seen is new without a database read, and only the filter's
+ * positives are looked up. Keys are recorded only after the message was
+ * processed, so a message that failed can be sent again.
+ *
+ * MESSAGE_DEDUP_ENABLED: true to deduplicate (default true).
+ * MESSAGE_DEDUP_RETENTION_HOURS: how long keys are remembered (default 168).
+ * MESSAGE_DEDUP_EXPECTED_KEYS: Bloom filter size, in keys per retention period (default 1000000).
+ */
+public class MessageDeduplicator {
+	private static final Logger logger = LoggerFactory.getLogger(MessageDeduplicator.class);
+
+	public enum Result { NEW, DUPLICATE, IN_FLIGHT }
+
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private final long retentionMillis;
+	private final long expectedKeys;
+	private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+	private final AtomicLong duplicates = new AtomicLong();
+	private volatile BloomFilter bloomFilter;
+	private volatile boolean enabled;
+
+	public MessageDeduplicator(boolean enabled, long retentionMillis, long expectedKeys) {
+		this.enabled = enabled;
+		this.retentionMillis = retentionMillis;
+		this.expectedKeys = expectedKeys;
+		if (!enabled) {
+			return;
+		}
+
+		try {
+			LocalDatabase.execute(
+				"CREATE TABLE IF NOT EXISTS processed_message (message_key TEXT PRIMARY KEY, processed_at INTEGER NOT NULL)",
+				"CREATE INDEX IF NOT EXISTS processed_message_at ON processed_message (processed_at)");
+			rebuild();
+		} catch (SQLException e) {
+			// Without the key store a Bloom positive cannot be confirmed, and dropping
+			// new messages on false positives is worse than processing duplicates.
+			logger.error("Message deduplication is off; the local database is not available: " + e.getMessage(), e);
+			this.enabled = false;
+			return;
+		}
+
+		ScheduledExecutorService pruner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bser-dedup-prune");
+			thread.setDaemon(true);
+			return thread;
+		});
+		pruner.scheduleWithFixedDelay(this::prune, 1, 1, TimeUnit.HOURS);
+
+		EngineMetrics.counter("bser_feedback_duplicates_total", "Feedback messages acknowledged as duplicates", duplicates::get);
+	}
+
+	public static MessageDeduplicator fromEnv() {
+		return new MessageDeduplicator(
+			EnvUtil.getBoolean("MESSAGE_DEDUP_ENABLED", true),
+			TimeUnit.HOURS.toMillis(EnvUtil.getLong("MESSAGE_DEDUP_RETENTION_HOURS", 168L)),
+			EnvUtil.getLong("MESSAGE_DEDUP_EXPECTED_KEYS", 1000000L));
+	}
+
+	/**
+	 * Claims the keys for processing. NEW means the caller must process the
+	 * message and then call complete or abandon with the same keys.
+	 */
+	public Result claim(List<String> keys) {
+		if (!enabled || keys.isEmpty()) {
+			return Result.NEW;
+		}
+
+		List<String> claimed = new ArrayList<String>();
+		for (String key : keys) {
+			if (!inFlight.add(key)) {
+				abandon(claimed);
+				return Result.IN_FLIGHT;
+			}
+			claimed.add(key);
+		}
+
+		for (String key : keys) {
+			if (bloomFilter.mightContain(key) && isRecorded(key)) {
+				abandon(claimed);
+				duplicates.incrementAndGet();
+				return Result.DUPLICATE;
+			}
+		}
+
+		return Result.NEW;
+	}
+
+	public void complete(List<String> keys) {
+		if (!enabled || keys.isEmpty()) {
+			return;
+		}
+
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement insert = connection.prepareStatement("INSERT OR REPLACE INTO processed_message (message_key, processed_at) VALUES (?, ?)")) {
+			long now = System.currentTimeMillis();
+			for (String key : keys) {
+				insert.setString(1, key);
+				insert.setLong(2, now);
+				insert.addBatch();
+			}
+			insert.executeBatch();
+		} catch (SQLException e) {
+			logger.warn("Could not record processed message keys " + keys + ": " + e.getMessage());
+		} finally {
+			for (String key : keys) {
+				bloomFilter.put(key);
+			}
+			abandon(keys);
+		}
+	}
+
+	public void abandon(List<String> keys) {
+		inFlight.removeAll(keys);
+	}
+
+	private boolean isRecorded(String key) {
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement select = connection.prepareStatement("SELECT 1 FROM processed_message WHERE message_key = ? AND processed_at >= ?")) {
+			select.setString(1, key);
+			select.setLong(2, System.currentTimeMillis() - retentionMillis);
+			try (ResultSet resultSet = select.executeQuery()) {
+				return resultSet.next();
+			}
+		} catch (SQLException e) {
+			logger.warn("Could not look up message key " + key + "; processing the message: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Drops keys past the retention period and rebuilds the Bloom filter from the
+	 * rest, as keys cannot be removed from a Bloom filter.
+	 */
+	private void prune() {
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement delete = connection.prepareStatement("DELETE FROM processed_message WHERE processed_at < ?")) {
+			delete.setLong(1, System.currentTimeMillis() - retentionMillis);
+			int deleted = delete.executeUpdate();
+			rebuild();
+			logger.debug("Pruned " + deleted + " processed message keys");
+		} catch (SQLException e) {
+			logger.warn("Could not prune processed message keys: " + e.getMessage());
+		}
+	}
+
+	private void rebuild() throws SQLException {
+		BloomFilter newFilter = new BloomFilter(expectedKeys, FALSE_POSITIVE_RATE);
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement select = connection.prepareStatement("SELECT message_key FROM processed_message WHERE processed_at >= ?")) {
+			select.setLong(1, System.currentTimeMillis() - retentionMillis);
+			try (ResultSet resultSet = select.executeQuery()) {
+				while (resultSet.next()) {
+					newFilter.put(resultSet.getString(1));
+				}
+			}
+		}
+
+		// A key completed while this ran may miss the new filter. Its resend is then
+		// processed again, the same as before deduplication; nothing is dropped.
+		bloomFilter = newFilter;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+}
@@ -0,0 +1,58 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * What $referral-request writes to the FHIR store. The Task, the ServiceRequest
+ * and the Patient are stored in every policy, as feedback messages find the
+ * referral through them. The rest of the referral package is written as:
+ *
+ * ALL: every resource, the document Bundle and the message Bundle (the
+ * package is stored about three times).
+ * MESSAGE_ONLY: the message Bundle only. The other resources get local ids
+ * and live in it. The stored ServiceRequest has no supportingInfo, since the
+ * document Bundle it would reference is not stored on its own.
+ * MANIFEST: every resource once, the document Bundle that
+ * ServiceRequest.supportingInfo references, and a List that references them in
+ * place of the message Bundle. Responses find the referral through the stored
+ * MessageHeader, which focuses on the Task.
+ *
+ * REFERRAL_PERSISTENCE: one of the above (default ALL).
+ */
+public enum ReferralPersistence {
+	ALL, MESSAGE_ONLY, MANIFEST;
+
+	private static final Logger logger = LoggerFactory.getLogger(ReferralPersistence.class);
+
+	public static ReferralPersistence fromEnv() {
+		String value = EnvUtil.getString("REFERRAL_PERSISTENCE", ALL.name());
+		try {
+			return valueOf(value.toUpperCase().replace('-', '_'));
+		} catch (IllegalArgumentException e) {
+			logger.warn("REFERRAL_PERSISTENCE is not one of ALL, MESSAGE_ONLY or MANIFEST (" + value + "). Using ALL");
+			return ALL;
+		}
+	}
+
+	/**
+	 * @return whether the resources of the package are stored one by one.
+	 */
+	public boolean storesResources() {
+		return this != MESSAGE_ONLY;
+	}
+
+	public boolean storesDocumentBundle() {
+		return this != MESSAGE_ONLY;
+	}
+
+	public boolean storesMessageBundle() {
+		return this != MANIFEST;
+	}
+
+	public boolean storesManifest() {
+		return this == MANIFEST;
+	}
+}
@@ -0,0 +1,200 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+import ca.uhn.fhir.model.api.Include;
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.PreferReturnEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.gclient.IQuery;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import edu.gatech.chai.bserengine.resilience.AdaptiveConcurrencyLimiter;
+import edu.gatech.chai.bserengine.resilience.Destination;
+import edu.gatech.chai.bserengine.resilience.Destinations;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy.Flow;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+
+/**
+ * {@link ResourceStore} on a FHIR server, called through its Destination
+ * (timeouts, retries, circuit breaker). Every write attempt takes a slot of
+ * the store write limiter, shared by all FHIR stores, and the resources it
+ * encodes get a narrative only if NARRATIVE_STORE asks for one.
+ */
+public class RemoteResourceStore implements ResourceStore {
+	// Adapts how many writes we send to the FHIR store at once to keep its latency near the target.
+	private static final AdaptiveConcurrencyLimiter writeLimiter =
+		AdaptiveConcurrencyLimiter.fromEnv("FHIR store writes", "STORE_WRITE").registerMetrics("bser_store_write");
+
+	private final String baseUrl;
+	private final Destination destination;
+	private final Supplier<BearerTokenAuthInterceptor> authorization;
+
+	/**
+	 * @param authorization gives the bearer token interceptor for the store, or null when it needs none
+	 */
+	public RemoteResourceStore(String baseUrl, Supplier<BearerTokenAuthInterceptor> authorization) {
+		this.baseUrl = baseUrl;
+		this.destination = Destinations.get(baseUrl);
+		this.authorization = authorization;
+	}
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	private IGenericClient client() {
+		IGenericClient genericClient = destination.configure(StaticValues.myFhirContext.newRestfulGenericClient(baseUrl));
+		BearerTokenAuthInterceptor authInterceptor = authorization.get();
+		if (authInterceptor != null) {
+			genericClient.registerInterceptor(authInterceptor);
+		}
+		return genericClient;
+	}
+
+	private <T> T write(boolean idempotent, Supplier<T> action) {
+		return NarrativePolicy.call(Flow.STORE, () -> destination.call(idempotent, writeLimiter, action));
+	}
+
+	@Override
+	public IdType create(Resource resource) {
+		IGenericClient genericClient = client();
+		MethodOutcome createResponse = write(false, () -> genericClient.create().resource(resource).execute());
+		if (!createResponse.getCreated()) {
+			OperationOutcome oo = (OperationOutcome) createResponse.getOperationOutcome();
+			if (oo != null && !oo.isEmpty()) {
+				boolean errorOccurred = false;
+				for (OperationOutcomeIssueComponent ooIssue : oo.getIssue()) {
+					if (IssueSeverity.ERROR == ooIssue.getSeverity() || IssueSeverity.FATAL == ooIssue.getSeverity()) {
+						errorOccurred = true;
+						break;
+					}
+				}
+
+				if (errorOccurred) {
+					String msg = (oo.getText()==null||oo.getText().isEmpty())?"":", "+oo.getText().getDivAsString();
+					throw new FHIRException("FHIR store failed to persist, " + resource.getIdElement().toString() + msg);
+				}
+			} else {
+				throw new FHIRException("FHIR store failed to persist, " + resource.getIdElement().toString());
+			}
+		}
+
+		IdType createdId = (IdType) createResponse.getId();
+		return new IdType(createdId.getBaseUrl(), createdId.getResourceType(), createdId.getIdPart(), createdId.getVersionIdPart());
+	}
+
+	@Override
+	public IdType update(Resource resource) {
+		IGenericClient genericClient = client();
+		MethodOutcome updateResponse = write(true, () -> genericClient.update().resource(resource).execute());
+		IBaseOperationOutcome oo = updateResponse.getOperationOutcome();
+		if (oo != null) {
+			throw new FHIRException("BSeR enginen failed to persist external resource, " + resource.getIdElement().toString());
+		}
+
+		return (IdType) updateResponse.getId();
+	}
+
+	@Override
+	public <T extends Resource> T read(Class<T> resourceClass, String id) {
+		IGenericClient genericClient = client();
+		return destination.call(true, () -> genericClient.read().resource(resourceClass).withId(id).execute());
+	}
+
+	@Override
+	public OperationOutcome delete(String resourceType, String id) {
+		IGenericClient genericClient = client();
+		MethodOutcome deleteResponse = write(true, () -> genericClient.delete().resourceById(resourceType, id).execute());
+		return (OperationOutcome) deleteResponse.getOperationOutcome();
+	}
+
+	@Override
+	public Bundle search(String resourceType, String parameter, String system, String code, Include... includes) {
+		TokenClientParam tokenParam = new TokenClientParam(parameter);
+		IQuery<IBaseBundle> searchWhere = client().search().forResource(resourceType)
+			.where(system == null ? tokenParam.exactly().code(code) : tokenParam.exactly().systemAndCode(system, code));
+		for (Include include : includes) {
+			searchWhere = searchWhere.include(include);
+		}
+
+		IQuery<IBaseBundle> query = searchWhere;
+		return destination.call(true, () -> query.returnBundle(Bundle.class).execute());
+	}
+
+	@Override
+	public Resource patch(String conditionalUrl, Parameters patch) {
+		IGenericClient genericClient = client();
+		MethodOutcome patchResponse = write(true, () -> genericClient.patch()
+			.withFhirPatch(patch)
+			.conditionalByUrl(conditionalUrl)
+			.prefer(PreferReturnEnum.REPRESENTATION)
+			.execute());
+		return patchResponse.getResource() instanceof Resource ? (Resource) patchResponse.getResource() : null;
+	}
+
+	@Override
+	public Resource patch(IdType id, Parameters patch) {
+		IGenericClient genericClient = client();
+		MethodOutcome patchResponse = write(true, () -> genericClient.patch()
+			.withFhirPatch(patch)
+			.withId(id)
+			.prefer(PreferReturnEnum.REPRESENTATION)
+			.execute());
+		return patchResponse.getResource() instanceof Resource ? (Resource) patchResponse.getResource() : null;
+	}
+
+	@Override
+	public Bundle transaction(Bundle transaction) {
+		IGenericClient genericClient = client();
+		return write(false, () -> genericClient.transaction().withBundle(transaction).execute());
+	}
+
+	/*
+	 * POSTs the file to [base]/Binary as the raw content, so it goes to the store
+	 * without being read into memory.
+	 */
+	@Override
+	public String createBinary(Path file, String contentType) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.parseMediaType(contentType));
+		BearerTokenAuthInterceptor authInterceptor = authorization.get();
+		if (authInterceptor != null) {
+			headers.setBearerAuth(authInterceptor.getToken());
+		}
+
+		String binaryUrl = baseUrl.endsWith("/") ? baseUrl + "Binary" : baseUrl + "/Binary";
+		ResponseEntity<String> response = write(false,
+			() -> new RestTemplate(destination.streamingRequestFactory())
+				.exchange(binaryUrl, HttpMethod.POST, new HttpEntity<FileSystemResource>(new FileSystemResource(file), headers), String.class));
+
+		URI location = response.getHeaders().getLocation();
+		if (location == null) {
+			throw new FHIRException("FHIR store did not return the location of the Binary created for an attachment.");
+		}
+
+		IdType binaryId = new IdType(location.toString());
+		return binaryId.withServerBase(binaryId.hasBaseUrl() ? binaryId.getBaseUrl() : baseUrl, "Binary").toVersionless().getValue();
+	}
+}
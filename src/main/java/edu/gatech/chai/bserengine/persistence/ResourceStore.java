@@ -0,0 +1,77 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.nio.file.Path;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.model.api.Include;
+
+/**
+ * The operations the engine needs from the store that keeps its resources,
+ * either the local database ({@link LocalResourceStore}) or a FHIR server
+ * ({@link RemoteResourceStore}). Failures are reported with the HAPI server
+ * exceptions a remote FHIR store would produce: ResourceNotFoundException for
+ * a missing resource, PreconditionFailedException when a versioned update
+ * finds a newer version, and NotImplementedOperationException for an
+ * operation the store does not support.
+ */
+public interface ResourceStore {
+	/**
+	 * Stores a new resource under a new id, whatever id it carries.
+	 *
+	 * @return the id given to it, with its version
+	 */
+	IdType create(Resource resource);
+
+	/**
+	 * Stores the resource under its id, creating it when there is none yet. When
+	 * the id carries a version, the update only succeeds if that is still the
+	 * latest one.
+	 *
+	 * @return the id with the new version
+	 */
+	IdType update(Resource resource);
+
+	<T extends Resource> T read(Class<T> resourceClass, String id);
+
+	/**
+	 * @return the OperationOutcome the store sent back, or null
+	 */
+	OperationOutcome delete(String resourceType, String id);
+
+	/**
+	 * Token search on one parameter, newest first, as a searchset Bundle. The
+	 * resources the matches reference through the includes are added to it.
+	 *
+	 * @param system code system, or null to match any
+	 */
+	Bundle search(String resourceType, String parameter, String system, String code, Include... includes);
+
+	/**
+	 * Applies a FHIRPath Patch to the one resource the conditional URL
+	 * (Type?parameters) matches.
+	 *
+	 * @return the patched resource, or null when the store did not return it
+	 */
+	Resource patch(String conditionalUrl, Parameters patch);
+
+	Resource patch(IdType id, Parameters patch);
+
+	/**
+	 * Stores all entries of the transaction Bundle, or none of them.
+	 *
+	 * @return the transaction-response Bundle, with entries in request order
+	 */
+	Bundle transaction(Bundle transaction);
+
+	/**
+	 * Stores the file as a Binary without reading it into memory.
+	 *
+	 * @return the absolute URL of the Binary, without its version
+	 */
+	String createBinary(Path file, String contentType);
+}
@@ -0,0 +1,189 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.bserengine.resilience.TransientFailures;
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Copies what the engine wrote to its {@link LocalResourceStore} to the remote
+ * FHIR store in the background, in the order it was written. Each change stays
+ * in the outbox table until the remote store took it, so changes survive a
+ * restart and an unreachable store only delays them. A change the remote store
+ * rejects for a reason other than being down or overloaded is logged and dropped,
+ * so it does not hold up the ones behind it.
+ *
+ * WRITE_BEHIND_INTERVAL_MS: how often the outbox is drained (default 1000).
+ * WRITE_BEHIND_MAX_BACKOFF_MS: longest wait after the remote store failed (default 60000).
+ */
+public class WriteBehindReplicator {
+	private static final Logger logger = LoggerFactory.getLogger(WriteBehindReplicator.class);
+
+	private static final int BATCH_SIZE = 100;
+
+	// One replicator per process; the outbox is shared.
+	private static final AtomicBoolean started = new AtomicBoolean();
+
+	private final LocalResourceStore store;
+	private final ResourceStore target;
+	private final long intervalMillis = EnvUtil.getLong("WRITE_BEHIND_INTERVAL_MS", 1000L);
+	private final long maxBackoffMillis = EnvUtil.getLong("WRITE_BEHIND_MAX_BACKOFF_MS", 60000L);
+
+	private final AtomicLong replicated = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile long backoffMillis;
+	private volatile long resumeAt;
+
+	private WriteBehindReplicator(LocalResourceStore store, ResourceStore target) {
+		this.store = store;
+		this.target = target;
+	}
+
+	/**
+	 * Starts draining the outbox to the target, unless a replicator is running
+	 * already. Resources are stored there under their local ids, without a
+	 * version, so they are written unconditionally.
+	 */
+	public static void start(LocalResourceStore store, ResourceStore target) {
+		if (!started.compareAndSet(false, true)) {
+			return;
+		}
+
+		WriteBehindReplicator replicator = new WriteBehindReplicator(store, target);
+		EngineMetrics.gauge("bser_write_behind_pending", "Local store changes not yet copied to the FHIR store", replicator::pending);
+		EngineMetrics.counter("bser_write_behind_replicated_total", "Local store changes copied to the FHIR store", replicator.replicated::get);
+		EngineMetrics.counter("bser_write_behind_dropped_total", "Local store changes the FHIR store rejected", replicator.dropped::get);
+
+		ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "bser-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(replicator::drain, replicator.intervalMillis, replicator.intervalMillis, TimeUnit.MILLISECONDS);
+		logger.info("Write-behind to the FHIR store started");
+	}
+
+	private void drain() {
+		if (System.currentTimeMillis() < resumeAt) {
+			return;
+		}
+
+		try {
+			boolean more = true;
+			while (more) {
+				more = drainBatch();
+			}
+			backoffMillis = 0;
+		} catch (RuntimeException e) {
+			backoffMillis = Math.min(maxBackoffMillis, backoffMillis == 0 ? intervalMillis : backoffMillis * 2);
+			resumeAt = System.currentTimeMillis() + backoffMillis;
+			logger.warn("Write-behind to the FHIR store paused for " + backoffMillis + " ms: " + e.getMessage());
+		} catch (SQLException e) {
+			logger.error("Could not read the write-behind outbox: " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * @return whether the batch was full, so there may be more.
+	 */
+	private boolean drainBatch() throws SQLException {
+		try (Connection connection = LocalDatabase.getDataSource().getConnection()) {
+			List<String[]> batch = new ArrayList<String[]>();
+			try (PreparedStatement select = connection.prepareStatement("SELECT resource_type, id FROM fhir_outbox ORDER BY seq LIMIT " + BATCH_SIZE);
+					ResultSet resultSet = select.executeQuery()) {
+				while (resultSet.next()) {
+					batch.add(new String[] { resultSet.getString(1), resultSet.getString(2) });
+				}
+			}
+
+			Set<String> sent = new HashSet<String>();
+			for (String[] change : batch) {
+				String resourceType = change[0];
+				String id = change[1];
+				if (!sent.add(resourceType + "/" + id)) {
+					continue;
+				}
+
+				// Changes up to here are covered by the version read next, however many there are.
+				long upTo = latestChange(connection, resourceType, id);
+				try {
+					replicate(resourceType, id);
+					replicated.incrementAndGet();
+				} catch (RuntimeException e) {
+					if (TransientFailures.isTransient(e)) {
+						throw e;
+					}
+
+					dropped.incrementAndGet();
+					logger.error("FHIR store rejected " + resourceType + "/" + id + " from the local store; not retrying: " + e.getMessage());
+				}
+
+				try (PreparedStatement delete = connection.prepareStatement("DELETE FROM fhir_outbox WHERE resource_type = ? AND id = ? AND seq <= ?")) {
+					delete.setString(1, resourceType);
+					delete.setString(2, id);
+					delete.setLong(3, upTo);
+					delete.executeUpdate();
+				}
+			}
+
+			return batch.size() == BATCH_SIZE;
+		}
+	}
+
+	private static long latestChange(Connection connection, String resourceType, String id) throws SQLException {
+		try (PreparedStatement select = connection.prepareStatement("SELECT MAX(seq) FROM fhir_outbox WHERE resource_type = ? AND id = ?")) {
+			select.setString(1, resourceType);
+			select.setString(2, id);
+			try (ResultSet resultSet = select.executeQuery()) {
+				return resultSet.next() ? resultSet.getLong(1) : 0L;
+			}
+		}
+	}
+
+	/*
+	 * Sends the latest local version, which may be newer than the change that
+	 * queued it.
+	 */
+	private void replicate(String resourceType, String id) {
+		Resource resource = store.readIfExists(resourceType, id);
+		if (resource == null) {
+			try {
+				target.delete(resourceType, id);
+			} catch (ResourceNotFoundException e) {
+				// Never made it to the FHIR store; nothing to delete.
+			}
+		} else {
+			resource.setId(resource.getIdElement().toUnqualifiedVersionless());
+			resource.getMeta().setVersionIdElement(null);
+			target.update(resource);
+		}
+	}
+
+	private long pending() {
+		try (Connection connection = LocalDatabase.getDataSource().getConnection();
+				PreparedStatement select = connection.prepareStatement("SELECT COUNT(*) FROM fhir_outbox");
+				ResultSet resultSet = select.executeQuery()) {
+			return resultSet.next() ? resultSet.getLong(1) : 0L;
+		} catch (SQLException e) {
+			return -1L;
+		}
+	}
+}
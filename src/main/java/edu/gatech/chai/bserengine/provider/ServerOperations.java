@@ -16,19 +16,31 @@
 package edu.gatech.chai.bserengine.provider;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Binary;
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.CodeableConcept;
@@ -37,8 +49,10 @@ import org.hl7.fhir.r4.model.Composition;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Coverage;
 import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.DomainResource;
 import org.hl7.fhir.r4.model.Endpoint;
 import org.hl7.fhir.r4.model.Enumeration;
+import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.HealthcareService;
 import org.hl7.fhir.r4.model.HumanName;
 import org.hl7.fhir.r4.model.IdType;
@@ -56,6 +70,11 @@ import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.ListResource;
+import org.hl7.fhir.r4.model.ListResource.ListEntryComponent;
+import org.hl7.fhir.r4.model.ListResource.ListMode;
+import org.hl7.fhir.r4.model.ListResource.ListStatus;
 import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.MessageHeader.MessageDestinationComponent;
@@ -75,11 +94,12 @@ import org.json.JSONObject;
 import org.json.simple.parser.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationContext;
 import org.springframework.web.context.ContextLoaderListener;
-import org.springframework.web.context.WebApplicationContext;
 
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
+import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Composition.CompositionStatus;
 import org.hl7.fhir.r4.model.Composition.SectionComponent;
 import org.hl7.fhir.r4.model.Endpoint.EndpointStatus;
@@ -103,16 +123,26 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.Include;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.annotation.IdParam;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
-import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.annotation.Read;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.PreferReturnEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.api.ServerValidationModeEnum;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.IQuery;
-import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
+import ca.uhn.fhir.rest.server.exceptions.NotImplementedOperationException;
+import ca.uhn.fhir.rest.server.exceptions.PreconditionFailedException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceVersionConflictException;
+import ca.uhn.fhir.util.UrlUtil;
 import edu.gatech.chai.BSER.model.BSERCoverage;
 import edu.gatech.chai.BSER.model.BSERDiagnosis;
 import edu.gatech.chai.BSER.model.BSEREducationLevel;
@@ -145,16 +175,71 @@ import edu.gatech.chai.USCore.model.USCoreConditionProblemsAndHealthConcerns;
 import edu.gatech.chai.USCore.model.USCoreSmokingStatusObservation;
 import edu.gatech.chai.USCore.model.util.USCoreSmokingStatusObservationUtil;
 import edu.gatech.chai.USCore.model.USCoreAllergyIntolerance;
+import edu.gatech.chai.bserengine.persistence.AttachmentSpool;
+import edu.gatech.chai.bserengine.persistence.LocalResourceStore;
+import edu.gatech.chai.bserengine.persistence.MessageDeduplicator;
+import edu.gatech.chai.bserengine.persistence.ReferralPersistence;
+import edu.gatech.chai.bserengine.persistence.RemoteResourceStore;
+import edu.gatech.chai.bserengine.persistence.ResourceStore;
+import edu.gatech.chai.bserengine.persistence.WriteBehindReplicator;
+import edu.gatech.chai.bserengine.resilience.Deadline;
+import edu.gatech.chai.bserengine.resilience.DeadlineExceededException;
+import edu.gatech.chai.bserengine.resilience.Destination;
+import edu.gatech.chai.bserengine.resilience.Destinations;
+import edu.gatech.chai.bserengine.resilience.IdempotencyCache;
+import edu.gatech.chai.bserengine.security.OIDCInterceptor;
 import edu.gatech.chai.bserengine.security.RecipientAA;
 import edu.gatech.chai.bserengine.utilities.BserTaskBusinessStatus;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+import edu.gatech.chai.bserengine.utilities.FeedbackDocuments;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy.Flow;
+import edu.gatech.chai.bserengine.utilities.PayloadLogger;
 import edu.gatech.chai.bserengine.utilities.StaticValues;
+import edu.gatech.chai.bserengine.utilities.StripedLock;
+import edu.gatech.chai.bserengine.utilities.ThrowFHIRExceptions;
 
 public class ServerOperations {
 	private static final Logger logger = LoggerFactory.getLogger(ServerOperations.class);
 
+	public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	public static final String IDEMPOTENT_REPLAYED_HEADER = "Idempotent-Replayed";
+	public static final String PREFERENCE_APPLIED_HEADER = "Preference-Applied";
+
+	// $referral-request responses by idempotency key, so retries and double submits do not create a second referral.
+	private static final IdempotencyCache<Parameters> referralIdempotency = new IdempotencyCache<Parameters>("referral",
+		EnvUtil.getInt("IDEMPOTENCY_MAX_ENTRIES", 10000),
+		EnvUtil.getLong("IDEMPOTENCY_TTL_SECONDS", 600L) * 1000L,
+		Parameters::copy).registerMetrics("bser_referral_idempotency");
+
 	SmartBackendServices smartBackendServices;
 	RecipientAA recipientAA;
-	String fhirStore = null;
+	MessageDeduplicator messageDeduplicator;
+
+	// Where the engine's resources are kept: the local store (LOCAL_STORE) or FHIRSTORE_URL. Null when there is neither.
+	ResourceStore resourceStore;
+	// FHIRSTORE_ALLOWED_URLS: the FHIR stores other than FHIRSTORE_URL that a $referral-request may name in bserProviderBaseUrl.
+	private Map<String, ResourceStore> allowedStores = Collections.emptyMap();
+	// The allowed store the $referral-request running on this thread named. Never set for other requests.
+	private final ThreadLocal<String> requestFhirStore = new ThreadLocal<String>();
+
+	// Serializes Task updates per referral (PLAC identifier) within this engine.
+	private static final StripedLock taskLocks = new StripedLock(EnvUtil.getInt("TASK_LOCK_STRIPES", 256));
+
+	// Versioned (If-Match) updates of Task and ServiceRequest.
+	private static final boolean optimisticLocking = EnvUtil.getBoolean("OPTIMISTIC_LOCKING", true);
+	private static final int updateConflictRetries = EnvUtil.getInt("UPDATE_CONFLICT_RETRIES", 3);
+
+	// Status-only feedback is applied with PATCH.
+	private static final boolean feedbackPatchEnabled = EnvUtil.getBoolean("FEEDBACK_PATCH_ENABLED", true);
+
+	// REFERRAL_PERSISTENCE: which parts of the referral package $referral-request stores.
+	private static final ReferralPersistence referralPersistence = ReferralPersistence.fromEnv();
+
+	// FEEDBACK_INGEST_MODE: "calls" stores feedback one resource at a time, "transaction" in one transaction Bundle.
+	private static final boolean feedbackTransaction = "transaction".equalsIgnoreCase(EnvUtil.getString("FEEDBACK_INGEST_MODE", "calls"));
+
+	final String fhirStore;
 	String bserEndpointUrl = null;
 
 	public static enum ServiceType {
@@ -195,17 +280,119 @@ public class ServerOperations {
 	public static String BserReferralServiceRequestProfile = "http://hl7.org/fhir/us/bser/StructureDefinition/BSeR-ReferralServiceRequest";
 	public static String BserReferralFeedbackDocumentBundleProfile = "http://hl7.org/fhir/us/bser/StructureDefinition/BSeR-ReferralFeedbackDocumentBundle";
 	
-	public ServerOperations() {
-		WebApplicationContext context = ContextLoaderListener.getCurrentWebApplicationContext();
+	/***
+	 * @param messageDeduplicator the server's one deduplicator; it owns database tables and a pruner thread
+	 */
+	public ServerOperations(MessageDeduplicator messageDeduplicator) {
+		this(ContextLoaderListener.getCurrentWebApplicationContext(), System.getenv("FHIRSTORE_URL"), System.getenv("BSERENDPOINTE_URL"), messageDeduplicator);
+	}
+
+	/***
+	 * Creates the operations outside of the servlet container. This is used by the
+	 * benchmarks, which bring up their own application context and stand-in FHIR store.
+	 * @param context application context providing SmartBackendServices and RecipientAA
+	 * @param fhirStore FHIR store base URL (FHIRSTORE_URL)
+	 * @param bserEndpointUrl this engine's base URL (BSERENDPOINTE_URL)
+	 * @param messageDeduplicator the server's one deduplicator
+	 */
+	public ServerOperations(ApplicationContext context, String fhirStore, String bserEndpointUrl, MessageDeduplicator messageDeduplicator) {
 		smartBackendServices = context.getBean(SmartBackendServices.class);
 		recipientAA = context.getBean(RecipientAA.class);
+		this.messageDeduplicator = messageDeduplicator;
 
-		fhirStore = System.getenv("FHIRSTORE_URL");
-		bserEndpointUrl = System.getenv("BSERENDPOINTE_URL");
+		this.fhirStore = fhirStore;
+		this.bserEndpointUrl = bserEndpointUrl;
 		if (bserEndpointUrl == null || bserEndpointUrl.isBlank()) {
 			logger.error("BSER Endpoint MUST set in the environment variable.");
 			System.exit(-1);
 		}
+
+		openResourceStore();
+		allowedStores = openAllowedStores(EnvUtil.getString("FHIRSTORE_ALLOWED_URLS", ""));
+	}
+
+	/*
+	 * LOCAL_STORE: "primary" keeps the engine's resources in the embedded store only,
+	 * "write-behind" keeps them there and copies them to the FHIR store in the
+	 * background, "off" uses the FHIR store only. The default is "primary" without
+	 * FHIRSTORE_URL and "off" with it.
+	 */
+	private void openResourceStore() {
+		boolean remoteStore = fhirStore != null && !fhirStore.isBlank();
+		resourceStore = remoteStore ? remoteStore(fhirStore) : null;
+
+		String mode = EnvUtil.getString("LOCAL_STORE", remoteStore ? "off" : "primary");
+		if (!"primary".equalsIgnoreCase(mode) && !"write-behind".equalsIgnoreCase(mode)) {
+			return;
+		}
+
+		boolean writeBehind = "write-behind".equalsIgnoreCase(mode);
+		if (writeBehind && !remoteStore) {
+			logger.warn("LOCAL_STORE=write-behind needs FHIRSTORE_URL. Keeping resources in the local store only.");
+			writeBehind = false;
+		}
+
+		LocalResourceStore localStore;
+		try {
+			// Copies reach the FHIR store under the local ids; without one, the engine serves the Binaries itself.
+			localStore = new LocalResourceStore(writeBehind, writeBehind ? fhirStore : bserEndpointUrl);
+		} catch (SQLException e) {
+			logger.error("The local FHIR store is not available; " + (remoteStore ? "using " + fhirStore + " only" : "resources will not be stored") + ": " + e.getMessage(), e);
+			return;
+		}
+
+		if (writeBehind) {
+			// The local copy is the one that counts, so the FHIR store must accept ids set by the client.
+			WriteBehindReplicator.start(localStore, resourceStore);
+		}
+		resourceStore = localStore;
+		logger.info("Engine resources are kept in the local store" + (writeBehind ? " and copied to " + fhirStore : ""));
+	}
+
+	private ResourceStore remoteStore(String storeUrl) {
+		return new RemoteResourceStore(storeUrl,
+			() -> smartBackendServices.setFhirServerUrl(storeUrl).isActive() ? getBearerTokenAuthInterceptor() : null);
+	}
+
+	private Map<String, ResourceStore> openAllowedStores(String storeUrls) {
+		Map<String, ResourceStore> stores = new HashMap<String, ResourceStore>();
+		for (String storeUrl : storeUrls.split(",")) {
+			storeUrl = storeUrl.trim();
+			if (!storeUrl.isEmpty() && !storeUrl.equals(fhirStore)) {
+				stores.put(storeUrl, remoteStore(storeUrl));
+			}
+		}
+
+		return Collections.unmodifiableMap(stores);
+	}
+
+	/*
+	 * The store in effect for this request: the engine's, or the allowed one a
+	 * $referral-request named in bserProviderBaseUrl. Null when there is none.
+	 */
+	private ResourceStore store() {
+		String storeUrl = requestFhirStore.get();
+		return storeUrl == null ? resourceStore : allowedStores.get(storeUrl);
+	}
+
+	/*
+	 * The base URL of the FHIR store in effect for this request.
+	 */
+	private String fhirStore() {
+		String storeUrl = requestFhirStore.get();
+		return storeUrl == null ? fhirStore : storeUrl;
+	}
+
+	/*
+	 * The store to look referrals up in; feedback cannot be matched without one.
+	 */
+	private ResourceStore requireStore() {
+		ResourceStore store = store();
+		if (store == null) {
+			throw new FHIRException("No FHIR store to look the referral up in. Set FHIRSTORE_URL or LOCAL_STORE.");
+		}
+
+		return store;
 	}
 
 	BearerTokenAuthInterceptor getBearerTokenAuthInterceptor() {
@@ -233,6 +420,39 @@ public class ServerOperations {
 		return authInterceptor;
 	}
 
+	/***
+	 * Opens a connection to the FHIR store and gets the access tokens for the store
+	 * and the recipient ahead of the first referral. Called by the warm-up. Failures
+	 * are logged and left for the first request to run into.
+	 */
+	public void primeConnections() {
+		StaticValues.myFhirContext.getRestfulClientFactory().setServerValidationMode(ServerValidationModeEnum.NEVER);
+
+		if (fhirStore != null && !fhirStore.isBlank()) {
+			try {
+				Destination destination = Destinations.get(fhirStore);
+				IGenericClient genericClient = destination.configure(StaticValues.myFhirContext.newRestfulGenericClient(fhirStore));
+				if (smartBackendServices.setFhirServerUrl(fhirStore).isActive()) {
+					BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
+					if (authInterceptor != null) {
+						genericClient.registerInterceptor(authInterceptor);
+					}
+				}
+				destination.call(true, () -> genericClient.capabilities().ofType(CapabilityStatement.class).execute());
+			} catch (Exception e) {
+				logger.warn("Could not reach the FHIR store (" + fhirStore + ") during warm-up: " + e.getMessage());
+			}
+		}
+
+		if (recipientAA.isReady()) {
+			try {
+				recipientAA.getAccessToken();
+			} catch (Exception e) {
+				logger.warn("Could not get the recipient access token during warm-up: " + e.getMessage());
+			}
+		}
+	}
+
 	private IBaseResource pullResourceFromFhirServer(Reference reference) {
 		IBaseResource response = null;
 		IGenericClient genericClient;
@@ -240,12 +460,13 @@ public class ServerOperations {
 
 		// check if this is local or full. If local, we are talking to the 
 		if (reference.getReferenceElement().isLocal()) {
-			fhirBaseUrl = fhirStore;
+			fhirBaseUrl = fhirStore();
 		} else {
 			fhirBaseUrl = reference.getReferenceElement().getBaseUrl();
 		}
 
-		genericClient = StaticValues.myFhirContext.newRestfulGenericClient(fhirBaseUrl);
+		Destination destination = Destinations.get(fhirBaseUrl);
+		genericClient = destination.configure(StaticValues.myFhirContext.newRestfulGenericClient(fhirBaseUrl));
 		if (smartBackendServices.setFhirServerUrl(fhirBaseUrl).isActive()) {
 			BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
 			genericClient.registerInterceptor(authInterceptor);
@@ -253,31 +474,25 @@ public class ServerOperations {
 
 		String resourceType = reference.getReferenceElement().getResourceType();
 		String resourceId = reference.getReferenceElement().getIdPart();
-		System.out.println("resourceType:"+resourceType+" and resourceId:"+resourceId);
-		response = genericClient.read().resource(resourceType).withId(resourceId).prettyPrint().execute();
+		logger.debug("Pulling " + resourceType + "/" + resourceId + " from " + fhirBaseUrl);
+		response = destination.call(true, () -> genericClient.read().resource(resourceType).withId(resourceId).execute());
 
-		IParser parser = StaticValues.myFhirContext.newJsonParser();
-		String responseString = parser.encodeResourceToString(response);
-		System.out.println("Response: \n" + responseString);
+		PayloadLogger.log("Pulled " + resourceType + "/" + resourceId, response);
 		
 		return response;
 	}	
 
 	private Bundle searchResourceFromFhirServer(String fhirServerUrl, Class<? extends IBaseResource> resourceClass, ICriterion<?> theCriterion, Include... includes) {
 		IGenericClient genericClient;
-		String fhirServerBaseUrl = fhirStore;
+		String fhirServerBaseUrl = fhirStore();
 
 		if (fhirServerUrl != null && !fhirServerUrl.isBlank()) {
-			// Check if the fhirServer is the same as the authBackendServices server.
-			// If not, we need to setup this service.
-			if (!fhirServerUrl.equals(fhirServerBaseUrl)) {
-				smartBackendServices.setFhirServerUrl(fhirServerUrl);
-				fhirServerBaseUrl = fhirServerUrl;
-			}
+			fhirServerBaseUrl = fhirServerUrl;
 		}
 
-		genericClient = StaticValues.myFhirContext.newRestfulGenericClient(fhirServerBaseUrl);
-		if (smartBackendServices.isActive()) {
+		Destination destination = Destinations.get(fhirServerBaseUrl);
+		genericClient = destination.configure(StaticValues.myFhirContext.newRestfulGenericClient(fhirServerBaseUrl));
+		if (smartBackendServices.setFhirServerUrl(fhirServerBaseUrl).isActive()) {
 			BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
 			genericClient.registerInterceptor(authInterceptor);
 		}
@@ -289,91 +504,528 @@ public class ServerOperations {
 			}
 		}
 
-		return searchWhere.returnBundle(Bundle.class).execute();
+		IQuery<IBaseBundle> query = searchWhere;
+		return destination.call(true, () -> query.returnBundle(Bundle.class).execute());
+	}
+
+	/*
+	 * Saves a resource of the referral package that feedback processing never
+	 * looks up. Under REFERRAL_PERSISTENCE=MESSAGE_ONLY it is not stored on its own;
+	 * it gets a local id instead, so references to it resolve within the message Bundle.
+	 */
+	private void savePackageResource (Resource resource) {
+		if (referralPersistence.storesResources()) {
+			saveResource(resource);
+		} else {
+			assignLocalId(resource);
+		}
+	}
+
+	private static void assignLocalId (Resource resource) {
+		if (resource != null && !resource.getIdElement().hasIdPart()) {
+			resource.setId(new IdType(resource.fhirType(), UUID.randomUUID().toString()));
+		}
+	}
+
+	/*
+	 * Lightweight record of a referral message for REFERRAL_PERSISTENCE=MANIFEST: a
+	 * List that references the stored resources the message Bundle carried, the
+	 * document Bundle among them.
+	 */
+	private static ListResource referralManifest (Bundle messageBundle, Reference subjectReference) {
+		ListResource manifest = new ListResource();
+		manifest.setStatus(ListStatus.CURRENT);
+		manifest.setMode(ListMode.SNAPSHOT);
+		manifest.setTitle("BSeR referral message");
+		manifest.setSubject(subjectReference);
+		manifest.setDate(messageBundle.hasTimestamp() ? messageBundle.getTimestamp() : new Date());
+		if (messageBundle.hasIdentifier()) {
+			manifest.addIdentifier(messageBundle.getIdentifier().copy());
+		}
+
+		for (BundleEntryComponent entry : messageBundle.getEntry()) {
+			addManifestItem(manifest, entry.getResource());
+		}
+
+		return manifest;
+	}
+
+	private static void addManifestItem (ListResource manifest, Resource resource) {
+		if (resource == null || !resource.getIdElement().hasIdPart()) {
+			return;
+		}
+
+		String reference = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+		for (ListEntryComponent item : manifest.getEntry()) {
+			if (reference.equals(item.getItem().getReference())) {
+				return;
+			}
+		}
+		manifest.addEntry().setItem(new Reference(reference));
+	}
+
+	/*
+	 * The Task a stored MessageHeader focuses on. Under REFERRAL_PERSISTENCE=MANIFEST
+	 * the referral's MessageHeader is stored on its own, under the id a response
+	 * message echoes.
+	 */
+	private Task taskOfMessageHeader (String messageHeaderId) {
+		ResourceStore store = requireStore();
+		MessageHeader messageHeader;
+		try {
+			messageHeader = store.read(MessageHeader.class, messageHeaderId);
+		} catch (ResourceNotFoundException e) {
+			throw new FHIRException("Failed to find an original message for the response message. Original Message ID = " + messageHeaderId);
+		}
+
+		Reference focus = messageHeader.getFocusFirstRep();
+		if (!"Task".equals(focus.getReferenceElement().getResourceType()) || !focus.getReferenceElement().hasIdPart()) {
+			return null;
+		}
+
+		try {
+			return store.read(Task.class, focus.getReferenceElement().getIdPart());
+		} catch (ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	private ServiceRequest serviceRequestOfTask (Task task) {
+		if (task == null || !task.getFocus().getReferenceElement().hasIdPart()) {
+			return null;
+		}
+
+		try {
+			return requireStore().read(ServiceRequest.class, task.getFocus().getReferenceElement().getIdPart());
+		} catch (ResourceNotFoundException e) {
+			return null;
+		}
+	}
+
+	/*
+	 * The stored version of a resource that a stored message carried.
+	 */
+	private <T extends Resource> T readCurrent (Class<T> resourceClass, T resource) {
+		try {
+			return requireStore().read(resourceClass, resource.getIdElement().getIdPart());
+		} catch (ResourceNotFoundException e) {
+			throw new FHIRException(resource.fhirType() + "/" + resource.getIdElement().getIdPart() + " is no longer in the FHIR store.");
+		}
 	}
 
 	private void saveResource (IBaseResource resource) {
-		if (fhirStore == null || fhirStore.isBlank() || resource == null) {
+		ResourceStore store = store();
+		if (store == null || resource == null) {
 			return;
 		}
 
-		IGenericClient genericClient = StaticValues.myFhirContext.newRestfulGenericClient(fhirStore);
-		if (smartBackendServices.setFhirServerUrl(fhirStore).isActive()) {
-			BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
-			genericClient.registerInterceptor(authInterceptor);
+		// we may have versioned Id from the store. However, we will always deal with the latest version.
+		IdType createdId = store.create((Resource) resource);
+		resource.setId(createdId.toVersionless());
+		Deadline.recordProgress("created " + createdId.getResourceType() + "/" + createdId.getIdPart());
+	}
+
+	/*
+	 * Updates a resource we read or created earlier. When the resource carries a
+	 * version, HAPI sends it as If-Match, so a write made in the meantime by another
+	 * feedback message or engine node is not overwritten. On 412 the latest version
+	 * is read, the change is applied to it again, and the update is retried.
+	 */
+	private <T extends DomainResource> void updateResource (T resource, Consumer<? super T> change) {
+		ResourceStore store = store();
+		if (store == null || resource == null) {
+			return;
 		}
 
-		MethodOutcome createResponse = genericClient.create().resource(resource).execute();
-		if (!createResponse.getCreated()) {
-			OperationOutcome oo = (OperationOutcome) createResponse.getOperationOutcome();
-			if (oo != null && !oo.isEmpty()) {
-				boolean errorOccurred = false;
-				for (OperationOutcomeIssueComponent ooIssue : oo.getIssue()) {
-					if (IssueSeverity.ERROR == ooIssue.getSeverity() || IssueSeverity.FATAL == ooIssue.getSeverity()) {
-						errorOccurred = true;
+		IdType myIdType = (IdType) resource.getIdElement();
+		String myBaseUrl = myIdType.getBaseUrl();
+		String myIdPart = myIdType.getIdPart();
+		String myResourceType = myIdType.getResourceType();
+		String myVersion = optimisticLocking ? myIdType.getVersionIdPart() : null;
+		resource.setId(new IdType(myBaseUrl, myResourceType, myIdPart, myVersion));
+
+		T current = resource;
+		IdType updatedId;
+		for (int attempt = 0; ; attempt++) {
+			try {
+				updatedId = store.update(current);
+				break;
+			} catch (PreconditionFailedException e) {
+				if (attempt >= updateConflictRetries) {
+					throw new ResourceVersionConflictException(myResourceType + "/" + myIdPart + " was changed by another writer " + (attempt + 1) + " times while updating it.");
+				}
+
+				logger.debug(myResourceType + "/" + myIdPart + " changed since version " + current.getIdElement().getVersionIdPart() + ". Re-reading and re-applying the change.");
+				@SuppressWarnings("unchecked")
+				Class<T> resourceClass = (Class<T>) resource.getClass();
+				current = store.read(resourceClass, myIdPart);
+				change.accept(current);
+			}
+		}
+
+		if (current != resource) {
+			// Leave the caller holding what was stored, so a later update starts from it.
+			copyState(current, resource);
+		}
+
+		resource.setId(updatedId);
+		Deadline.recordProgress("updated " + myResourceType + "/" + myIdPart);
+	}
+
+	private void updateResource (Task task) {
+		updateResource(task, taskChange(task));
+	}
+
+	private void updateResource (ServiceRequest serviceRequest) {
+		ServiceRequestStatus status = serviceRequest.getStatus();
+		updateResource(serviceRequest, latest -> latest.setStatus(status));
+	}
+
+	/*
+	 * The change this engine makes to a Task, to apply again on top of a newer
+	 * version: its status and business status, and whichever of its outputs and
+	 * identifiers the newer version lacks.
+	 */
+	private Consumer<Task> taskChange (Task task) {
+		TaskStatus status = task.getStatus();
+		CodeableConcept businessStatus = task.hasBusinessStatus() ? task.getBusinessStatus().copy() : null;
+		List<TaskOutputComponent> outputs = new ArrayList<TaskOutputComponent>();
+		for (TaskOutputComponent output : task.getOutput()) {
+			outputs.add(output.copy());
+		}
+		List<Identifier> identifiers = new ArrayList<Identifier>();
+		for (Identifier identifier : task.getIdentifier()) {
+			identifiers.add(identifier.copy());
+		}
+
+		return latest -> {
+			latest.setStatus(status);
+			if (businessStatus != null) {
+				latest.setBusinessStatus(businessStatus.copy());
+			}
+
+			for (TaskOutputComponent output : outputs) {
+				boolean present = false;
+				for (TaskOutputComponent latestOutput : latest.getOutput()) {
+					if (output.getValue() != null && output.getValue().equalsDeep(latestOutput.getValue())) {
+						present = true;
 						break;
 					}
 				}
+				if (!present) {
+					latest.addOutput(output.copy());
+				}
+			}
 
-				if (errorOccurred) {
-					String msg = (oo.getText()==null||oo.getText().isEmpty())?"":", "+oo.getText().getDivAsString();
-					throw new FHIRException("FHIR store failed to persist, " + resource.getIdElement().toString() + msg);
+			for (Identifier identifier : identifiers) {
+				Coding type = identifier.getType().getCodingFirstRep();
+				Identifier latestIdentifier = type.hasSystem() && type.hasCode() ? getIdentifierByType(latest, type) : null;
+				if (latestIdentifier != null) {
+					identifier.copyValues(latestIdentifier);
+				} else if (latest.getIdentifier().stream().noneMatch(identifier::equalsDeep)) {
+					latest.addIdentifier(identifier.copy());
 				}
+			}
+		};
+	}
+
+	private void copyState (DomainResource from, DomainResource to) {
+		if (from instanceof Task && to instanceof Task) {
+			((Task) from).copyValues((Task) to);
+		} else if (from instanceof ServiceRequest && to instanceof ServiceRequest) {
+			((ServiceRequest) from).copyValues((ServiceRequest) to);
+		}
+	}
+
+	/*
+	 * Status-only feedback: one conditional FHIRPath PATCH of the Task found by its
+	 * PLAC identifier, which returns the patched Task, and one PATCH of the
+	 * ServiceRequest it focuses on. When the ServiceRequest PATCH fails after the
+	 * Task was patched, the ServiceRequest is read and updated in full, so the two
+	 * do not end up with different statuses. Returns false when the store cannot
+	 * take the PATCH (the local store never does), or more than one Task has the
+	 * identifier, so the caller falls back to reading and updating the resources.
+	 */
+	private boolean patchTaskStatus (String PLACvalue, CodeableConcept businessStatus, Identifier fillIdentifier) {
+		TaskStatus taskStatus = BserTaskBusinessStatus.taskStatusFromCodeableConcept(businessStatus);
+		ServiceRequestStatus serviceRequestStatus = BserTaskBusinessStatus.serviceRequestStatusFromCodeableConcept(businessStatus);
+		ResourceStore store = store();
+		if (store == null || taskStatus == TaskStatus.NULL || serviceRequestStatus == ServiceRequestStatus.NULL) {
+			return false;
+		}
+
+		Parameters taskPatch = new Parameters();
+		addPatchOperation(taskPatch, "delete", "Task.businessStatus", null, null);
+		addPatchOperation(taskPatch, "add", "Task", "businessStatus", BserTaskBusinessStatus.bserTaskBusinessStatusFromCode(businessStatus.getCodingFirstRep().getCode()).getCodeableConcept());
+		addPatchOperation(taskPatch, "replace", "Task.status", null, new CodeType(taskStatus.toCode()));
+		if (fillIdentifier != null) {
+			addPatchOperation(taskPatch, "delete", "Task.identifier.where(type.coding.where(system='http://terminology.hl7.org/CodeSystem/v2-0203' and code='FILL').exists())", null, null);
+			addPatchOperation(taskPatch, "add", "Task", "identifier", fillIdentifier.copy());
+		}
+
+		Resource patchedResource;
+		try {
+			patchedResource = store.patch("Task?identifier=" + UrlUtil.escapeUrlParam(PLACvalue), taskPatch);
+		} catch (ResourceNotFoundException e) {
+			throw new FHIRException("NO Matching Task Found.");
+		} catch (PreconditionFailedException | MethodNotAllowedException | NotImplementedOperationException e) {
+			logger.debug("PATCH of Task?identifier=" + PLACvalue + " not applied (" + e.getStatusCode() + "). Updating the whole Task.");
+			return false;
+		}
+		Deadline.recordProgress("patched Task?identifier=" + PLACvalue);
+
+		Parameters serviceRequestPatch = new Parameters();
+		addPatchOperation(serviceRequestPatch, "replace", "ServiceRequest.status", null, new CodeType(serviceRequestStatus.toCode()));
+
+		Task patchedTask = patchedResource instanceof Task ? (Task) patchedResource : null;
+		try {
+			if (patchedTask != null && patchedTask.getFocus().getReferenceElement().hasIdPart()) {
+				IdType serviceRequestId = new IdType("ServiceRequest", patchedTask.getFocus().getReferenceElement().getIdPart());
+				store.patch(serviceRequestId, serviceRequestPatch);
+				Deadline.recordProgress("patched " + serviceRequestId.getValue());
 			} else {
-				throw new FHIRException("FHIR store failed to persist, " + resource.getIdElement().toString());
+				String serviceRequestUrl = "ServiceRequest?_has:Task:focus:identifier=" + UrlUtil.escapeUrlParam(PLACvalue);
+				try {
+					store.patch(serviceRequestUrl, serviceRequestPatch);
+					Deadline.recordProgress("patched " + serviceRequestUrl);
+				} catch (ResourceNotFoundException e) {
+					// The Task has no ServiceRequest in focus. The full update would have skipped it too.
+				}
+			}
+		} catch (DeadlineExceededException e) {
+			throw e;
+		} catch (BaseServerResponseException e) {
+			// The Task is already patched; do not leave its ServiceRequest behind.
+			logger.debug("PATCH of the ServiceRequest of Task?identifier=" + PLACvalue + " failed (" + e.getStatusCode() + "). Updating the whole ServiceRequest.");
+			ServiceRequest serviceRequest = patchedTask != null ? serviceRequestOfTask(patchedTask) : serviceRequestOfTask(PLACvalue);
+			if (serviceRequest != null) {
+				serviceRequest.setStatus(serviceRequestStatus);
+				updateResource(serviceRequest);
 			}
 		}
 
-		// we may have versioned Id from server. However, we will always deal with the latest version.
-		// Thus, we only capture baseUrl, resourceType, and IdPart.
-		String myBaseUrl = createResponse.getId().getBaseUrl();
-		String myResourceType = createResponse.getId().getResourceType();
-		String myIdPart = createResponse.getId().getIdPart();
-		IdType myIdType = new IdType(myBaseUrl, myResourceType, myIdPart, null);
+		return true;
+	}
+
+	/*
+	 * The ServiceRequest in focus of the Task with this PLAC identifier, or null.
+	 */
+	private ServiceRequest serviceRequestOfTask (String PLACvalue) {
+		Bundle searchBundle = requireStore().search("Task", "identifier", null, PLACvalue, Task.INCLUDE_FOCUS);
+		for (BundleEntryComponent entry : searchBundle.getEntry()) {
+			if (entry.getResource() instanceof ServiceRequest) {
+				return (ServiceRequest) entry.getResource();
+			}
+		}
 
-		resource.setId(myIdType);
+		return null;
 	}
 
-	private void updateResource (IBaseResource resource) {
-		if (fhirStore == null || fhirStore.isBlank() || resource == null) {
+	/*
+	 * Saves a resource received in a feedback message. Its spooled attachments
+	 * were already stored as Binaries when the message was received. In
+	 * transaction mode the resource gets its id here and is only queued;
+	 * commitFeedbackTransaction writes it later together with the Task and
+	 * ServiceRequest.
+	 */
+	private void saveFeedbackResource (Resource resource, List<Resource> pendingWrites) {
+		if (pendingWrites == null) {
+			saveResource(resource);
 			return;
 		}
 
-		IGenericClient genericClient = StaticValues.myFhirContext.newRestfulGenericClient(fhirStore);
-		if (smartBackendServices.setFhirServerUrl(fhirStore).isActive()) {
-			BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
-			genericClient.registerInterceptor(authInterceptor);
+		resource.setId(new IdType(resource.fhirType(), UUID.randomUUID().toString()));
+		pendingWrites.add(resource);
+	}
+
+	/*
+	 * Streams each attachment that AttachmentSpool set aside when the message came
+	 * in to the store as a Binary, and points the attachment at it.
+	 * @return the URLs of the Binaries created
+	 */
+	private List<String> uploadSpooledAttachments (Resource resource) {
+		List<String> binaryUrls = new ArrayList<String>();
+		ResourceStore store = store();
+		if (!AttachmentSpool.isEnabled() || store == null) {
+			return binaryUrls;
 		}
 
-		IdType myIdType = (IdType) resource.getIdElement();
-		String myBaseUrl = myIdType.getBaseUrl();
-		String myIdPart = myIdType.getIdPart();
-		String myResourceType = myIdType.getResourceType();
-		IdType noHistoryIdType = new IdType(myBaseUrl, myResourceType, myIdPart, null);
-		resource.setId(noHistoryIdType);
+		for (Attachment attachment : StaticValues.myFhirContext.newTerser().getAllPopulatedChildElementsOfType(resource, Attachment.class)) {
+			Extension spooledData = attachment.getDataElement().getExtensionByUrl(AttachmentSpool.SPOOLED_DATA_EXTENSION);
+			if (spooledData == null || spooledData.getValue() == null) {
+				continue;
+			}
+
+			Path file = AttachmentSpool.spooledFile(spooledData.getValue().primitiveValue());
+			if (file == null) {
+				throw new FHIRException("Attachment data set aside on receipt is no longer available (" + spooledData.getValue().primitiveValue() + ").");
+			}
 
-		MethodOutcome updateResponse = genericClient.update().resource(resource).execute();
-		IBaseOperationOutcome oo = updateResponse.getOperationOutcome();
-		if (oo != null) {
-			throw new FHIRException("BSeR enginen failed to persist external resource, " + resource.getIdElement().toString());
+			long size;
+			try {
+				size = Files.size(file);
+			} catch (IOException e) {
+				throw new FHIRException("Attachment data set aside on receipt could not be read: " + e.getMessage());
+			}
+
+			String binaryUrl = store.createBinary(file, attachment.hasContentType() ? attachment.getContentType() : "application/octet-stream");
+			Deadline.recordProgress("created " + binaryUrl);
+			binaryUrls.add(binaryUrl);
+			attachment.setUrl(binaryUrl);
+			attachment.setDataElement(null);
+			if (size <= Integer.MAX_VALUE) {
+				attachment.setSize((int) size);
+			}
 		}
 
-		resource.setId(updateResponse.getId());
+		return binaryUrls;
 	}
 
-	private OperationOutcome deleteResource(IBaseResource resource) {
-		if (fhirStore == null || fhirStore.isBlank() || resource == null) {
-			return null;
+	/*
+	 * Removes the stored copy of a message that failed, and the Binaries its
+	 * attachments were stored as. Best effort: what is left behind only costs
+	 * space, so a failure is logged.
+	 */
+	private void deleteStoredMessage (ResourceStore store, Bundle message, List<String> binaryUrls) {
+		if (message != null && message.getIdElement().hasIdPart()) {
+			try {
+				store.delete("Bundle", message.getIdElement().getIdPart());
+			} catch (RuntimeException e) {
+				logger.warn("Could not delete Bundle/" + message.getIdElement().getIdPart() + " after the feedback transaction failed: " + e.getMessage());
+			}
 		}
 
-		IGenericClient genericClient = StaticValues.myFhirContext.newRestfulGenericClient(fhirStore);
-		if (smartBackendServices.setFhirServerUrl(fhirStore).isActive()) {
-			BearerTokenAuthInterceptor authInterceptor = getBearerTokenAuthInterceptor();
-			genericClient.registerInterceptor(authInterceptor);
+		for (String binaryUrl : binaryUrls) {
+			try {
+				store.delete("Binary", new IdType(binaryUrl).getIdPart());
+			} catch (RuntimeException e) {
+				logger.warn("Could not delete " + binaryUrl + " after the feedback transaction failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/*
+	 * Writes the queued feedback resources and the Task and ServiceRequest updates
+	 * as one transaction: all of it is stored or none of it is. The new resources
+	 * are PUT with the ids given to them, so the references between them are known
+	 * before the call. The Task and ServiceRequest carry their version as If-Match;
+	 * when another writer got there first, the latest versions are read, the
+	 * change is applied to them again, and the transaction is retried.
+	 *
+	 * Spooled attachments were streamed to the store as Binaries when the message
+	 * was received, outside the transaction, so they never have to be held in
+	 * memory; the stored copy of the message points at them too. When the
+	 * transaction fails, that copy and those Binaries are deleted again, so the
+	 * resent message starts clean. If the engine stops in between, they stay.
+	 */
+	private void commitFeedbackTransaction (List<Resource> pendingWrites, Task task, ServiceRequest serviceRequest, Bundle message, List<String> messageBinaryUrls) {
+		ResourceStore store = store();
+		if (store == null) {
+			return;
 		}
 
-		MethodOutcome createResponse = genericClient.delete().resource(resource).execute();
-		return (OperationOutcome) createResponse.getOperationOutcome();
+		try {
+			writeFeedbackTransaction(store, pendingWrites, task, serviceRequest);
+		} catch (RuntimeException e) {
+			deleteStoredMessage(store, message, messageBinaryUrls);
+			throw e;
+		}
+	}
+
+	private void writeFeedbackTransaction (ResourceStore store, List<Resource> pendingWrites, Task task, ServiceRequest serviceRequest) {
+		Consumer<Task> taskChange = taskChange(task);
+		ServiceRequestStatus serviceRequestStatus = serviceRequest == null ? null : serviceRequest.getStatus();
+		Task currentTask = task;
+		ServiceRequest currentServiceRequest = serviceRequest;
+		Bundle transactionResponse;
+		for (int attempt = 0; ; attempt++) {
+			Bundle transaction = new Bundle();
+			transaction.setType(BundleType.TRANSACTION);
+			for (Resource resource : pendingWrites) {
+				addTransactionPut(transaction, resource);
+			}
+			if (currentServiceRequest != null) {
+				addTransactionPut(transaction, currentServiceRequest);
+			}
+			addTransactionPut(transaction, currentTask);
+
+			try {
+				transactionResponse = store.transaction(transaction);
+				break;
+			} catch (PreconditionFailedException | ResourceVersionConflictException e) {
+				if (attempt >= updateConflictRetries) {
+					throw new ResourceVersionConflictException("Task/" + task.getIdPart() + " was changed by another writer " + (attempt + 1) + " times while storing the feedback.");
+				}
+
+				logger.debug("Feedback transaction for Task/" + task.getIdPart() + " lost a race. Re-reading and re-applying the change.");
+				currentTask = store.read(Task.class, task.getIdPart());
+				taskChange.accept(currentTask);
+				if (serviceRequest != null) {
+					currentServiceRequest = store.read(ServiceRequest.class, serviceRequest.getIdPart());
+					currentServiceRequest.setStatus(serviceRequestStatus);
+				}
+			}
+		}
+
+		if (currentTask != task) {
+			// Leave the caller holding what was stored, so a later update starts from it.
+			copyState(currentTask, task);
+		}
+		if (currentServiceRequest != serviceRequest) {
+			copyState(currentServiceRequest, serviceRequest);
+		}
+
+		// Entries come back in the order they were sent.
+		List<Resource> written = new ArrayList<Resource>(pendingWrites);
+		if (serviceRequest != null) {
+			written.add(serviceRequest);
+		}
+		written.add(task);
+		List<BundleEntryComponent> responseEntries = transactionResponse.getEntry();
+		for (int i = 0; i < written.size() && i < responseEntries.size(); i++) {
+			String location = responseEntries.get(i).getResponse().getLocation();
+			if (location != null && !location.isBlank()) {
+				IdType locationId = new IdType(location);
+				written.get(i).setId(new IdType(locationId.getResourceType(), locationId.getIdPart(), locationId.getVersionIdPart()));
+			}
+		}
+
+		Deadline.recordProgress("stored feedback for Task/" + task.getIdPart() + " in one transaction of " + written.size() + " resources");
+	}
+
+	private void addTransactionPut (Bundle transaction, Resource resource) {
+		IdType id = (IdType) resource.getIdElement();
+		String url = resource.fhirType() + "/" + id.getIdPart();
+		BundleEntryComponent entry = transaction.addEntry();
+		entry.setFullUrl(url);
+		entry.setResource(resource);
+		entry.getRequest().setMethod(HTTPVerb.PUT).setUrl(url);
+		if (optimisticLocking && id.hasVersionIdPart()) {
+			entry.getRequest().setIfMatch("W/\"" + id.getVersionIdPart() + "\"");
+		}
+	}
+
+	private static void addPatchOperation (Parameters patch, String type, String path, String name, Type value) {
+		ParametersParameterComponent operation = patch.addParameter().setName("operation");
+		operation.addPart().setName("type").setValue(new CodeType(type));
+		operation.addPart().setName("path").setValue(new StringType(path));
+		if (name != null) {
+			operation.addPart().setName("name").setValue(new StringType(name));
+		}
+		if (value != null) {
+			operation.addPart().setName("value").setValue(value);
+		}
+	}
+
+	private OperationOutcome deleteResource(IBaseResource resource) {
+		ResourceStore store = store();
+		if (store == null || resource == null || !resource.getIdElement().hasIdPart()) {
+			return null;
+		}
+
+		OperationOutcome oo = store.delete(resource.fhirType(), resource.getIdElement().getIdPart());
+		Deadline.recordProgress("deleted " + resource.fhirType() + "/" + resource.getIdElement().getIdPart());
+		return oo;
 	}
 
 	private OperationOutcome constructErrorOO(String fhirPath, String message) {
@@ -453,21 +1105,15 @@ public class ServerOperations {
 
 	Patient searchPatientFromFhirStore(Patient patient) {
 		Patient patientFound = null;
+		ResourceStore store = store();
+		if (store == null) {
+			return null;
+		}
 
 		for (Identifier patientIdentifier : patient.getIdentifier()) {
 			String system = patientIdentifier.getSystem();
 			String code = patientIdentifier.getValue();
-			ICriterion<TokenClientParam> criteria;
-			if (system != null && !system.isBlank()) {
-				criteria = Patient.IDENTIFIER.exactly().systemAndCode(system, code);
-			} else {
-				criteria = Patient.IDENTIFIER.exactly().code(code);
-			}
-
-			Bundle searchBundle = searchResourceFromFhirServer(
-				fhirStore, 
-				Patient.class, 
-				criteria);
+			Bundle searchBundle = store.search("Patient", "identifier", (system == null || system.isBlank()) ? null : system, code);
 			
 			if (searchBundle != null && !searchBundle.isEmpty()) {
 				List<BundleEntryComponent> searchBundleEntry = searchBundle.getEntry();
@@ -481,6 +1127,20 @@ public class ServerOperations {
 		return patientFound;
 	}
 
+	/**
+	 * Serves the Binaries the local store holds. Attachments of stored feedback
+	 * point here when the engine keeps its resources locally with no FHIR store
+	 * behind it (LOCAL_STORE=primary).
+	 */
+	@Read(type = Binary.class)
+	public Binary readBinary(@IdParam IdType theId) {
+		if (!(resourceStore instanceof LocalResourceStore)) {
+			throw new ResourceNotFoundException(theId);
+		}
+
+		return resourceStore.read(Binary.class, theId.getIdPart());
+	}
+
 	/***
 	 * processReferral - processes the Referral Request.
 	 * @param theServiceRequest
@@ -506,6 +1166,11 @@ public class ServerOperations {
 	 * @param theChild
 	 * @param theSmokingStatus
 	 * @param theCommunicationPreferences
+	 * @param theTimeoutMs time budget in milliseconds for the whole referral. It can only shorten the
+	 *        one from the X-Request-Timeout-Ms header or the server default. When it runs out, a 504
+	 *        with an OperationOutcome listing what was already written is returned.
+	 * @param theRequestDetails the HTTP request. A repeat of an earlier request (same Idempotency-Key
+	 *        header, or the same ServiceRequest id and identifiers) gets the earlier response.
 	 * @return
 	 */
 	@Operation(name="$referral-request")
@@ -532,7 +1197,177 @@ public class ServerOperations {
 		@OperationParam(name="nrtAuthorizationStatus") CodeType theNrtAuthorizationStatus,
 		@OperationParam(name="child")  ParametersParameterComponent theChild,
 		@OperationParam(name="smokingStatus") CodeType theSmokingStatus,
-		@OperationParam(name="communicationPreferences") ParametersParameterComponent theCommunicationPreferences
+		@OperationParam(name="communicationPreferences") ParametersParameterComponent theCommunicationPreferences,
+		@OperationParam(name="timeoutMs") IntegerType theTimeoutMs,
+		@OperationParam(name="return") CodeType theReturn,
+		RequestDetails theRequestDetails
+	) {
+		if (theTimeoutMs != null && theTimeoutMs.getValue() != null) {
+			Deadline.start(theTimeoutMs.getValue());
+		}
+
+		PreferReturnEnum returnPreference = referralReturnPreference(theRequestDetails, theReturn);
+		Parameters returnParameters;
+		try {
+			returnParameters = referralIdempotency.execute(referralIdempotencyKey(theRequestDetails, theServiceRequest),
+				() -> runReferral(
+					theServiceRequest,
+					thePatient,
+					theRequester,
+					theCoverage,
+					theBserProviderBaseUrl,
+					theServiceType,
+					theEducationLevel,
+					theEmploymentStatus,
+					theAllergies,
+					theBloodPressure,
+					theBodyHeight,
+					theBodyWeight,
+					theBmi,
+					theDiagnosis,
+					theIsBabyLatching,
+					theMomsConcerns,
+					theNippleShieldUse,
+					theHa1cObservation,
+					theMedications,
+					theNrtAuthorizationStatus,
+					theChild,
+					theSmokingStatus,
+					theCommunicationPreferences),
+				() -> {
+					if (theRequestDetails != null && theRequestDetails.getResponse() != null) {
+						theRequestDetails.getResponse().addHeader(IDEMPOTENT_REPLAYED_HEADER, "true");
+					}
+				});
+		} finally {
+			requestFhirStore.remove();
+		}
+
+		if (returnPreference != null && theRequestDetails != null && theRequestDetails.getResponse() != null) {
+			theRequestDetails.getResponse().addHeader(PREFERENCE_APPLIED_HEADER, Constants.HEADER_PREFER_RETURN + "=" + returnPreference.getHeaderValue());
+		}
+
+		if (returnPreference != PreferReturnEnum.MINIMAL) {
+			return returnParameters;
+		}
+		return minimalReferralResponse(returnParameters);
+	}
+
+	/*
+	 * The return parameter (minimal or representation) wins over the Prefer header,
+	 * for callers that cannot set headers. Null when the caller asked for neither;
+	 * the default is the full representation.
+	 */
+	private static PreferReturnEnum referralReturnPreference(RequestDetails theRequestDetails, CodeType theReturn) {
+		if (theReturn != null && theReturn.hasValue()) {
+			String value = theReturn.getValue().trim();
+			if (PreferReturnEnum.MINIMAL.getHeaderValue().equalsIgnoreCase(value)) {
+				return PreferReturnEnum.MINIMAL;
+			}
+			if (PreferReturnEnum.REPRESENTATION.getHeaderValue().equalsIgnoreCase(value)) {
+				return PreferReturnEnum.REPRESENTATION;
+			}
+			throw ThrowFHIRExceptions.unprocessableEntityException("return must be " + PreferReturnEnum.MINIMAL.getHeaderValue() + " or " + PreferReturnEnum.REPRESENTATION.getHeaderValue() + ", not " + value);
+		}
+
+		String prefer = theRequestDetails == null ? null : theRequestDetails.getHeader(Constants.HEADER_PREFER);
+		if (prefer == null) {
+			return null;
+		}
+
+		for (String preference : prefer.split("[,;]")) {
+			for (PreferReturnEnum returnValue : new PreferReturnEnum[] { PreferReturnEnum.MINIMAL, PreferReturnEnum.REPRESENTATION }) {
+				if (preference.trim().equalsIgnoreCase(Constants.HEADER_PREFER_RETURN + "=" + returnValue.getHeaderValue())) {
+					return returnValue;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * References only: referral_request_reference (the stored message Bundle, or
+	 * the manifest under REFERRAL_PERSISTENCE=MANIFEST), the Task and the
+	 * MessageHeader, with any warning. No resource is encoded into the response.
+	 */
+	private static Parameters minimalReferralResponse(Parameters full) {
+		Parameters minimal = new Parameters();
+		for (ParametersParameterComponent parameter : full.getParameter()) {
+			if ("referral_request_reference".equals(parameter.getName())) {
+				minimal.addParameter(parameter.copy());
+			} else if ("referral_request_resource".equals(parameter.getName()) && parameter.getResource() instanceof Bundle) {
+				for (BundleEntryComponent entry : ((Bundle) parameter.getResource()).getEntry()) {
+					Resource resource = entry.getResource();
+					if (resource instanceof MessageHeader) {
+						minimal.addParameter("message_header_reference", new Reference(resource.fhirType() + "/" + resource.getIdElement().getIdPart()));
+					} else if (resource instanceof Task) {
+						minimal.addParameter("task_reference", new Reference(resource.fhirType() + "/" + resource.getIdElement().getIdPart()));
+					}
+				}
+			} else if ("warning".equals(parameter.getName())) {
+				minimal.addParameter(parameter.copy());
+			}
+		}
+
+		return minimal;
+	}
+
+	/*
+	 * Key for the idempotency cache: who sent the request, then the Idempotency-Key
+	 * header if the caller sent one, otherwise the draft ServiceRequest's id and
+	 * identifiers. Keys are per caller, so two clients using the same key never get
+	 * each other's response. Null (no deduplication) when the caller is unknown or
+	 * there is neither a header nor a ServiceRequest id.
+	 */
+	private static String referralIdempotencyKey(RequestDetails theRequestDetails, ServiceRequest theServiceRequest) {
+		String caller = OIDCInterceptor.callerOf(theRequestDetails);
+		if (caller == null) {
+			return null;
+		}
+
+		String header = theRequestDetails.getHeader(IDEMPOTENCY_KEY_HEADER);
+		if (header != null && !header.isBlank()) {
+			return caller + "|key:" + header.trim();
+		}
+
+		if (theServiceRequest == null || (theServiceRequest.getIdElement().isEmpty() && !theServiceRequest.hasIdentifier())) {
+			return null;
+		}
+
+		StringBuilder key = new StringBuilder(caller).append("|ServiceRequest:");
+		key.append(theServiceRequest.getIdElement().toUnqualifiedVersionless().getValue());
+		for (Identifier identifier : theServiceRequest.getIdentifier()) {
+			key.append('|').append(identifier.getSystem()).append('#').append(identifier.getValue());
+		}
+
+		return key.toString();
+	}
+
+	private Parameters runReferral(
+		ServiceRequest theServiceRequest,
+		Patient thePatient,
+		Practitioner theRequester,
+		Coverage theCoverage,
+		StringType theBserProviderBaseUrl,
+		CodeType theServiceType,
+		CodeType theEducationLevel,
+		CodeType theEmploymentStatus,
+		Bundle theAllergies,
+		ParametersParameterComponent theBloodPressure,
+		ParametersParameterComponent theBodyHeight,
+		ParametersParameterComponent theBodyWeight,
+		ParametersParameterComponent theBmi,
+		List<ParametersParameterComponent> theDiagnosis,
+		BooleanType theIsBabyLatching,
+		StringType theMomsConcerns,
+		BooleanType theNippleShieldUse,
+		ParametersParameterComponent theHa1cObservation,
+		Bundle theMedications,
+		CodeType theNrtAuthorizationStatus,
+		ParametersParameterComponent theChild,
+		CodeType theSmokingStatus,
+		ParametersParameterComponent theCommunicationPreferences
 	) {
 		Reference sourceReference = null;
 		Reference targetReference = null;
@@ -579,12 +1414,16 @@ public class ServerOperations {
 				warningMessage = warningMessage.concat("The referral request has its status already set to ACTIVE.");
 		}
 
-		// Get fhirStore Url. This will be the FHIR server that will store BSeR resources
+		// Get fhirStore Url. This will be the FHIR server that will store BSeR resources. One other than
+		// FHIRSTORE_URL is used for this request only, and only when FHIRSTORE_ALLOWED_URLS lists it.
 		if (theBserProviderBaseUrl != null) {
-			fhirStore = theBserProviderBaseUrl.getValue();
-
-			// set up SMART on FHIR backend service (if possible).
-			smartBackendServices.setFhirServerUrl(fhirStore);
+			String providerStore = theBserProviderBaseUrl.getValue();
+			if (allowedStores.containsKey(providerStore)) {
+				requestFhirStore.set(providerStore);
+			} else if (providerStore != null && !providerStore.equals(fhirStore)) {
+				logger.warn("bserProviderBaseUrl " + providerStore + " is not in FHIRSTORE_ALLOWED_URLS. Using the engine's store.");
+				warningMessage = warningMessage.concat((warningMessage.isBlank() ? "" : " ") + "bserProviderBaseUrl is not an allowed FHIR store; the engine's store is used. ");
+			}
 		} else {
 			// sendInternalErrorOO("Parameters.parameter.where(name='bserProviderBaseUrl').empty()", "bserProviderBaseUrl parameter is missing");
 			if (!warningMessage.isBlank())
@@ -711,7 +1550,7 @@ public class ServerOperations {
 		// 	// saveResource(sourceOrganization);
 		// }
 
-		saveResource(sourceOrganization);
+		savePackageResource(sourceOrganization);
 		
 		sourceOrganizationReference = new Reference(sourceOrganization.fhirType() + "/" + sourceOrganization.getIdPart());
 		sourcePractitionerRole.setOrganization(sourceOrganizationReference);
@@ -733,15 +1572,15 @@ public class ServerOperations {
 			// sourceEndpoint.setId(new IdType(sourceEndpoint.fhirType(), UUID.randomUUID().toString()));
 		}
 
-		saveResource(sourceEndpoint);
+		savePackageResource(sourceEndpoint);
 		Reference sourceEndpointReference = new Reference(sourceEndpoint.fhirType() + "/" + sourceEndpoint.getIdPart());
 		sourcePractitionerRole.setEndpoint(new ArrayList<Reference>(Arrays.asList(sourceEndpointReference)));
 
-		saveResource(sourcePractitioner);
+		savePackageResource(sourcePractitioner);
 		Reference sourcePractitionerReference = new Reference(sourcePractitioner.fhirType() + "/" + sourcePractitioner.getIdPart());
 		sourcePractitionerRole.setPractitioner(sourcePractitionerReference);
 		
-		saveResource(sourcePractitionerRole);
+		savePackageResource(sourcePractitionerRole);
 		sourceReference = new Reference(sourcePractitionerRole.fhirType() + "/" + sourcePractitionerRole.getIdPart());
 
 		// set the srouceReference with the final practitionerRole.
@@ -855,7 +1694,7 @@ public class ServerOperations {
 			educationLevel.setStatus(ObservationStatus.FINAL);
 			educationLevel.setSubject(subjectReference);
 
-			saveResource(educationLevel);
+			savePackageResource(educationLevel);
 		}
 
 		ODHEmploymentStatus odhEmploymentStatus =  null;
@@ -867,7 +1706,7 @@ public class ServerOperations {
 			odhEmploymentStatus.setValue(new CodeableConcept(new Coding("http://terminology.hl7.org/CodeSystem/v3-ObservationValue", theEmploymentStatus.getCode(), null)));
 			odhEmploymentStatus.setSubject(subjectReference);
 
-			saveResource(odhEmploymentStatus);
+			savePackageResource(odhEmploymentStatus);
 		}
 
 		// Now, we should be ready to Referral Request Document Bundle.
@@ -889,7 +1728,7 @@ public class ServerOperations {
 				supportingInfoResources.add(usCoreAllergyIntolerance);
 				allergyReferences.add(new Reference(usCoreAllergyIntolerance.fhirType()+"/"+usCoreAllergyIntolerance.getIdPart()));
 
-				saveResource(usCoreAllergyIntolerance);
+				savePackageResource(usCoreAllergyIntolerance);
 			}
 		}
 
@@ -908,7 +1747,7 @@ public class ServerOperations {
 				supportingInfoResources.add(bserMedicationStatement);
 				medicationReferences.add(new Reference(bserMedicationStatement.fhirType()+"/"+bserMedicationStatement.getIdPart()));
 
-				saveResource(bserMedicationStatement);
+				savePackageResource(bserMedicationStatement);
 			}
 		}
 
@@ -942,7 +1781,7 @@ public class ServerOperations {
 				bpObservation.setStatus(ObservationStatus.FINAL);
 
 				// write to fhirStore.
-				saveResource(bpObservation);
+				savePackageResource(bpObservation);
 			}
 			supportingInfoResources.add(bpObservation);
 			bpReference = new Reference(bpObservation.fhirType()+"/"+bpObservation.getIdPart());
@@ -967,7 +1806,7 @@ public class ServerOperations {
 				bodyHeightObservation.setStatus(ObservationStatus.FINAL);
 				
 				// write to fhirStore.
-				saveResource(bodyHeightObservation);
+				savePackageResource(bodyHeightObservation);
 			} 
 
 			supportingInfoResources.add(bodyHeightObservation);
@@ -992,7 +1831,7 @@ public class ServerOperations {
 				bodyWeightObservation.setStatus(ObservationStatus.FINAL);
 				
 				// write to fhirStore.
-				saveResource(bodyWeightObservation);
+				savePackageResource(bodyWeightObservation);
 			}
 			supportingInfoResources.add(bodyWeightObservation);
 			bodyWeightReference = new Reference(bodyWeightObservation.fhirType()+"/"+bodyWeightObservation.getIdPart());
@@ -1016,7 +1855,7 @@ public class ServerOperations {
 				bmiObservation.setStatus(ObservationStatus.FINAL);
 				
 				// write to fhirStore.
-				saveResource(bmiObservation);
+				savePackageResource(bmiObservation);
 			}
 
 			supportingInfoResources.add(bmiObservation);
@@ -1048,7 +1887,7 @@ public class ServerOperations {
 				bserHa1cObservation.setEffective(new DateTimeType(new Date()));
 
 				// write to fhirStore.
-				saveResource(bserHa1cObservation);
+				savePackageResource(bserHa1cObservation);
 			} else {
 				sendInternalErrorOO("ha1cObservation", "ha1cObservation must be either Referece or Quantity");
 			}
@@ -1066,7 +1905,7 @@ public class ServerOperations {
 			supportingInfoResources.add(earlyChildNutritionObs);
 			earlyChildhoodNutritionObReferences.add(new Reference(earlyChildNutritionObs.fhirType()+"/"+earlyChildNutritionObs.getIdPart()));
 
-			saveResource(earlyChildNutritionObs);
+			savePackageResource(earlyChildNutritionObs);
 		}
 
 		if (theMomsConcerns != null) {
@@ -1074,7 +1913,7 @@ public class ServerOperations {
 			supportingInfoResources.add(earlyChildNutritionObs);
 			earlyChildhoodNutritionObReferences.add(new Reference(earlyChildNutritionObs.fhirType()+"/"+earlyChildNutritionObs.getIdPart()));
 
-			saveResource(earlyChildNutritionObs);
+			savePackageResource(earlyChildNutritionObs);
 		}
 
 		if (theNippleShieldUse != null) {
@@ -1082,7 +1921,7 @@ public class ServerOperations {
 			supportingInfoResources.add(earlyChildNutritionObs);
 			earlyChildhoodNutritionObReferences.add(new Reference(earlyChildNutritionObs.fhirType()+"/"+earlyChildNutritionObs.getIdPart()));
 
-			saveResource(earlyChildNutritionObs);
+			savePackageResource(earlyChildNutritionObs);
 		}
 
 		if (theChild != null) {
@@ -1128,12 +1967,12 @@ public class ServerOperations {
 			childPatient.addName(new HumanName().setFamily(lastName).addGiven(firstName));
 			childPatient.setGender(AdministrativeGender.fromCode(genderCode.getCode()));
 			supportingInfoResources.add(childPatient);
-			saveResource(childPatient);
+			savePackageResource(childPatient);
 
 			if (childWeightObservation != null && !childWeightObservation.isEmpty()) {
 				childWeightObservation.setSubject(new Reference(childPatient.fhirType()+"/"+childPatient.getIdPart()));
 				// write to fhirStore.
-				saveResource(childWeightObservation);
+				savePackageResource(childWeightObservation);
 
 				supportingInfoResources.add(childWeightObservation);
 				childWeightObservationReference = new Reference(childWeightObservation.fhirType()+"/"+childWeightObservation.getIdPart());
@@ -1142,7 +1981,7 @@ public class ServerOperations {
 			if (childHeightObservation != null && !childHeightObservation.isEmpty()) {
 				childHeightObservation.setSubject(new Reference(childPatient.fhirType()+"/"+childPatient.getIdPart()));
 				// write to fhirStore.
-				saveResource(childHeightObservation);
+				savePackageResource(childHeightObservation);
 
 				supportingInfoResources.add(childHeightObservation);
 				childHeightObservationReference = new Reference(childHeightObservation.fhirType()+"/"+childHeightObservation.getIdPart());
@@ -1170,7 +2009,7 @@ public class ServerOperations {
 					diagnosisCondition.setSubject(subjectReference);
 					
 					// write to fhirStore.
-					saveResource(diagnosisCondition);
+					savePackageResource(diagnosisCondition);
 				}
 
 				supportingInfoResources.add(diagnosisCondition);
@@ -1192,7 +2031,7 @@ public class ServerOperations {
 
 			BSERNRTAuthorizationStatus nrtAuthStatus = new BSERNRTAuthorizationStatus(subjectReference, valueCodeableConcept);
 
-			saveResource(nrtAuthStatus);
+			savePackageResource(nrtAuthStatus);
 
 			supportingInfoResources.add(nrtAuthStatus);
 			nrtAuthorizationStatusReferences.add(new Reference(nrtAuthStatus.getIdElement()));
@@ -1225,7 +2064,7 @@ public class ServerOperations {
 				subjectReference,
 				smokeStatusValue);
 			
-			saveResource(smokingStatusOb);
+			savePackageResource(smokingStatusOb);
 
 			supportingInfoResources.add(smokingStatusOb);
 			smokingStatusReference = new Reference(smokingStatusOb.fhirType()+"/"+smokingStatusOb.getIdPart());
@@ -1248,7 +2087,7 @@ public class ServerOperations {
 
 				BSERTelcomCommunicationPreferences teleCommPrefOb = new BSERTelcomCommunicationPreferences(code, value);
 
-				saveResource(teleCommPrefOb);
+				savePackageResource(teleCommPrefOb);
 
 				supportingInfoResources.add(teleCommPrefOb);
 				communicationPreferencesReferences.add(new Reference(teleCommPrefOb.fhirType()+"/"+teleCommPrefOb.getIdPart()));
@@ -1339,7 +2178,7 @@ public class ServerOperations {
 
 		// Adding composition
 		// bserReferralRequestComposition.setId(new IdType(bserReferralRequestComposition.fhirType(), UUID.randomUUID().toString()));
-		saveResource(bserReferralRequestComposition);
+		savePackageResource(bserReferralRequestComposition);
 		BSERReferralRequestDocumentBundle bserReferralRequestDocumentBundle = new BSERReferralRequestDocumentBundle(bserReferralRequestComposition);
 		
 		bserReferralRequestDocumentBundle.setTimestamp(new Date());
@@ -1378,10 +2217,14 @@ public class ServerOperations {
 		identifier.setSystem("urn:bser:request:document");
 		identifier.setValue(UUID.randomUUID().toString());
 		bserReferralRequestDocumentBundle.setIdentifier(identifier);
-		saveResource(bserReferralRequestDocumentBundle);
+		if (referralPersistence.storesDocumentBundle()) {
+			saveResource(bserReferralRequestDocumentBundle);
+		}
 		Reference bserReferralRequestDocumentBundleReference = new Reference(bserReferralRequestDocumentBundle.fhirType() + "/" + bserReferralRequestDocumentBundle.getIdPart());
 
-		serviceRequest.addSupportingInfo(bserReferralRequestDocumentBundleReference);		
+		if (referralPersistence.storesDocumentBundle()) {
+			serviceRequest.addSupportingInfo(bserReferralRequestDocumentBundleReference);
+		}
 
 		// serviceRequest, which is from UI has Practitioner for the requester. Overwrite this with parctitionerRole.
 		serviceRequest.setRequester(sourceReference);
@@ -1404,6 +2247,12 @@ public class ServerOperations {
 		serviceRequest.setOccurrence(new DateTimeType(new Date()));
 
 		saveResource(serviceRequest);
+		if (!referralPersistence.storesDocumentBundle()) {
+			// The document Bundle is only stored inside the message Bundle, so the stored
+			// ServiceRequest goes without supportingInfo. The copy in the message references
+			// the document Bundle entry next to it.
+			serviceRequest.addSupportingInfo(bserReferralRequestDocumentBundleReference);
+		}
 		OperationOutcome deleteOO = deleteResource(theServiceRequest);
 		if (deleteOO != null) {
 			String msg = "DELETE ServiceRequest/" + theServiceRequest.getIdElement().getIdPart() + ": " + 
@@ -1450,7 +2299,7 @@ public class ServerOperations {
 			bserEndpointProcessMessageUrl, 
 			targetEndpointUrl);
 
-		saveResource(bserReferralMessageHeader);
+		savePackageResource(bserReferralMessageHeader);
 		// bserReferralMessageHeader.setId(new IdType(bserReferralMessageHeader.fhirType(), UUID.randomUUID().toString()));
 
 		/*** 
@@ -1544,7 +2393,16 @@ public class ServerOperations {
 		}
 
 		// Save Message before submission.
-		saveResource(messageBundle);
+		Reference referralRequestReference;
+		if (referralPersistence.storesMessageBundle()) {
+			saveResource(messageBundle);
+			referralRequestReference = new Reference(messageBundle.getIdElement());
+		} else {
+			assignLocalId(messageBundle);
+			ListResource manifest = referralManifest(messageBundle, subjectReference);
+			saveResource(manifest);
+			referralRequestReference = new Reference(manifest.getIdElement());
+		}
 				
 		// Submit to target $process-message operation
 		FhirContext ctx = StaticValues.myFhirContext; 
@@ -1554,12 +2412,14 @@ public class ServerOperations {
 			IGenericClient client;
 			boolean errorOccurred = false;
 			if (targetEndpointUrl != null && !targetEndpointUrl.isBlank()) {
-				IParser parser = ctx.newJsonParser();
-				String messageBundleJson = parser.encodeResourceToString(messageBundle);
-				logger.debug("SENDING MessageBundle TO " + targetEndpointUrl + ":\n" + messageBundleJson);
+				logger.debug("SENDING MessageBundle TO " + targetEndpointUrl);
 
 				IBaseResource response = null;
 				if ("YUSA".equals(recipientAA.getRecipientSite())) {
+					IParser parser = ctx.newJsonParser();
+					String messageBundleJson = NarrativePolicy.call(Flow.RECIPIENT, () -> parser.encodeResourceToString(messageBundle));
+					PayloadLogger.log("MessageBundle to " + targetEndpointUrl, messageBundleJson);
+
 					// This is YUSA endpoint, which does not have FHIR messaging operation name.
 					String respYusa = recipientAA.submitYusaRR(targetEndpointUrl, messageBundleJson);
 					if (!warningMessage.isBlank()) {
@@ -1595,19 +2455,24 @@ public class ServerOperations {
 						e.printStackTrace();
 					}
 
-					client = ctx.newRestfulGenericClient(targetEndpointUrl);
+					PayloadLogger.log("MessageBundle to " + targetEndpointUrl, messageBundle);
+					Destination recipientDestination = Destinations.get(targetEndpointUrl);
+					client = recipientDestination.configure(ctx.newRestfulGenericClient(targetEndpointUrl));
 					if (accessToken != null && !accessToken.isBlank()) {
 						BearerTokenAuthInterceptor authInterceptor = new BearerTokenAuthInterceptor(accessToken);
 						client.registerInterceptor(authInterceptor);
 					}
 
 					try {
-						response = client
+						// Not idempotent, so never retried; the circuit breaker still applies.
+						response = NarrativePolicy.call(Flow.RECIPIENT, () -> recipientDestination.call(false, () -> client
 							.operation()
 							.processMessage() // New operation for sending messages
 							.setMessageBundle(messageBundle)
 							.asynchronous(OperationOutcome.class)
-							.execute();	
+							.execute()));
+					} catch (DeadlineExceededException e) {
+						throw e;
 					} catch (Exception e) {
 						if (!warningMessage.isBlank()) {
 							warningMessage = warningMessage.concat(" Failed to send a request: " + e.getMessage() + "\n");
@@ -1682,7 +2547,7 @@ public class ServerOperations {
 
 		// return anything if needed in Parameters
 		Parameters returnParameters = new Parameters();
-		returnParameters.addParameter("referral_request_reference", new Reference(messageBundle.getIdElement()));
+		returnParameters.addParameter("referral_request_reference", referralRequestReference);
 		returnParameters.addParameter().setName("referral_request_resource").setResource(messageBundle);
 		ParametersParameterComponent recipientParam = new ParametersParameterComponent(new StringType("recipient_endpoint"));
 		recipientParam.setResource(targetEndpoint);
@@ -1731,6 +2596,9 @@ public class ServerOperations {
 
 	/***
 	 * processMessageOperation
+	 * A message that was already processed (same MessageHeader id or Bundle identifier) is
+	 * acknowledged without being processed again. A copy arriving while the first is still
+	 * being processed gets 429 so it is retried.
 	 * @param theContent
 	 * @param theAsync
 	 * @param theUri
@@ -1742,6 +2610,118 @@ public class ServerOperations {
 		@OperationParam(name="async") BooleanType theAsync,
 		@OperationParam(name="response-url") UriType theUri			
 	) {
+		List<String> messageKeys = messageKeys(theContent);
+		MessageDeduplicator.Result claim = messageDeduplicator.claim(messageKeys);
+		if (claim == MessageDeduplicator.Result.DUPLICATE) {
+			logger.info("Message " + messageKeys + " was already processed. Acknowledged without processing.");
+			return;
+		} else if (claim == MessageDeduplicator.Result.IN_FLIGHT) {
+			ThrowFHIRExceptions.tooManyRequestsException("Message " + messageKeys + " is being processed. Retry after 1 seconds.", 1);
+		}
+
+		boolean processed = false;
+		try {
+			processMessage(theContent);
+			processed = true;
+		} finally {
+			if (processed) {
+				messageDeduplicator.complete(messageKeys);
+			} else {
+				messageDeduplicator.abandon(messageKeys);
+			}
+		}
+	}
+
+	/*
+	 * Keys that identify a message across resends: the MessageHeader id and the
+	 * Bundle identifier.
+	 */
+	private static List<String> messageKeys(Bundle theContent) {
+		List<String> keys = new ArrayList<String>();
+		if (theContent == null) {
+			return keys;
+		}
+
+		Resource first = theContent.hasEntry() ? theContent.getEntry().get(0).getResource() : null;
+		if (first instanceof MessageHeader && first.getIdElement().hasIdPart()) {
+			keys.add("MessageHeader/" + first.getIdElement().getIdPart());
+		}
+
+		Identifier identifier = theContent.getIdentifier();
+		if (identifier != null && identifier.hasValue()) {
+			keys.add("Bundle.identifier/" + identifier.getSystem() + "|" + identifier.getValue());
+		}
+
+		return keys;
+	}
+
+	/*
+	 * Stores one feedback document named in the recipient Task's output, with its
+	 * section entries pointed at the referral's patient, and returns the output to
+	 * add to our Task. Returns null when the message does not carry the document.
+	 */
+	private TaskOutputComponent ingestFeedbackDocument (TaskOutputComponent outputFromRecipient, List<BundleEntryComponent> entries, Patient myPatient, List<Resource> pendingWrites) {
+		Reference bserFeedbackDocumentReference = (Reference) outputFromRecipient.getValue();
+		if (bserFeedbackDocumentReference == null || bserFeedbackDocumentReference.isEmpty()) {
+			throw new FHIRException("BSERReferralTask.output.valueReference cannot be null or empty.");
+		}
+
+		// From message entries, find out the actual resource of bser feedback document reference.
+		for (BundleEntryComponent entry : entries) {
+			Resource resource = entry.getResource();
+			if (resource instanceof Bundle) {
+				if (entry.getFullUrl().contains(bserFeedbackDocumentReference.getReferenceElement().getValue())) {
+					// This bundle document has patient data entries for the usecase.
+					Bundle recvFeedbackDocument = (Bundle) entry.getResource();
+
+					// We have the document. This 
+					BSERReferralFeedbackDocument bserReferralFeedbackDocument = new BSERReferralFeedbackDocument();
+					recvFeedbackDocument.copyValues(bserReferralFeedbackDocument);
+
+					// From ths document, grab composition.
+					Composition bserReferralFeedbacDocComposition = (Composition) bserReferralFeedbackDocument.getEntryFirstRep().getResource();
+					for (SectionComponent section : bserReferralFeedbacDocComposition.getSection()) {
+						// run through the section.entry to capture the reference.
+						for (Reference sectionEntryReference : section.getEntry()) {
+							// Find this reference from the document entry.
+							for (BundleEntryComponent bserReferralFeedbackDocEntry : bserReferralFeedbackDocument.getEntry()) {
+								if (bserReferralFeedbackDocEntry.getFullUrl().contains(sectionEntryReference.getReferenceElement().getValue())) {
+									Resource supportInfoResource = bserReferralFeedbackDocEntry.getResource();
+
+									// substitute the patient
+									if (supportInfoResource instanceof Observation) {
+										// String supportResourceSubjectRef = myPatient.getIdElement().toVersionless().getId();
+										String subjectName = myPatient.getNameFirstRep().getGivenAsSingleString() + " " + myPatient.getNameFirstRep().getFamily();
+										Reference subjectReference = new Reference("Patient" + "/" + myPatient.getIdPart()).setDisplay(subjectName);
+										((Observation)supportInfoResource).setSubject(subjectReference);
+									} 
+								
+									saveFeedbackResource(supportInfoResource, pendingWrites);
+									// sectionEntryReference.setResource(supportInfoResource);
+									// resource.fhirType()+"/"+resource.getIdPart()
+									sectionEntryReference.setReferenceElement(supportInfoResource.getIdElement());
+									bserReferralFeedbackDocEntry.setFullUrl(supportInfoResource.fhirType()+"/"+supportInfoResource.getIdPart());
+								}
+							}
+						}
+					}
+
+				
+					saveFeedbackResource(bserReferralFeedbacDocComposition, pendingWrites);
+					// update composition id in document.
+					bserReferralFeedbackDocument.getEntryFirstRep().setFullUrl("Composition/" + bserReferralFeedbacDocComposition.getIdPart());
+					bserReferralFeedbackDocument.getEntryFirstRep().getResource().setId(bserReferralFeedbacDocComposition.getIdPart());
+					saveFeedbackResource(bserReferralFeedbackDocument, pendingWrites);
+					TaskOutputComponent myOutputFromRecipient = new TaskOutputComponent(outputFromRecipient.getType(), new Reference(bserReferralFeedbackDocument.getIdElement()));
+					return myOutputFromRecipient;
+				}
+			} 
+		}
+
+		return null;
+	}
+
+	private void processMessage(Bundle theContent) {
 		// Feedback would also be async as there can be another message.
 		// if (theAsync == null) {
 		// 	throw new FHIRException("async parameter must exist");
@@ -1770,9 +2750,7 @@ public class ServerOperations {
 		}
 
 		if (theContent.getType() == BundleType.MESSAGE) {
-			IParser parser = StaticValues.myFhirContext.newJsonParser();
-			String responseString = parser.encodeResourceToString(theContent);	
-			logger.debug("Received Feedback Message Bundle " + responseString);
+			PayloadLogger.log("Received Feedback Message Bundle", theContent);
 
 			List<BundleEntryComponent> entries = theContent.getEntry();
 
@@ -1788,7 +2766,8 @@ public class ServerOperations {
 					throw new FHIRException("Received message is NOT REF/RRI - Patient referral");
 				}
 
-				// save the orignial message bundle.
+				// save the orignial message bundle, with large attachments stored as Binary.
+				List<String> messageBinaryUrls = uploadSpooledAttachments(theContent);
 				saveResource(theContent);
 
 				// This could be async message response. Check here.
@@ -1812,59 +2791,64 @@ public class ServerOperations {
 						}
 					}
 
-					Bundle orgingalMessageBundles = searchResourceFromFhirServer(fhirStore, Bundle.class, Bundle.MESSAGE.hasId(originalMessageId));
-					if (orgingalMessageBundles == null || orgingalMessageBundles.isEmpty()) {
-						throw new FHIRException("Failed to find an original message for the response message. Original Message ID = " + originalMessageId);
-					}
-
 					Task task = null;
 					ServiceRequest serviceRequest = null;
+					if (referralPersistence.storesMessageBundle()) {
+						Bundle orgingalMessageBundles = requireStore().search("Bundle", "message", null, originalMessageId);
+						if (orgingalMessageBundles == null || orgingalMessageBundles.isEmpty()) {
+							throw new FHIRException("Failed to find an original message for the response message. Original Message ID = " + originalMessageId);
+						}
 
-					if (orgingalMessageBundles.getTotal() <= 0) {
-						// couldn't fine the messageBundle. This could be because the server does not support
-						// this. Try anotehr way.
+						if (orgingalMessageBundles.getTotal() <= 0) {
+							// couldn't fine the messageBundle. This could be because the server does not support
+							// this. Try anotehr way.
 
-						Bundle messageBundles = searchResourceFromFhirServer(fhirStore, Bundle.class, Bundle.TYPE.exactly().code("message"));
-						if (messageBundles == null || messageBundles.isEmpty()) {
-							throw new FHIRException("Failed to get message bundles.");
-						}
+							Bundle messageBundles = requireStore().search("Bundle", "type", null, "message");
+							if (messageBundles == null || messageBundles.isEmpty()) {
+								throw new FHIRException("Failed to get message bundles.");
+							}
 
-						if (messageBundles.getTotal() <= 0) {
-							throw new FHIRException("Couldn't find any message bundles");
-						}
+							if (messageBundles.getTotal() <= 0) {
+								throw new FHIRException("Couldn't find any message bundles");
+							}
+
+							for (BundleEntryComponent mBundleEntry : messageBundles.getEntry()) {
+								Bundle mBundle = (Bundle) mBundleEntry.getResource();
+								MessageHeader mh = (MessageHeader) mBundle.getEntryFirstRep().getResource();
+								if (originalMessageId.equals(mh.getIdPart())) {
+									// This is the one we are looking for.
+									for (BundleEntryComponent entry : mBundle.getEntry()) {
+										resource = entry.getResource();
+										if (resource instanceof Task) {									
+											task = (Task) resource;
+										}
 
-						for (BundleEntryComponent mBundleEntry : messageBundles.getEntry()) {
-							Bundle mBundle = (Bundle) mBundleEntry.getResource();
-							MessageHeader mh = (MessageHeader) mBundle.getEntryFirstRep().getResource();
-							if (originalMessageId.equals(mh.getIdPart())) {
-								// This is the one we are looking for.
-								for (BundleEntryComponent entry : mBundle.getEntry()) {
-									resource = entry.getResource();
-									if (resource instanceof Task) {									
-										task = (Task) resource;
+										if (resource instanceof ServiceRequest) {	
+											serviceRequest = (ServiceRequest) resource;
+										}							
 									}
 
-									if (resource instanceof ServiceRequest) {	
-										serviceRequest = (ServiceRequest) resource;
-									}							
+									break;
 								}
-
-								break;
-							}
-						}
-					} else {
-						// We supposed to get only one. If more, we just choose the first one.
-						Bundle mb = (Bundle) orgingalMessageBundles.getEntryFirstRep().getResource();
-						for (BundleEntryComponent entry : mb.getEntry()) {
-							resource = entry.getResource();
-							if (resource instanceof Task) {									
-								task = (Task) resource;
 							}
+						} else {
+							// We supposed to get only one. If more, we just choose the first one.
+							Bundle mb = (Bundle) orgingalMessageBundles.getEntryFirstRep().getResource();
+							for (BundleEntryComponent entry : mb.getEntry()) {
+								resource = entry.getResource();
+								if (resource instanceof Task) {									
+									task = (Task) resource;
+								}
 
-							if (resource instanceof ServiceRequest) {	
-								serviceRequest = (ServiceRequest) resource;
+								if (resource instanceof ServiceRequest) {	
+									serviceRequest = (ServiceRequest) resource;
+								}
 							}
 						}
+					} else {
+						// REFERRAL_PERSISTENCE=MANIFEST stores no message Bundle.
+						task = taskOfMessageHeader(originalMessageId);
+						serviceRequest = serviceRequestOfTask(task);
 					}
 
 					if (task == null || task.isEmpty()) {
@@ -1875,37 +2859,48 @@ public class ServerOperations {
 						throw new FHIRException("Couldn't locate related ServiceRequest for the MessageHeader/" + originalMessageId);
 					}
 
-					if (ResponseType.FATALERROR == response.getCode() || ResponseType.TRANSIENTERROR == response.getCode()) {
-						task.setStatus(TaskStatus.FAILED);					
-						serviceRequest.setStatus(ServiceRequestStatus.REVOKED);
-					} else {
-						task.setStatus(TaskStatus.RECEIVED);					
-						serviceRequest.setStatus(ServiceRequestStatus.ACTIVE);
-					}
+					Identifier taskPlacIdentifier = getIdentifierByType(task, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "PLAC", null));
+					ReentrantLock taskLock = taskLocks.lockFor(taskPlacIdentifier != null ? taskPlacIdentifier.getValue() : task.getIdElement().getIdPart());
+					taskLock.lock();
+					try {
+						// The message holds the Task and ServiceRequest as they were sent. Feedback may have changed them since.
+						task = readCurrent(Task.class, task);
+						serviceRequest = readCurrent(ServiceRequest.class, serviceRequest);
+
+						if (ResponseType.FATALERROR == response.getCode() || ResponseType.TRANSIENTERROR == response.getCode()) {
+							task.setStatus(TaskStatus.FAILED);					
+							serviceRequest.setStatus(ServiceRequestStatus.REVOKED);
+						} else {
+							task.setStatus(TaskStatus.RECEIVED);					
+							serviceRequest.setStatus(ServiceRequestStatus.ACTIVE);
+						}
 
-					if (oo != null && !oo.isEmpty()) {
-						// reduce the size of oo.issue[].diagnostics
-						for (OperationOutcomeIssueComponent ooIssue : oo.getIssue()) {
-							String diag = ooIssue.getDiagnostics();
-							if (diag != null && !diag.isEmpty()) {
-								diag = StringEscapeUtils.escapeHtml4(diag);
-								if (diag.length() > 300) {
-									diag = diag.substring(0, 300);
+						if (oo != null && !oo.isEmpty()) {
+							// reduce the size of oo.issue[].diagnostics
+							for (OperationOutcomeIssueComponent ooIssue : oo.getIssue()) {
+								String diag = ooIssue.getDiagnostics();
+								if (diag != null && !diag.isEmpty()) {
+									diag = StringEscapeUtils.escapeHtml4(diag);
+									if (diag.length() > 300) {
+										diag = diag.substring(0, 300);
 									
-									ooIssue.setDiagnostics(diag);
+										ooIssue.setDiagnostics(diag);
+									}
 								}
 							}
-						}
 
-						// Clear the narrative.
-						oo.setText(new Narrative());
+							// Clear the narrative.
+							oo.setText(new Narrative());
 
-						saveResource(oo);
-						setTaskOut(task, oo);
-					}
+							saveResource(oo);
+							setTaskOut(task, oo);
+						}
 
-					updateResource(task);
-					updateResource(serviceRequest);
+						updateResource(task);
+						updateResource(serviceRequest);
+					} finally {
+						taskLock.unlock();
+					}
 
 					// We do not respond to the response message.
 					return;
@@ -1973,129 +2968,105 @@ public class ServerOperations {
 						throw new FHIRException("BSERReferralTask must have PLAC's value.");
 					}
 
-					CodeableConcept businessStatus = bserReferralTask.getBusinessStatus();
+					// Feedback for the same referral is applied in order, one message at a time.
+					ReentrantLock taskLock = taskLocks.lockFor(PLACvalue);
+					taskLock.lock();
+					try {
+						CodeableConcept businessStatus = bserReferralTask.getBusinessStatus();
+
+						// Nothing but status to record: patch it in place instead of reading and rewriting the resources.
+						if (feedbackPatchEnabled && !bserReferralTask.hasOutput()
+							&& patchTaskStatus(PLACvalue, businessStatus, getIdentifierByType(bserReferralTask, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", null)))) {
+							return;
+						}
 
-					Bundle searchBundle = searchResourceFromFhirServer(
-						fhirStore, 
-						Task.class, 
-						Task.IDENTIFIER.exactly().code(PLACvalue),
-						Task.INCLUDE_SUBJECT,
-						Task.INCLUDE_FOCUS);
+						Bundle searchBundle = requireStore().search("Task", "identifier", null, PLACvalue, Task.INCLUDE_SUBJECT, Task.INCLUDE_FOCUS);
 		
-					if (searchBundle.getTotal() == 0) {
-						throw new FHIRException("NO Matching Task Found.");
-					} 
-
-					// loop through the search result entry and get task and patient
-					Patient myPatient = null;
-					Task myTask = null;
-					ServiceRequest myServiceRequest = null;
-					for (BundleEntryComponent TaskEntry : searchBundle.getEntry()) {
-						if (TaskEntry.getResource() instanceof Task) {
-							myTask = (Task) TaskEntry.getResource();
-						} else if (TaskEntry.getResource() instanceof Patient) {
-							myPatient = (Patient) TaskEntry.getResource();
-						} else if (TaskEntry.getResource() instanceof ServiceRequest) {
-							myServiceRequest = (ServiceRequest) TaskEntry.getResource();
+						if (searchBundle.getTotal() == 0) {
+							throw new FHIRException("NO Matching Task Found.");
+						} 
+
+						// loop through the search result entry and get task and patient
+						Patient myPatient = null;
+						Task myTask = null;
+						ServiceRequest myServiceRequest = null;
+						for (BundleEntryComponent TaskEntry : searchBundle.getEntry()) {
+							if (TaskEntry.getResource() instanceof Task) {
+								myTask = (Task) TaskEntry.getResource();
+							} else if (TaskEntry.getResource() instanceof Patient) {
+								myPatient = (Patient) TaskEntry.getResource();
+							} else if (TaskEntry.getResource() instanceof ServiceRequest) {
+								myServiceRequest = (ServiceRequest) TaskEntry.getResource();
+							}
 						}
-					}
 
-					if (myTask == null) {
-						throw new FHIRException("No task found in the search.entry");
-					}
+						if (myTask == null) {
+							throw new FHIRException("No task found in the search.entry");
+						}
 
-					if (myPatient == null || myPatient.isEmpty()) {
-						throw new FHIRException("Searched Task (" + myTask.getIdPart() +") has no subject as patient");
-					}
+						if (myPatient == null || myPatient.isEmpty()) {
+							throw new FHIRException("Searched Task (" + myTask.getIdPart() +") has no subject as patient");
+						}
 
-					// Get the business status from recipient bserReferralStatus and update the task.
-					// We trust what's in the status. But, just to be sure, we reconstruct the codeable concept
-					// from the code.
-					myTask.setBusinessStatus(BserTaskBusinessStatus.bserTaskBusinessStatusFromCode(businessStatus.getCodingFirstRep().getCode()).getCodeableConcept());
-					myTask.setStatus(BserTaskBusinessStatus.taskStatusFromCodeableConcept(businessStatus));
+						// Get the business status from recipient bserReferralStatus and update the task.
+						// We trust what's in the status. But, just to be sure, we reconstruct the codeable concept
+						// from the code.
+						myTask.setBusinessStatus(BserTaskBusinessStatus.bserTaskBusinessStatusFromCode(businessStatus.getCodingFirstRep().getCode()).getCodeableConcept());
+						myTask.setStatus(BserTaskBusinessStatus.taskStatusFromCodeableConcept(businessStatus));
 
-					if (myServiceRequest != null) {
-						myServiceRequest.setStatus(BserTaskBusinessStatus.serviceRequestStatusFromCodeableConcept(businessStatus));
-					}
+						if (myServiceRequest != null) {
+							myServiceRequest.setStatus(BserTaskBusinessStatus.serviceRequestStatusFromCodeableConcept(businessStatus));
+						}
 
-					// Set FILL information.
-					Identifier filllIdentifier = getIdentifierByType(bserReferralTask, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", null));
+						// Set FILL information.
+						Identifier filllIdentifier = getIdentifierByType(bserReferralTask, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", null));
 
-					if (filllIdentifier != null) {
-						// add or update fill identifier.
-						Identifier existingFillIdentifier = getIdentifierByType(myTask, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", null));
-						if (existingFillIdentifier != null) {
-							filllIdentifier.copyValues(existingFillIdentifier);
-						} else {
-							myTask.addIdentifier(filllIdentifier);
+						if (filllIdentifier != null) {
+							// add or update fill identifier.
+							Identifier existingFillIdentifier = getIdentifierByType(myTask, new Coding("http://terminology.hl7.org/CodeSystem/v2-0203", "FILL", null));
+							if (existingFillIdentifier != null) {
+								filllIdentifier.copyValues(existingFillIdentifier);
+							} else {
+								myTask.addIdentifier(filllIdentifier);
+							}
 						}
-					}
 
-					// See if we have something in the output
-					for (TaskOutputComponent outputFromRecipient : bserReferralTask.getOutput()) {
-						Reference bserFeedbackDocumentReference = (Reference) outputFromRecipient.getValue();
-						if (bserFeedbackDocumentReference == null || bserFeedbackDocumentReference.isEmpty()) {
-							throw new FHIRException("BSERReferralTask.output.valueReference cannot be null or empty.");
+						// In transaction mode the writes are queued and stored together at the end.
+						List<Resource> pendingWrites = feedbackTransaction ? new ArrayList<Resource>() : null;
+
+						// See if we have something in the output. The documents are independent, so
+						// several are stored in parallel; the Task gets their outputs in one update.
+						List<TaskOutputComponent> outputsFromRecipient = bserReferralTask.getOutput();
+						List<List<Resource>> documentWrites = new ArrayList<List<Resource>>();
+						List<Supplier<TaskOutputComponent>> documentTasks = new ArrayList<Supplier<TaskOutputComponent>>();
+						for (TaskOutputComponent outputFromRecipient : outputsFromRecipient) {
+							List<Resource> writes = pendingWrites != null ? new ArrayList<Resource>() : null;
+							documentWrites.add(writes);
+							Patient subject = myPatient;
+							documentTasks.add(() -> ingestFeedbackDocument(outputFromRecipient, entries, subject, writes));
 						}
 
-						// From message entries, find out the actual resource of bser feedback document reference.
-						for (BundleEntryComponent entry : entries) {
-							resource = entry.getResource();
-							if (resource instanceof Bundle) {
-								if (entry.getFullUrl().contains(bserFeedbackDocumentReference.getReferenceElement().getValue())) {
-									// This bundle document has patient data entries for the usecase.
-									Bundle recvFeedbackDocument = (Bundle) entry.getResource();
-
-									// We have the document. This 
-									BSERReferralFeedbackDocument bserReferralFeedbackDocument = new BSERReferralFeedbackDocument();
-									recvFeedbackDocument.copyValues(bserReferralFeedbackDocument);
-
-									// From ths document, grab composition.
-									Composition bserReferralFeedbacDocComposition = (Composition) bserReferralFeedbackDocument.getEntryFirstRep().getResource();
-									for (SectionComponent section : bserReferralFeedbacDocComposition.getSection()) {
-										// run through the section.entry to capture the reference.
-										for (Reference sectionEntryReference : section.getEntry()) {
-											// Find this reference from the document entry.
-											for (BundleEntryComponent bserReferralFeedbackDocEntry : bserReferralFeedbackDocument.getEntry()) {
-												if (bserReferralFeedbackDocEntry.getFullUrl().contains(sectionEntryReference.getReferenceElement().getValue())) {
-													Resource supportInfoResource = bserReferralFeedbackDocEntry.getResource();
-
-													// substitute the patient
-													if (supportInfoResource instanceof Observation) {
-														// String supportResourceSubjectRef = myPatient.getIdElement().toVersionless().getId();
-														String subjectName = myPatient.getNameFirstRep().getGivenAsSingleString() + " " + myPatient.getNameFirstRep().getFamily();
-														Reference subjectReference = new Reference("Patient" + "/" + myPatient.getIdPart()).setDisplay(subjectName);
-														((Observation)supportInfoResource).setSubject(subjectReference);
-													} 
-													
-													saveResource(supportInfoResource);
-													// sectionEntryReference.setResource(supportInfoResource);
-													// resource.fhirType()+"/"+resource.getIdPart()
-													sectionEntryReference.setReferenceElement(supportInfoResource.getIdElement());
-													bserReferralFeedbackDocEntry.setFullUrl(supportInfoResource.fhirType()+"/"+supportInfoResource.getIdPart());
-												}
-											}
-										}
-									}
-
-									
-									saveResource(bserReferralFeedbacDocComposition);
-									// update composition id in document.
-									bserReferralFeedbackDocument.getEntryFirstRep().setFullUrl("Composition/" + bserReferralFeedbacDocComposition.getIdPart());
-									bserReferralFeedbackDocument.getEntryFirstRep().getResource().setId(bserReferralFeedbacDocComposition.getIdPart());
-									saveResource(bserReferralFeedbackDocument);
-									TaskOutputComponent myOutputFromRecipient = new TaskOutputComponent(outputFromRecipient.getType(), new Reference(bserReferralFeedbackDocument.getIdElement()));
-									myTask.addOutput(myOutputFromRecipient);
-
-									break;
-								}
-							} 
+						for (TaskOutputComponent myOutputFromRecipient : FeedbackDocuments.runAll(documentTasks)) {
+							if (myOutputFromRecipient != null) {
+								myTask.addOutput(myOutputFromRecipient);
+							}
 						}
+						if (pendingWrites != null) {
+							for (List<Resource> writes : documentWrites) {
+								pendingWrites.addAll(writes);
+							}
+						}
+						if (pendingWrites != null) {
+							commitFeedbackTransaction(pendingWrites, myTask, myServiceRequest, theContent, messageBinaryUrls);
+						} else {
+							if (myServiceRequest != null) {
+								updateResource(myServiceRequest);
+							}
+							updateResource(myTask);
+						}
+					} finally {
+						taskLock.unlock();
 					}
-					if (myServiceRequest != null) {
-						updateResource(myServiceRequest);
-					}
-					updateResource(myTask);
 				}	
 			} else {
 				throw new FHIRFormatError("The bundle must have MessageHeader first in the entry");
@@ -0,0 +1,228 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+import edu.gatech.chai.bserengine.utilities.ThrowFHIRExceptions;
+
+/**
+ * AIMD concurrency limit for calls to a shared downstream server. Each call
+ * reports its latency. While latency stays under the target and the limit is
+ * in use, the limit grows by about one per limit's worth of calls (additive
+ * increase). A call slower than the target, a 429/5xx or a connection failure
+ * cuts the limit by backoffRatio (multiplicative decrease), at most once per
+ * target latency so one slow burst counts once. Callers over the limit wait
+ * up to maxWaitMillis and are then turned away with 429. Calls take their
+ * slots through Destination.call(idempotent, limiter, action).
+ *
+ * For a limiter named PREFIX, the settings are read from:
+ * PREFIX_LIMIT_INITIAL (default 16), PREFIX_LIMIT_MIN (1), PREFIX_LIMIT_MAX (200),
+ * PREFIX_TARGET_LATENCY_MS (500), PREFIX_BACKOFF_RATIO (0.8),
+ * PREFIX_MAX_WAIT_MS (30000), PREFIX_LIMIT_ENABLED (true).
+ */
+public class AdaptiveConcurrencyLimiter {
+	private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+	private final String name;
+	private final boolean enabled;
+	private final int minLimit;
+	private final int maxLimit;
+	private final long targetLatencyNanos;
+	private final double backoffRatio;
+	private final long maxWaitMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition slotFreed = lock.newCondition();
+	private double limit;
+	private int inFlight;
+	private long lastDecreaseAt;
+	private double smoothedLatencyNanos;
+	private long calls;
+	private long dropped;
+	private long rejected;
+
+	public AdaptiveConcurrencyLimiter(String name, boolean enabled, int initialLimit, int minLimit, int maxLimit,
+			long targetLatencyMillis, double backoffRatio, long maxWaitMillis) {
+		this.name = name;
+		this.enabled = enabled;
+		this.minLimit = Math.max(minLimit, 1);
+		this.maxLimit = Math.max(maxLimit, this.minLimit);
+		this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+		this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+		this.backoffRatio = backoffRatio > 0 && backoffRatio < 1 ? backoffRatio : 0.8;
+		this.maxWaitMillis = maxWaitMillis;
+		this.lastDecreaseAt = System.nanoTime();
+	}
+
+	public static AdaptiveConcurrencyLimiter fromEnv(String name, String envPrefix) {
+		return new AdaptiveConcurrencyLimiter(name,
+			EnvUtil.getBoolean(envPrefix + "_LIMIT_ENABLED", true),
+			EnvUtil.getInt(envPrefix + "_LIMIT_INITIAL", 16),
+			EnvUtil.getInt(envPrefix + "_LIMIT_MIN", 1),
+			EnvUtil.getInt(envPrefix + "_LIMIT_MAX", 200),
+			EnvUtil.getLong(envPrefix + "_TARGET_LATENCY_MS", 500L),
+			EnvUtil.getDouble(envPrefix + "_BACKOFF_RATIO", 0.8),
+			EnvUtil.getLong(envPrefix + "_MAX_WAIT_MS", 30000L));
+	}
+
+	/**
+	 * Exports the limit, calls in flight and latency under the given metric name prefix.
+	 */
+	public AdaptiveConcurrencyLimiter registerMetrics(String prefix) {
+		EngineMetrics.gauge(prefix + "_limit", "Current concurrency limit for " + name, this::getLimit);
+		EngineMetrics.gauge(prefix + "_in_flight", "Calls in progress for " + name, this::getInFlight);
+		EngineMetrics.gauge(prefix + "_latency_ms", "Smoothed latency of " + name, this::getSmoothedLatencyMillis);
+		EngineMetrics.counter(prefix + "_calls_total", "Completed calls for " + name, this::getCalls);
+		EngineMetrics.counter(prefix + "_limit_decreases_total", "Times the limit for " + name + " was cut", this::getDropped);
+		EngineMetrics.counter(prefix + "_rejected_total", "Calls to " + name + " rejected at the limit", this::getRejected);
+		return this;
+	}
+
+	/*
+	 * Waits for a slot. Callers must give it back with release or cancel.
+	 */
+	void acquire() {
+		if (!enabled) {
+			return;
+		}
+
+		long waitStart = System.nanoTime();
+		long remaining = TimeUnit.MILLISECONDS.toNanos(Math.min(maxWaitMillis, Deadline.remainingMillis()));
+		lock.lock();
+		try {
+			while (inFlight >= (int) limit) {
+				if (remaining <= 0) {
+					Deadline.check("a " + name + " slot was free");
+					rejected++;
+					logger.warn(name + " limit of " + (int) limit + " reached; call rejected after waiting "
+						+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart) + "ms");
+					ThrowFHIRExceptions.tooManyRequestsException(name + " is at its concurrency limit. The FHIR store is overloaded.",
+						(int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(targetLatencyNanos)));
+				}
+				try {
+					remaining = slotFreed.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException(name + ": interrupted while waiting for a slot", e);
+				}
+			}
+			inFlight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Gives back the slot of a call that never reached the server, without
+	 * feeding it into the limit.
+	 */
+	void cancel() {
+		if (!enabled) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			inFlight--;
+			slotFreed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void release(long latencyNanos, boolean overloaded) {
+		if (!enabled) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			boolean saturated = inFlight >= limit / 2;
+			inFlight--;
+			calls++;
+			smoothedLatencyNanos = smoothedLatencyNanos == 0 ? latencyNanos : smoothedLatencyNanos * 0.9 + latencyNanos * 0.1;
+
+			long now = System.nanoTime();
+			if (overloaded || latencyNanos > targetLatencyNanos) {
+				if (now - lastDecreaseAt >= targetLatencyNanos) {
+					double previous = limit;
+					limit = Math.max(minLimit, limit * backoffRatio);
+					lastDecreaseAt = now;
+					dropped++;
+					logger.debug(name + " limit " + (int) previous + " -> " + (int) limit + " (latency "
+						+ TimeUnit.NANOSECONDS.toMillis(latencyNanos) + "ms" + (overloaded ? ", overloaded" : "") + ")");
+				}
+			} else if (saturated) {
+				limit = Math.min(maxLimit, limit + 1.0 / limit);
+			}
+
+			slotFreed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getLimit() {
+		lock.lock();
+		try {
+			return (int) limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getInFlight() {
+		lock.lock();
+		try {
+			return inFlight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public double getSmoothedLatencyMillis() {
+		lock.lock();
+		try {
+			return smoothedLatencyNanos / 1000000.0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getCalls() {
+		lock.lock();
+		try {
+			return calls;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDropped() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getRejected() {
+		lock.lock();
+		try {
+			return rejected;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+import edu.gatech.chai.bserengine.utilities.ThrowFHIRExceptions;
+
+/**
+ * Admission control for the two write operations. $referral-request and
+ * $process-message each get their own Bulkhead, so a burst of feedback
+ * messages cannot take the capacity referral submission needs (and the other
+ * way around). When an operation is at its limit and its wait queue is full,
+ * or the wait runs out, the request is rejected right away with 429, a
+ * Retry-After header and an OperationOutcome, instead of piling up on servlet
+ * threads while the FHIR store is slow.
+ *
+ * REFERRAL_MAX_CONCURRENT, FEEDBACK_MAX_CONCURRENT: requests in progress (default 32; 0 turns the limit off).
+ * REFERRAL_MAX_QUEUE, FEEDBACK_MAX_QUEUE: requests allowed to wait for a slot (default 64).
+ * REFERRAL_MAX_WAIT_MS, FEEDBACK_MAX_WAIT_MS: how long a request may wait (default 1000).
+ * ADMISSION_RETRY_AFTER_SECONDS: Retry-After sent with a 429 (default 2).
+ */
+@Interceptor
+public class AdmissionControlInterceptor {
+	private static final Logger logger = LoggerFactory.getLogger(AdmissionControlInterceptor.class);
+
+	public static final String REFERRAL_OPERATION = "$referral-request";
+	public static final String FEEDBACK_OPERATION = "$process-message";
+
+	private static final String PERMIT_ATTRIBUTE = AdmissionControlInterceptor.class.getName() + ".permit";
+
+	private final Bulkhead referralBulkhead;
+	private final Bulkhead feedbackBulkhead;
+	private final int retryAfterSeconds;
+
+	public AdmissionControlInterceptor() {
+		this(bulkhead(REFERRAL_OPERATION, "REFERRAL").registerMetrics("bser_admission_referral"),
+			bulkhead(FEEDBACK_OPERATION, "FEEDBACK").registerMetrics("bser_admission_feedback"),
+			EnvUtil.getInt("ADMISSION_RETRY_AFTER_SECONDS", 2));
+	}
+
+	public AdmissionControlInterceptor(Bulkhead referralBulkhead, Bulkhead feedbackBulkhead, int retryAfterSeconds) {
+		this.referralBulkhead = referralBulkhead;
+		this.feedbackBulkhead = feedbackBulkhead;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	private static Bulkhead bulkhead(String operation, String envPrefix) {
+		return new Bulkhead(operation,
+			EnvUtil.getInt(envPrefix + "_MAX_CONCURRENT", 32),
+			EnvUtil.getInt(envPrefix + "_MAX_QUEUE", 64),
+			EnvUtil.getLong(envPrefix + "_MAX_WAIT_MS", 1000L));
+	}
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	public void admit(RequestDetails theRequestDetails) {
+		Bulkhead bulkhead = bulkheadFor(theRequestDetails.getOperation());
+		if (bulkhead == null || !bulkhead.isLimited()) {
+			return;
+		}
+
+		boolean admitted;
+		try {
+			admitted = bulkhead.tryAcquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			admitted = false;
+		}
+
+		if (!admitted) {
+			logger.warn(bulkhead.getName() + " rejected: " + bulkhead.getActive() + " in progress, "
+				+ bulkhead.getWaiting() + " waiting, " + bulkhead.getRejected() + " rejected so far");
+			ThrowFHIRExceptions.tooManyRequestsException(bulkhead.getName()
+				+ " is at its concurrency limit. Retry after " + retryAfterSeconds + " seconds.", retryAfterSeconds);
+		}
+
+		theRequestDetails.getUserData().put(PERMIT_ATTRIBUTE, bulkhead);
+	}
+
+	/*
+	 * Called once per request, whether it succeeded or failed.
+	 */
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void release(RequestDetails theRequestDetails) {
+		Object bulkhead = theRequestDetails.getUserData().remove(PERMIT_ATTRIBUTE);
+		if (bulkhead instanceof Bulkhead) {
+			((Bulkhead) bulkhead).release();
+		}
+	}
+
+	private Bulkhead bulkheadFor(String operation) {
+		if (REFERRAL_OPERATION.equals(operation)) {
+			return referralBulkhead;
+		} else if (FEEDBACK_OPERATION.equals(operation)) {
+			return feedbackBulkhead;
+		}
+
+		return null;
+	}
+
+	public Bulkhead getReferralBulkhead() {
+		return referralBulkhead;
+	}
+
+	public Bulkhead getFeedbackBulkhead() {
+		return feedbackBulkhead;
+	}
+}
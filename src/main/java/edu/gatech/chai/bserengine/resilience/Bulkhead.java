@@ -0,0 +1,103 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+
+/**
+ * Concurrency limit with a bounded wait queue. Up to maxConcurrent callers run
+ * at once, up to maxQueue more wait at most maxWaitMillis for a permit, and
+ * anyone beyond that is turned away at once. maxConcurrent of 0 or less means
+ * no limit.
+ */
+public class Bulkhead {
+	private final String name;
+	private final int maxConcurrent;
+	private final int maxQueue;
+	private final long maxWaitMillis;
+	private final Semaphore permits;
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public Bulkhead(String name, int maxConcurrent, int maxQueue, long maxWaitMillis) {
+		this.name = name;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueue = Math.max(maxQueue, 0);
+		this.maxWaitMillis = Math.max(maxWaitMillis, 0);
+		this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent, true) : null;
+	}
+
+	/**
+	 * @return true when the caller may proceed and must call release(), false when it was rejected.
+	 */
+	public boolean tryAcquire() throws InterruptedException {
+		if (permits == null) {
+			return true;
+		}
+
+		if (permits.tryAcquire()) {
+			return true;
+		}
+
+		if (waiting.incrementAndGet() > maxQueue) {
+			waiting.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+
+		try {
+			if (permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				return true;
+			}
+		} finally {
+			waiting.decrementAndGet();
+		}
+
+		rejected.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Exports the limit, active, waiting and rejected counts under the given metric name prefix.
+	 */
+	public Bulkhead registerMetrics(String prefix) {
+		EngineMetrics.gauge(prefix + "_limit", "Concurrency limit for " + name, this::getMaxConcurrent);
+		EngineMetrics.gauge(prefix + "_active", "Requests in progress for " + name, this::getActive);
+		EngineMetrics.gauge(prefix + "_waiting", "Requests waiting for a slot for " + name, this::getWaiting);
+		EngineMetrics.counter(prefix + "_rejected_total", "Requests to " + name + " rejected with 429", this::getRejected);
+		return this;
+	}
+
+	public void release() {
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isLimited() {
+		return permits != null;
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getActive() {
+		return permits == null ? 0 : maxConcurrent - permits.availablePermits();
+	}
+
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+}
@@ -0,0 +1,124 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for one destination. After failureThreshold transient
+ * failures in a row the circuit opens and calls fail at once for openMillis.
+ * Then one trial call is let through (half open): if it succeeds the circuit
+ * closes, if it fails the circuit opens again.
+ */
+public class CircuitBreaker {
+	private static final Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+	public enum State { CLOSED, OPEN, HALF_OPEN }
+
+	private final String name;
+	private final int failureThreshold;
+	private final long openNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openedAt;
+	private boolean trialInProgress;
+
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+	}
+
+	/**
+	 * Throws CircuitOpenException when the call must not be made.
+	 */
+	public void beforeCall() {
+		if (failureThreshold <= 0) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			if (state == State.OPEN) {
+				long openFor = System.nanoTime() - openedAt;
+				if (openFor < openNanos) {
+					throw new CircuitOpenException(name, (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(openNanos - openFor)));
+				}
+				state = State.HALF_OPEN;
+				trialInProgress = false;
+				logger.info("Circuit for " + name + " is half open. Trying one call.");
+			}
+
+			if (state == State.HALF_OPEN) {
+				if (trialInProgress) {
+					throw new CircuitOpenException(name, 1);
+				}
+				trialInProgress = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void onSuccess() {
+		lock.lock();
+		try {
+			if (state != State.CLOSED) {
+				logger.info("Circuit for " + name + " is closed again.");
+			}
+			state = State.CLOSED;
+			consecutiveFailures = 0;
+			trialInProgress = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void onFailure() {
+		if (failureThreshold <= 0) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			consecutiveFailures++;
+			if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+				if (state != State.OPEN) {
+					logger.warn("Circuit for " + name + " opened after " + consecutiveFailures + " failures in a row. Failing fast for "
+						+ TimeUnit.NANOSECONDS.toMillis(openNanos) + "ms.");
+				}
+				state = State.OPEN;
+				openedAt = System.nanoTime();
+				trialInProgress = false;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * For a call let through by beforeCall that ended without telling whether the
+	 * destination works. Frees the half-open trial so the next call can try.
+	 */
+	public void onAbandoned() {
+		lock.lock();
+		try {
+			trialInProgress = false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public State getState() {
+		lock.lock();
+		try {
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * HTTP 503. A server the engine depends on is down and its circuit is open,
+ * so the call was not made.
+ */
+public class CircuitOpenException extends BaseServerResponseException {
+	private static final long serialVersionUID = 1L;
+
+	public static final int STATUS_CODE = 503;
+
+	public CircuitOpenException(String destination, int retryAfterSeconds) {
+		super(STATUS_CODE, destination + " is unavailable (circuit open). Retry after " + retryAfterSeconds + " seconds.",
+			operationOutcome(destination + " is unavailable (circuit open)."));
+		addResponseHeader("Retry-After", Integer.toString(retryAfterSeconds));
+	}
+
+	private static OperationOutcome operationOutcome(String message) {
+		OperationOutcome outcome = new OperationOutcome();
+		CodeableConcept detailCode = new CodeableConcept();
+		detailCode.setText(message);
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.TRANSIENT).setDetails(detailCode);
+		return outcome;
+	}
+}
@@ -0,0 +1,122 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time budget for the request on the current thread. Downstream calls get
+ * only what is left of it (see TimeoutInterceptor and Destination), and once
+ * it runs out the next call throws DeadlineExceededException with the steps
+ * that were completed. Without a deadline nothing is limited.
+ */
+public class Deadline {
+	private static final ThreadLocal<Deadline> current = new ThreadLocal<Deadline>();
+
+	private final long budgetMillis;
+	private final long expiresAtNanos;
+	private final List<String> progress = Collections.synchronizedList(new ArrayList<String>());
+
+	private Deadline(long budgetMillis) {
+		this.budgetMillis = budgetMillis;
+		this.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+	}
+
+	/**
+	 * Starts a deadline on this thread, or narrows the one already running when
+	 * the new budget ends earlier.
+	 */
+	public static Deadline start(long budgetMillis) {
+		Deadline deadline = current.get();
+		if (budgetMillis <= 0) {
+			return deadline;
+		}
+
+		if (deadline == null || deadline.remaining() > budgetMillis) {
+			Deadline narrowed = new Deadline(budgetMillis);
+			if (deadline != null) {
+				narrowed.progress.addAll(deadline.progress);
+			}
+			deadline = narrowed;
+			current.set(deadline);
+		}
+
+		return deadline;
+	}
+
+	/**
+	 * Runs the work on this thread under the given deadline (which may be null),
+	 * for work handed to another thread.
+	 */
+	public static void runWith(Deadline deadline, Runnable work) {
+		Deadline previous = current.get();
+		current.set(deadline);
+		try {
+			work.run();
+		} finally {
+			current.set(previous);
+		}
+	}
+
+	public static Deadline current() {
+		return current.get();
+	}
+
+	public static void clear() {
+		current.remove();
+	}
+
+	/**
+	 * @return milliseconds left, or Long.MAX_VALUE when there is no deadline.
+	 */
+	public static long remainingMillis() {
+		Deadline deadline = current.get();
+		return deadline == null ? Long.MAX_VALUE : deadline.remaining();
+	}
+
+	/**
+	 * @return the timeout cut down to the time left, never below 1ms.
+	 */
+	public static int clampTimeout(int timeoutMillis) {
+		long remaining = remainingMillis();
+		if (remaining >= timeoutMillis) {
+			return timeoutMillis;
+		}
+
+		return (int) Math.max(remaining, 1);
+	}
+
+	/**
+	 * Throws DeadlineExceededException when the deadline has passed.
+	 */
+	public static void check(String nextStep) {
+		Deadline deadline = current.get();
+		if (deadline != null && deadline.remaining() <= 0) {
+			throw deadline.exceeded(nextStep);
+		}
+	}
+
+	public static boolean isExpired() {
+		Deadline deadline = current.get();
+		return deadline != null && deadline.remaining() <= 0;
+	}
+
+	/**
+	 * Notes a completed step, reported back if the deadline runs out later.
+	 */
+	public static void recordProgress(String step) {
+		Deadline deadline = current.get();
+		if (deadline != null) {
+			deadline.progress.add(step);
+		}
+	}
+
+	public DeadlineExceededException exceeded(String nextStep) {
+		return new DeadlineExceededException("Time budget of " + budgetMillis + "ms ran out before " + nextStep, new ArrayList<String>(progress));
+	}
+
+	private long remaining() {
+		return TimeUnit.NANOSECONDS.toMillis(expiresAtNanos - System.nanoTime());
+	}
+}
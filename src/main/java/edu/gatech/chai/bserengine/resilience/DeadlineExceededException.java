@@ -0,0 +1,37 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * HTTP 504. The request's time budget ran out. The OperationOutcome has an
+ * error issue saying where the operation stopped and an information issue for
+ * each step that was completed, so the caller knows what was already written.
+ */
+public class DeadlineExceededException extends BaseServerResponseException {
+	private static final long serialVersionUID = 1L;
+
+	public static final int STATUS_CODE = 504;
+
+	public DeadlineExceededException(String message, List<String> completedSteps) {
+		super(STATUS_CODE, message, operationOutcome(message, completedSteps));
+	}
+
+	private static OperationOutcome operationOutcome(String message, List<String> completedSteps) {
+		OperationOutcome outcome = new OperationOutcome();
+		CodeableConcept detailCode = new CodeableConcept();
+		detailCode.setText(message);
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.TIMEOUT).setDetails(detailCode);
+		for (String step : completedSteps) {
+			outcome.addIssue().setSeverity(IssueSeverity.INFORMATION).setCode(IssueType.INFORMATIONAL).setDiagnostics("Completed: " + step);
+		}
+
+		return outcome;
+	}
+}
@@ -0,0 +1,44 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Starts the Deadline for $referral-request. The budget is the
+ * X-Request-Timeout-Ms header if the caller sent one, capped by the server
+ * default REFERRAL_DEADLINE_MS (default 120000; 0 for no server default).
+ * The operation's timeoutMs parameter can narrow it further.
+ */
+@Interceptor
+public class DeadlineInterceptor {
+	public static final String TIMEOUT_HEADER = "X-Request-Timeout-Ms";
+
+	private final long defaultBudgetMillis = EnvUtil.getLong("REFERRAL_DEADLINE_MS", 120000L);
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_PRE_HANDLED)
+	public void startDeadline(RequestDetails theRequestDetails) {
+		Deadline.clear();
+		if (!AdmissionControlInterceptor.REFERRAL_OPERATION.equals(theRequestDetails.getOperation())) {
+			return;
+		}
+
+		Deadline.start(defaultBudgetMillis);
+
+		String header = theRequestDetails.getHeader(TIMEOUT_HEADER);
+		if (header != null && !header.isBlank()) {
+			try {
+				Deadline.start(Long.parseLong(header.trim()));
+			} catch (NumberFormatException e) {
+				// Ignore a malformed header and keep the server default.
+			}
+		}
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void clearDeadline(RequestDetails theRequestDetails) {
+		Deadline.clear();
+	}
+}
@@ -0,0 +1,167 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.client.InterceptingClientHttpRequestFactory;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * One outbound base URL (FHIR store, EHR, recipient, token API) with its own
+ * timeouts, retry policy and circuit breaker. Get it from Destinations.
+ */
+public class Destination {
+	private static final Logger logger = LoggerFactory.getLogger(Destination.class);
+
+	private final String baseUrl;
+	private final DestinationPolicy policy;
+	private final CircuitBreaker circuitBreaker;
+	private final TimeoutInterceptor timeoutInterceptor;
+	private final GzipRequestInterceptor gzipInterceptor;
+
+	Destination(String baseUrl, DestinationPolicy policy, CircuitBreaker circuitBreaker) {
+		this.baseUrl = baseUrl;
+		this.policy = policy;
+		this.circuitBreaker = circuitBreaker;
+		this.timeoutInterceptor = new TimeoutInterceptor(policy);
+		this.gzipInterceptor = policy.getGzipMinBytes() > 0 ? new GzipRequestInterceptor(policy.getGzipMinBytes()) : null;
+	}
+
+	/**
+	 * Applies this destination's timeouts, and request compression when it is
+	 * on, to a HAPI client for it.
+	 */
+	public IGenericClient configure(IGenericClient genericClient) {
+		genericClient.registerInterceptor(timeoutInterceptor);
+		if (gzipInterceptor != null) {
+			genericClient.registerInterceptor(gzipInterceptor);
+		}
+		return genericClient;
+	}
+
+	/**
+	 * Request factory with this destination's timeouts, cut down to what is left
+	 * of the Deadline, and request compression when it is on, for a RestTemplate.
+	 */
+	public ClientHttpRequestFactory requestFactory() {
+		ClientHttpRequestFactory requestFactory = streamingRequestFactory();
+		if (gzipInterceptor == null) {
+			return requestFactory;
+		}
+
+		return new InterceptingClientHttpRequestFactory(requestFactory, Collections.singletonList(gzipInterceptor));
+	}
+
+	/**
+	 * Like requestFactory, but request bodies are streamed as they are written,
+	 * never buffered or compressed. For bodies sent from a file.
+	 */
+	public ClientHttpRequestFactory streamingRequestFactory() {
+		SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+		requestFactory.setConnectTimeout(Deadline.clampTimeout(policy.getConnectTimeoutMillis()));
+		requestFactory.setReadTimeout(Deadline.clampTimeout(policy.getReadTimeoutMillis()));
+		return requestFactory;
+	}
+
+	/**
+	 * Makes the call through the circuit breaker. Idempotent calls (reads,
+	 * searches, updates and deletes by id) are retried with exponential backoff
+	 * on transient failures; other calls are made once. No call or retry is
+	 * started once the Deadline has passed.
+	 */
+	public <T> T call(boolean idempotent, Supplier<T> action) {
+		return call(idempotent, null, action);
+	}
+
+	/**
+	 * Like call(idempotent, action), but each attempt also takes a slot of the
+	 * limiter and reports its own latency to it. The slot is given back before
+	 * the backoff sleep, and a call the open circuit turned away is not counted.
+	 */
+	public <T> T call(boolean idempotent, AdaptiveConcurrencyLimiter limiter, Supplier<T> action) {
+		int attempt = 0;
+		while (true) {
+			Deadline.check("calling " + baseUrl);
+			if (limiter != null) {
+				limiter.acquire();
+			}
+			try {
+				circuitBreaker.beforeCall();
+			} catch (RuntimeException e) {
+				if (limiter != null) {
+					limiter.cancel();
+				}
+				throw e;
+			}
+
+			long start = System.nanoTime();
+			boolean settled = false;
+			boolean transientFailure = false;
+			RuntimeException failure;
+			try {
+				T result = action.get();
+				circuitBreaker.onSuccess();
+				settled = true;
+				return result;
+			} catch (DeadlineExceededException e) {
+				throw e;
+			} catch (RuntimeException e) {
+				if (Deadline.isExpired()) {
+					// The timeout was cut down to the deadline; report the deadline, not the timeout.
+					throw Deadline.current().exceeded("the call to " + baseUrl + " completed");
+				}
+
+				transientFailure = TransientFailures.isTransient(e);
+				if (transientFailure) {
+					circuitBreaker.onFailure();
+				} else {
+					// The server answered; the request was the problem.
+					circuitBreaker.onSuccess();
+				}
+				settled = true;
+				failure = e;
+			} finally {
+				if (!settled) {
+					// Cut short by our own deadline or an Error: no verdict on the
+					// destination, but a half-open trial must not stay taken.
+					circuitBreaker.onAbandoned();
+				}
+				if (limiter != null) {
+					limiter.release(System.nanoTime() - start, transientFailure);
+				}
+			}
+
+			long backoff = (long) (policy.getRetryBackoffMillis() * Math.pow(2, attempt) * (0.5 + ThreadLocalRandom.current().nextDouble()));
+			if (!idempotent || !transientFailure || attempt >= policy.getMaxRetries() || backoff >= Deadline.remainingMillis()) {
+				throw failure;
+			}
+
+			attempt++;
+			logger.debug("Retrying call to " + baseUrl + " (" + attempt + "/" + policy.getMaxRetries() + ") in " + backoff + "ms after: " + failure.getMessage());
+			try {
+				Thread.sleep(backoff);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw failure;
+			}
+		}
+	}
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public DestinationPolicy getPolicy() {
+		return policy;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return circuitBreaker;
+	}
+}
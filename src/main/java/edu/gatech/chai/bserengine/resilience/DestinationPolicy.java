@@ -0,0 +1,118 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Timeouts and retry settings for one outbound destination.
+ *
+ * Defaults for every destination:
+ * OUTBOUND_CONNECT_TIMEOUT_MS (default 5000), OUTBOUND_READ_TIMEOUT_MS (60000),
+ * OUTBOUND_MAX_RETRIES (2), OUTBOUND_RETRY_BACKOFF_MS (200),
+ * OUTBOUND_GZIP_MIN_BYTES (0: request bodies are never compressed).
+ *
+ * OUTBOUND_POLICIES overrides them per base URL, as a semicolon-separated list of
+ * baseUrl=key:value,... with the keys connect, read, retries, backoff and gzip, e.g.
+ * "https://ehr.example.org/fhir=connect:2000,read:10000,retries:1".
+ */
+public class DestinationPolicy {
+	private final int connectTimeoutMillis;
+	private final int readTimeoutMillis;
+	private final int maxRetries;
+	private final long retryBackoffMillis;
+	private final long gzipMinBytes;
+
+	public DestinationPolicy(int connectTimeoutMillis, int readTimeoutMillis, int maxRetries, long retryBackoffMillis, long gzipMinBytes) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+		this.maxRetries = maxRetries;
+		this.retryBackoffMillis = retryBackoffMillis;
+		this.gzipMinBytes = gzipMinBytes;
+	}
+
+	public static DestinationPolicy defaults() {
+		return new DestinationPolicy(
+			EnvUtil.getInt("OUTBOUND_CONNECT_TIMEOUT_MS", 5000),
+			EnvUtil.getInt("OUTBOUND_READ_TIMEOUT_MS", 60000),
+			EnvUtil.getInt("OUTBOUND_MAX_RETRIES", 2),
+			EnvUtil.getLong("OUTBOUND_RETRY_BACKOFF_MS", 200L),
+			EnvUtil.getLong("OUTBOUND_GZIP_MIN_BYTES", 0L));
+	}
+
+	/**
+	 * @return the policy for baseUrl: the longest matching OUTBOUND_POLICIES entry applied over the defaults.
+	 */
+	public static DestinationPolicy forBaseUrl(String baseUrl, DestinationPolicy defaults) {
+		String policies = EnvUtil.getString("OUTBOUND_POLICIES", null);
+		if (policies == null || baseUrl == null) {
+			return defaults;
+		}
+
+		String matchedPrefix = null;
+		String matchedSettings = null;
+		for (String entry : policies.split(";")) {
+			int equals = entry.indexOf('=');
+			if (equals <= 0) {
+				continue;
+			}
+			String prefix = Destinations.normalize(entry.substring(0, equals).trim());
+			if (baseUrl.startsWith(prefix) && (matchedPrefix == null || prefix.length() > matchedPrefix.length())) {
+				matchedPrefix = prefix;
+				matchedSettings = entry.substring(equals + 1);
+			}
+		}
+
+		if (matchedSettings == null) {
+			return defaults;
+		}
+
+		int connect = defaults.connectTimeoutMillis;
+		int read = defaults.readTimeoutMillis;
+		int retries = defaults.maxRetries;
+		long backoff = defaults.retryBackoffMillis;
+		long gzip = defaults.gzipMinBytes;
+		for (String setting : matchedSettings.split(",")) {
+			String[] keyValue = setting.split(":", 2);
+			if (keyValue.length != 2) {
+				continue;
+			}
+			try {
+				long value = Long.parseLong(keyValue[1].trim());
+				switch (keyValue[0].trim()) {
+				case "connect": connect = (int) value; break;
+				case "read": read = (int) value; break;
+				case "retries": retries = (int) value; break;
+				case "backoff": backoff = value; break;
+				case "gzip": gzip = value; break;
+				default: break;
+				}
+			} catch (NumberFormatException e) {
+				// Keep the default for a malformed value.
+			}
+		}
+
+		return new DestinationPolicy(connect, read, retries, backoff, gzip);
+	}
+
+	public int getConnectTimeoutMillis() {
+		return connectTimeoutMillis;
+	}
+
+	public int getReadTimeoutMillis() {
+		return readTimeoutMillis;
+	}
+
+	public int getMaxRetries() {
+		return maxRetries;
+	}
+
+	public long getRetryBackoffMillis() {
+		return retryBackoffMillis;
+	}
+
+	/**
+	 * @return the smallest request body that is gzipped, or 0 when none are.
+	 */
+	public long getGzipMinBytes() {
+		return gzipMinBytes;
+	}
+}
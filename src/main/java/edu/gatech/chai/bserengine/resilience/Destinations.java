@@ -0,0 +1,53 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+
+/**
+ * Outbound destinations keyed by base URL, so a slow or failing EHR does not
+ * take the FHIR store or the recipient down with it. Timeouts and retries are
+ * set with DestinationPolicy.
+ *
+ * CIRCUIT_FAILURE_THRESHOLD: transient failures in a row that open a circuit (default 5; 0 turns circuits off).
+ * CIRCUIT_OPEN_MS: how long an open circuit fails fast before a trial call (default 30000).
+ */
+public class Destinations {
+	private static final DestinationPolicy defaults = DestinationPolicy.defaults();
+	private static final int failureThreshold = EnvUtil.getInt("CIRCUIT_FAILURE_THRESHOLD", 5);
+	private static final long openMillis = EnvUtil.getLong("CIRCUIT_OPEN_MS", 30000L);
+
+	private static final ConcurrentMap<String, Destination> destinations = new ConcurrentHashMap<String, Destination>();
+
+	public static Destination get(String baseUrl) {
+		return destinations.computeIfAbsent(normalize(baseUrl),
+			key -> new Destination(key, DestinationPolicy.forBaseUrl(key, defaults), new CircuitBreaker(key, failureThreshold, openMillis)));
+	}
+
+	/**
+	 * Sets the default timeouts on the shared HAPI client factory, for clients that
+	 * are not configured per destination.
+	 */
+	public static void configureClientFactory(FhirContext fhirContext) {
+		IRestfulClientFactory clientFactory = fhirContext.getRestfulClientFactory();
+		clientFactory.setConnectTimeout(defaults.getConnectTimeoutMillis());
+		clientFactory.setConnectionRequestTimeout(defaults.getConnectTimeoutMillis());
+		clientFactory.setSocketTimeout(defaults.getReadTimeoutMillis());
+	}
+
+	static String normalize(String baseUrl) {
+		if (baseUrl == null) {
+			return "";
+		}
+
+		String normalized = baseUrl.trim();
+		while (normalized.endsWith("/")) {
+			normalized = normalized.substring(0, normalized.length() - 1);
+		}
+
+		return normalized;
+	}
+}
@@ -0,0 +1,79 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import edu.gatech.chai.bserengine.utilities.Gzip;
+
+/**
+ * Gzips request bodies of at least a destination's threshold, for HAPI clients
+ * and RestTemplates. Smaller bodies are sent as they are, since compressing
+ * them costs more than the bytes saved.
+ */
+public class GzipRequestInterceptor implements IClientInterceptor, ClientHttpRequestInterceptor {
+	private final long minBytes;
+
+	public GzipRequestInterceptor(long minBytes) {
+		this.minBytes = minBytes;
+	}
+
+	@Override
+	public void interceptRequest(IHttpRequest theRequest) {
+		if (!(theRequest instanceof ApacheHttpRequest)) {
+			return;
+		}
+
+		HttpRequestBase apacheRequest = ((ApacheHttpRequest) theRequest).getApacheRequest();
+		if (!(apacheRequest instanceof HttpEntityEnclosingRequest) || apacheRequest.containsHeader(Constants.HEADER_CONTENT_ENCODING)) {
+			return;
+		}
+
+		HttpEntity entity = ((HttpEntityEnclosingRequest) apacheRequest).getEntity();
+		if (entity == null || entity.getContentLength() < minBytes) {
+			return;
+		}
+
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream((int) entity.getContentLength());
+			entity.writeTo(body);
+			ByteArrayEntity compressed = new ByteArrayEntity(Gzip.compress(body.toByteArray()));
+			compressed.setContentType(entity.getContentType());
+			((HttpEntityEnclosingRequest) apacheRequest).setEntity(compressed);
+			apacheRequest.addHeader(Constants.HEADER_CONTENT_ENCODING, Gzip.ENCODING);
+		} catch (IOException e) {
+			// The entity could not be read again; send it uncompressed.
+		}
+	}
+
+	@Override
+	public void interceptResponse(IHttpResponse theResponse) {
+	}
+
+	@Override
+	public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+		HttpHeaders headers = request.getHeaders();
+		if (body.length < minBytes || headers.containsKey(HttpHeaders.CONTENT_ENCODING)) {
+			return execution.execute(request, body);
+		}
+
+		byte[] compressed = Gzip.compress(body);
+		headers.set(HttpHeaders.CONTENT_ENCODING, Gzip.ENCODING);
+		headers.setContentLength(compressed.length);
+		return execution.execute(request, compressed);
+	}
+}
@@ -0,0 +1,149 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+
+/**
+ * Bounded, in-memory map from idempotency key to the outcome of the request
+ * that first used it. A second request with the same key waits for the first
+ * while it is in flight and then gets its result, and for ttlMillis after that
+ * gets the stored result straight away. Failed requests are not kept, so the
+ * client can retry them. When the map is full, the least recently used key is
+ * dropped. Replays get a copy of the result, as the response may be changed
+ * while it is written out (narratives).
+ */
+public class IdempotencyCache<T> {
+	private final String name;
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final UnaryOperator<T> copier;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<String, Entry<T>> entries;
+	private final AtomicLong replayed = new AtomicLong();
+
+	private static class Entry<T> {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		volatile long completedAt;
+	}
+
+	public IdempotencyCache(String name, int maxEntries, long ttlMillis, UnaryOperator<T> copier) {
+		this.name = name;
+		this.copier = copier;
+		this.maxEntries = maxEntries;
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.entries = new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+				return size() > IdempotencyCache.this.maxEntries;
+			}
+		};
+	}
+
+	public IdempotencyCache<T> registerMetrics(String prefix) {
+		EngineMetrics.counter(prefix + "_replayed_total", "Requests answered from the " + name + " idempotency cache", replayed::get);
+		EngineMetrics.gauge(prefix + "_entries", "Keys held in the " + name + " idempotency cache", this::size);
+		return this;
+	}
+
+	/**
+	 * Runs the work for a new key, or returns the result of the earlier request
+	 * with this key. A null key or a disabled cache always runs the work.
+	 *
+	 * @param onReplay called when the result comes from the earlier request
+	 */
+	public T execute(String key, Supplier<T> work, Runnable onReplay) {
+		if (key == null || maxEntries <= 0) {
+			return work.get();
+		}
+
+		Entry<T> entry;
+		boolean owner = false;
+		lock.lock();
+		try {
+			entry = entries.get(key);
+			if (entry != null && entry.completedAt != 0 && System.nanoTime() - entry.completedAt > ttlNanos) {
+				entries.remove(key);
+				entry = null;
+			}
+			if (entry == null) {
+				entry = new Entry<T>();
+				entries.put(key, entry);
+				owner = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		if (owner) {
+			try {
+				T result = work.get();
+				entry.completedAt = System.nanoTime();
+				entry.result.complete(result);
+				return result;
+			} catch (RuntimeException | Error e) {
+				remove(key, entry);
+				entry.result.completeExceptionally(e);
+				throw e;
+			}
+		}
+
+		T result = await(entry);
+		replayed.incrementAndGet();
+		onReplay.run();
+		return copier.apply(result);
+	}
+
+	private T await(Entry<T> entry) {
+		try {
+			long remaining = Deadline.remainingMillis();
+			if (remaining == Long.MAX_VALUE) {
+				return entry.result.get();
+			}
+			return entry.result.get(Math.max(remaining, 1), TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new InternalErrorException("The earlier request with this idempotency key failed: " + e.getCause().getMessage(), e.getCause());
+		} catch (TimeoutException e) {
+			throw Deadline.current().exceeded("the earlier request with this idempotency key completed");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InternalErrorException("Interrupted while waiting for the earlier request with this idempotency key", e);
+		}
+	}
+
+	private void remove(String key, Entry<T> entry) {
+		lock.lock();
+		try {
+			if (entries.get(key) == entry) {
+				entries.remove(key);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
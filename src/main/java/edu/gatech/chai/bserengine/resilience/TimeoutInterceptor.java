@@ -0,0 +1,39 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import org.apache.http.client.config.RequestConfig;
+
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+
+/**
+ * Sets a destination's connect and read timeouts on each request of a HAPI
+ * client. The timeouts on the shared client factory apply to every server;
+ * this overrides them per request. Under a Deadline, the timeouts are cut
+ * down to the time left.
+ */
+public class TimeoutInterceptor implements IClientInterceptor {
+	private final DestinationPolicy policy;
+
+	public TimeoutInterceptor(DestinationPolicy policy) {
+		this.policy = policy;
+	}
+
+	@Override
+	public void interceptRequest(IHttpRequest theRequest) {
+		if (theRequest instanceof ApacheHttpRequest) {
+			int connectTimeout = Deadline.clampTimeout(policy.getConnectTimeoutMillis());
+			RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeout)
+				.setConnectionRequestTimeout(connectTimeout)
+				.setSocketTimeout(Deadline.clampTimeout(policy.getReadTimeoutMillis()))
+				.build();
+			((ApacheHttpRequest) theRequest).getApacheRequest().setConfig(requestConfig);
+		}
+	}
+
+	@Override
+	public void interceptResponse(IHttpResponse theResponse) {
+	}
+}
@@ -0,0 +1,20 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * HTTP 429. The engine is over its limit for the operation; the client should
+ * retry after the number of seconds in the Retry-After header.
+ */
+public class TooManyRequestsException extends BaseServerResponseException {
+	private static final long serialVersionUID = 1L;
+
+	public static final int STATUS_CODE = 429;
+
+	public TooManyRequestsException(String message, IBaseOperationOutcome operationOutcome, int retryAfterSeconds) {
+		super(STATUS_CODE, message, operationOutcome);
+		addResponseHeader("Retry-After", Integer.toString(retryAfterSeconds));
+	}
+}
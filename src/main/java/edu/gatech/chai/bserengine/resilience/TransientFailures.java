@@ -0,0 +1,36 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Tells failures that say a remote server is down or overloaded (connection
+ * errors, timeouts, 429 and 5xx) from failures about the request itself
+ * (404, 409, 412, 422, ...). Only the first kind is worth a retry, and only
+ * the first kind counts against a circuit breaker or a concurrency limit.
+ */
+public class TransientFailures {
+
+	public static boolean isTransient(Throwable e) {
+		if (e instanceof FhirClientConnectionException || e instanceof ResourceAccessException) {
+			return true;
+		}
+
+		if (e instanceof BaseServerResponseException) {
+			return isTransientStatus(((BaseServerResponseException) e).getStatusCode());
+		}
+
+		if (e instanceof HttpStatusCodeException) {
+			return isTransientStatus(((HttpStatusCodeException) e).getStatusCode().value());
+		}
+
+		return false;
+	}
+
+	public static boolean isTransientStatus(int status) {
+		return status == 429 || status >= 500;
+	}
+}
@@ -40,6 +40,7 @@ import org.springframework.web.client.RestTemplate;
 
 import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import edu.gatech.chai.bserengine.resilience.Destinations;
 
 /**
  * @author MC142
@@ -53,6 +54,7 @@ public class Authorization {
 	private String token;
 	private String token_type;
 	private String patient;
+	private String subject;
 	private int myTimeSkewAllowance = 300;
 	private boolean active = false;
 	private boolean expired = true;
@@ -130,7 +132,7 @@ public class Authorization {
 		this.token = token;
 
 		// Introspect the token
-		RestTemplate restTemplate = new RestTemplate();
+		RestTemplate restTemplate = new RestTemplate(Destinations.get(url).requestFactory());
 		HttpEntity<String> reqAuth = new HttpEntity<String>(createHeaders());
 		ResponseEntity<String> response;
 
@@ -185,9 +187,10 @@ public class Authorization {
 //			}
 		}
 		// Store the received information such as scope, user_id, client_id, etc...
-		String userId = null;
-		if (jsonObject.has("sub"))
-			userId = jsonObject.getString("sub"); // current found no need to use this.
+		if (jsonObject.has("sub") && !jsonObject.isNull("sub"))
+			subject = jsonObject.getString("sub");
+		else if (jsonObject.has("client_id") && !jsonObject.isNull("client_id"))
+			subject = jsonObject.getString("client_id");
 		if (jsonObject.has("token_type"))
 			token_type = jsonObject.getString("token_type");
 		if (jsonObject.has("patient") && !jsonObject.isNull("patient"))
@@ -207,6 +210,14 @@ public class Authorization {
 		return true;
 	}
 
+	/**
+	 * The token's sub, or its client_id when it has no sub. Null before a
+	 * successful introspection.
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
 	public boolean checkBearer() {
 		if (token_type != null && token_type.equalsIgnoreCase("Bearer")) {
 			return true;
@@ -16,6 +16,11 @@
 
 package edu.gatech.chai.bserengine.security;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 
@@ -27,6 +32,7 @@ import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.server.exceptions.AuthenticationException;
 import ca.uhn.fhir.rest.server.exceptions.MethodNotAllowedException;
 import ca.uhn.fhir.rest.server.interceptor.InterceptorAdapter;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
 
 /**
  * @author MC142
@@ -172,6 +178,42 @@ public class OIDCInterceptor extends InterceptorAdapter {
 		return retVal;
 	}
 
+	/**
+	 * Who sent the request, for keys that must not be shared between callers:
+	 * the introspected token's subject, otherwise a SHA-256 of the Authorization
+	 * header (the static bearer token or basic credentials), otherwise the
+	 * remote address. Null when none of these is known.
+	 */
+	public static String callerOf(RequestDetails theRequestDetails) {
+		if (theRequestDetails == null) {
+			return null;
+		}
+
+		Object myAuth = theRequestDetails.getAttribute(authKeyName);
+		if (myAuth instanceof Authorization && ((Authorization) myAuth).getSubject() != null) {
+			return "sub:" + ((Authorization) myAuth).getSubject();
+		}
+
+		String authHeader = theRequestDetails.getHeader("Authorization");
+		if (authHeader != null && !authHeader.isBlank()) {
+			try {
+				byte[] digest = MessageDigest.getInstance("SHA-256").digest(authHeader.trim().getBytes(StandardCharsets.UTF_8));
+				return "auth:" + HexFormat.of().formatHex(digest);
+			} catch (NoSuchAlgorithmException e) {
+				ourLog.warn("SHA-256 is not available; falling back to the remote address", e);
+			}
+		}
+
+		if (theRequestDetails instanceof ServletRequestDetails) {
+			HttpServletRequest request = ((ServletRequestDetails) theRequestDetails).getServletRequest();
+			if (request != null && request.getRemoteAddr() != null) {
+				return "addr:" + request.getRemoteAddr();
+			}
+		}
+
+		return null;
+	}
+
 	private void postRequestHandled(RequestDetails requestDetails) {
 		
 		ourLog.debug("Request is parsed. Now in pre handled interceptor");
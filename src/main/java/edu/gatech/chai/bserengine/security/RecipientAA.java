@@ -1,6 +1,7 @@
 package edu.gatech.chai.bserengine.security;
 
 import java.time.Instant;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.json.simple.JSONObject;
@@ -16,6 +17,9 @@ import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import edu.gatech.chai.bserengine.resilience.Destination;
+import edu.gatech.chai.bserengine.resilience.Destinations;
+
 @Component
 public class RecipientAA {
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(RecipientAA.class);
@@ -28,6 +32,10 @@ public class RecipientAA {
     private String authCode;
     private String accessToken;
 
+    // Guards the cached auth code and access token. A lock and not synchronized,
+    // so a virtual thread waiting on the token call does not pin its carrier.
+    private final ReentrantLock tokenLock = new ReentrantLock();
+
     public RecipientAA () {
         setAuthenticationApiUrl(System.getenv("AUTHENTICATION_API_URL"));
         setAuthorizationApiUrl(System.getenv("AUTHORIZATION_API_URL"));
@@ -65,7 +73,8 @@ public class RecipientAA {
         logger.debug("Authorization Request Payload" + jsonBody);
 
         HttpEntity<String> requestEntity = new HttpEntity<>(jsonBody, headers);
-        ResponseEntity<String> responseEntity = restTemplate.exchange(getAuthorizationApiUrl(), HttpMethod.POST, requestEntity, String.class);
+        ResponseEntity<String> responseEntity = Destinations.get(getAuthorizationApiUrl()).call(false, () ->
+            restTemplate.exchange(getAuthorizationApiUrl(), HttpMethod.POST, requestEntity, String.class));
 
         if (responseEntity.getStatusCode().is2xxSuccessful()) {
             String responseBody = responseEntity.getBody();
@@ -85,9 +94,18 @@ public class RecipientAA {
             return null;
         }
 
+        tokenLock.lock();
+        try {
+            return fetchAccessToken();
+        } finally {
+            tokenLock.unlock();
+        }
+    }
+
+    private String fetchAccessToken() throws ParseException, RestClientException {
         long now = Instant.now().getEpochSecond();
 
-        RestTemplate restTemplate = new RestTemplate();
+        RestTemplate restTemplate = new RestTemplate(Destinations.get(getAuthenticationApiUrl()).requestFactory());
         HttpHeaders headers = new HttpHeaders();
 
         // For YUSA, we need to call Authencate API to get authorization token
@@ -112,8 +130,8 @@ public class RecipientAA {
             if (now < authCodeExpiresAt-10) {
                 accessToken = getYUSAAccessToken (headers, restTemplate, parser, now);
             } else {
-                ResponseEntity<String> responseEntity = 
-                    restTemplate.exchange(getAuthenticationApiUrl(), HttpMethod.GET, requestEntity, String.class);
+                ResponseEntity<String> responseEntity = Destinations.get(getAuthenticationApiUrl()).call(true, () ->
+                    restTemplate.exchange(getAuthenticationApiUrl(), HttpMethod.GET, requestEntity, String.class));
 
                 if (responseEntity.getStatusCode().is2xxSuccessful()) {
                     String responseBody = responseEntity.getBody();
@@ -162,7 +180,8 @@ public class RecipientAA {
     }
 
     public String submitYusaRR(String targetUrl, String messageBundleJson) {
-        RestTemplate restTemplate = new RestTemplate();
+        Destination destination = Destinations.get(targetUrl);
+        RestTemplate restTemplate = new RestTemplate(destination.requestFactory());
         HttpHeaders headers = new HttpHeaders();
 
         headers.add("x-client-id", System.getenv("xclientid"));
@@ -187,11 +206,10 @@ public class RecipientAA {
 
         logger.debug("Sending to YUSA (" + targetUrl + ") with AccessToken: " + myAccessToken);
 
-        HttpEntity<String> requestEntity = null;
         ResponseEntity<String> responseEntity = null;
         try {
-            requestEntity = new HttpEntity<>(messageBundleJson, headers);
-            responseEntity = restTemplate.exchange(targetUrl, HttpMethod.POST, requestEntity, String.class);
+            HttpEntity<String> requestEntity = new HttpEntity<>(messageBundleJson, headers);
+            responseEntity = destination.call(false, () -> restTemplate.exchange(targetUrl, HttpMethod.POST, requestEntity, String.class));
         } catch (Exception e) {
             logger.error("Submission to YUSA falied with " + e.getMessage());
             return "FAILED: with an exception - " + e.getMessage();
@@ -0,0 +1,815 @@
+package edu.gatech.chai.bserengine.servlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+
+import edu.gatech.chai.bserengine.persistence.AttachmentSpool;
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
+import edu.gatech.chai.bserengine.utilities.EnvUtil;
+import edu.gatech.chai.bserengine.utilities.Gzip;
+import edu.gatech.chai.bserengine.utilities.StaticValues;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Checks a $process-message body before HAPI builds the resource tree for it.
+ * The byte limit applies to every body, decompressed when it was sent with
+ * Content-Encoding: gzip. A JSON body is also scanned, token by token as it
+ * is read, and must be a message Bundle (or Parameters carrying one) with no
+ * more than the entry limit, whose first entry is a MessageHeader with an
+ * accepted event and, unless it is a response, a destination endpoint that is
+ * this engine. The scan stops at the first problem, and the message is
+ * answered with an OperationOutcome here, so an oversized or malformed message
+ * costs at most the bytes read so far, not a full parse. Accepted JSON bodies
+ * are passed on from the buffer they were copied into while scanned, with large
+ * attachments spooled to files by AttachmentSpool on the way in. Other bodies
+ * are passed on as a stream that fails with 413 once it goes over the limit.
+ *
+ * MESSAGE_MAX_BYTES: largest body accepted (default 20971520, 20 MB).
+ * MESSAGE_MAX_ENTRIES: most entries in the message Bundle (default 5000).
+ * MESSAGE_EVENTS: comma-separated MessageHeader events accepted, each
+ * system|code for eventCoding or a URI for eventUri (default the v2-0003 I12
+ * "REF/RRI - Patient referral" and BSeR bser-referral-feedback codings).
+ * MESSAGE_PRE_PARSE_ENABLED: false to pass bodies straight to HAPI (default true).
+ */
+public class MessagePreParseFilter implements Filter {
+	private static final Logger logger = LoggerFactory.getLogger(MessagePreParseFilter.class);
+
+	static final String PROCESS_MESSAGE = "$process-message";
+	private static final String CONTENT_ENCODING = "Content-Encoding";
+	static final String DEFAULT_EVENTS = "http://terminology.hl7.org/CodeSystem/v2-0003|I12,"
+		+ "http://hl7.org/fhir/us/bser/CodeSystem/BSeRReferralMessageTypeCS|bser-referral-feedback";
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+	private static final AtomicLong rejected = new AtomicLong();
+
+	private final boolean enabled = EnvUtil.getBoolean("MESSAGE_PRE_PARSE_ENABLED", true);
+	private final long maxBytes;
+	private final int maxEntries = EnvUtil.getInt("MESSAGE_MAX_ENTRIES", 5000);
+	private final Set<String> events = new HashSet<String>();
+	// This engine's $process-message endpoint and base URL, as advertised in BSERENDPOINTE_URL.
+	private final List<String> engineEndpoints = new ArrayList<String>();
+
+	public MessagePreParseFilter() {
+		this(EnvUtil.getString("BSERENDPOINTE_URL", null), EnvUtil.getString("MESSAGE_EVENTS", DEFAULT_EVENTS), EnvUtil.getLong("MESSAGE_MAX_BYTES", 20L * 1024 * 1024));
+	}
+
+	MessagePreParseFilter(String engineUrl, String events, long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (String event : events.split(",")) {
+			if (!event.isBlank()) {
+				this.events.add(event.trim());
+			}
+		}
+
+		if (engineUrl != null) {
+			String base = withoutTrailingSlash(engineUrl);
+			engineEndpoints.add(base);
+			engineEndpoints.add(base + "/" + PROCESS_MESSAGE);
+		}
+
+		EngineMetrics.counter("bser_message_rejected_total", "$process-message bodies rejected before parsing", rejected::get);
+	}
+
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest httpRequest = (HttpServletRequest) request;
+		if (!enabled || !isProcessMessage(httpRequest)) {
+			chain.doFilter(request, response);
+			return;
+		}
+
+		HttpServletResponse httpResponse = (HttpServletResponse) response;
+		String contentEncoding = httpRequest.getHeader(CONTENT_ENCODING);
+		boolean gzipped = Gzip.ENCODING.equalsIgnoreCase(contentEncoding);
+		if (!gzipped && httpRequest.getContentLengthLong() > maxBytes) {
+			reject(httpResponse, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, IssueType.TOOCOSTLY, "Message body of " + httpRequest.getContentLengthLong() + " bytes is over the limit of " + maxBytes + " bytes.");
+			return;
+		}
+
+		// A gzipped body is checked, and passed on, decompressed; the limits apply to
+		// what it decompresses to. Other encodings are left to HAPI, and the byte
+		// limit applies to the body as sent.
+		if (contentEncoding != null && !gzipped && !"identity".equalsIgnoreCase(contentEncoding)) {
+			chain.doFilter(new CappedBodyRequest(httpRequest, httpRequest.getInputStream(), false), response);
+			return;
+		}
+
+		InputStream in;
+		try {
+			in = gzipped ? new GZIPInputStream(httpRequest.getInputStream()) : httpRequest.getInputStream();
+		} catch (IOException e) {
+			reject(httpResponse, HttpServletResponse.SC_BAD_REQUEST, IssueType.INVALID, "Message body is not valid gzip: " + e.getMessage());
+			return;
+		}
+
+		if (!isJson(httpRequest)) {
+			chain.doFilter(new CappedBodyRequest(httpRequest, in, gzipped), response);
+			return;
+		}
+
+		List<Path> spooled = new ArrayList<Path>();
+		try {
+			BodyBuffer body = new BodyBuffer();
+			String problem;
+			try {
+				problem = scan(in, body, spooled, httpRequest.getRequestURL().toString());
+			} catch (LimitExceededException e) {
+				reject(httpResponse, HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, IssueType.TOOCOSTLY, "Message body is over the limit of " + maxBytes + " bytes.");
+				return;
+			} catch (IOException e) {
+				problem = "Message body is not valid JSON: " + e.getMessage();
+			}
+
+			if (problem != null) {
+				reject(httpResponse, HttpServletResponse.SC_BAD_REQUEST, IssueType.INVALID, problem);
+				return;
+			}
+
+			chain.doFilter(new BufferedBodyRequest(httpRequest, body, gzipped), response);
+		} finally {
+			deleteWhenDone(httpRequest, spooled);
+		}
+	}
+
+	/*
+	 * Spooled attachments are needed until the message is processed, which in
+	 * virtual-thread mode is after doFilter returns. A request that times out or
+	 * fails may not complete normally, so those delete them too.
+	 */
+	private static void deleteWhenDone(HttpServletRequest request, List<Path> spooled) {
+		if (spooled.isEmpty()) {
+			return;
+		}
+
+		if (!request.isAsyncStarted()) {
+			AttachmentSpool.delete(spooled);
+			return;
+		}
+
+		request.getAsyncContext().addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				AttachmentSpool.delete(spooled);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) {
+				AttachmentSpool.delete(spooled);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				AttachmentSpool.delete(spooled);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+	}
+
+	static boolean isProcessMessage(HttpServletRequest request) {
+		if (!"POST".equals(request.getMethod())) {
+			return false;
+		}
+
+		String uri = request.getRequestURI();
+		return uri != null && uri.endsWith(PROCESS_MESSAGE);
+	}
+
+	static boolean isJson(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		return contentType != null && contentType.toLowerCase().contains("json");
+	}
+
+	/*
+	 * Reads the body, no more than the byte limit, checking each token as it
+	 * comes and copying the body into the buffer. With spooling on, the copy is
+	 * written token by token with the large attachments taken out; otherwise it
+	 * is the bytes as read.
+	 *
+	 * @return what is wrong with the message, or null when it may be parsed.
+	 *         Reading stops at the first problem.
+	 * @throws LimitExceededException once the body goes over the byte limit
+	 */
+	String scan(InputStream in, BodyBuffer body, List<Path> spooled, String requestUrl) throws IOException {
+		InputStream limited = new LimitedInputStream(in, maxBytes);
+		if (!AttachmentSpool.isEnabled()) {
+			try (JsonParser parser = jsonFactory.createParser(new TeeInputStream(limited, body))) {
+				return checkAll(parser, requestUrl);
+			}
+		}
+
+		try (JsonGenerator generator = jsonFactory.createGenerator(body);
+			JsonParser parser = new CopyingParser(jsonFactory.createParser(limited), generator, spooled)) {
+			return checkAll(parser, requestUrl);
+		}
+	}
+
+	/*
+	 * Checks the message, then reads the rest of the body so that all of it is copied.
+	 */
+	private String checkAll(JsonParser parser, String requestUrl) throws IOException {
+		String problem = check(parser, requestUrl);
+		if (problem == null) {
+			while (parser.nextToken() != null) {
+			}
+		}
+
+		return problem;
+	}
+
+	String check(byte[] body, String requestUrl) throws IOException {
+		return scan(new ByteArrayInputStream(body), new BodyBuffer(), new ArrayList<Path>(), requestUrl);
+	}
+
+	private String check(JsonParser parser, String requestUrl) throws IOException {
+		if (parser.nextToken() != JsonToken.START_OBJECT) {
+			return "Message body must be a JSON object.";
+		}
+
+		return checkResource(parser, true, requestUrl);
+	}
+
+	/*
+	 * Reads a resource object (the parser is on its START_OBJECT) to its end,
+	 * or to the first problem. Top level, it may be a Bundle or Parameters; a
+	 * Parameters is searched for the Bundle in its parameters.
+	 */
+	private String checkResource(JsonParser parser, boolean topLevel, String requestUrl) throws IOException {
+		MessageScan scan = new MessageScan();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken value = parser.nextToken();
+			String problem = null;
+			if ("resourceType".equals(field)) {
+				scan.resourceType = parser.getValueAsString();
+				if (!"Bundle".equals(scan.resourceType) && !(topLevel && "Parameters".equals(scan.resourceType))) {
+					problem = "Message must be a Bundle, not " + scan.resourceType + ".";
+				}
+			} else if ("type".equals(field) && value == JsonToken.VALUE_STRING) {
+				scan.type = parser.getValueAsString();
+				if (!"message".equals(scan.type)) {
+					problem = "Bundle.type must be message.";
+				}
+			} else if ("entry".equals(field) && value == JsonToken.START_ARRAY) {
+				problem = scanEntries(parser, scan, requestUrl);
+			} else if (topLevel && "parameter".equals(field) && value == JsonToken.START_ARRAY) {
+				problem = scanParameters(parser, scan, requestUrl);
+			} else {
+				parser.skipChildren();
+			}
+
+			if (problem != null) {
+				return problem;
+			}
+		}
+
+		if ("Parameters".equals(scan.resourceType) && topLevel) {
+			return scan.bundleFound ? null : "Parameters must carry the message Bundle.";
+		}
+
+		return scan.checkBundle();
+	}
+
+	private String scanParameters(JsonParser parser, MessageScan scan, String requestUrl) throws IOException {
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken value = parser.nextToken();
+				if ("resource".equals(field) && value == JsonToken.START_OBJECT) {
+					scan.bundleFound = true;
+					String problem = checkResource(parser, false, requestUrl);
+					if (problem != null) {
+						return problem;
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/*
+	 * The MessageHeader is checked as soon as the first entry is read, so a
+	 * message with a wrong one is rejected before the rest of its entries.
+	 */
+	private String scanEntries(JsonParser parser, MessageScan scan, String requestUrl) throws IOException {
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			scan.entries++;
+			if (scan.entries > maxEntries) {
+				return "Message Bundle has more than " + maxEntries + " entries.";
+			}
+
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.currentName();
+				JsonToken value = parser.nextToken();
+				if (scan.entries == 1 && "resource".equals(field) && value == JsonToken.START_OBJECT) {
+					scanMessageHeader(parser, scan);
+				} else {
+					parser.skipChildren();
+				}
+			}
+
+			if (scan.entries == 1) {
+				String problem = checkMessageHeader(scan, requestUrl);
+				if (problem != null) {
+					return problem;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private void scanMessageHeader(JsonParser parser, MessageScan scan) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			JsonToken value = parser.nextToken();
+			if ("resourceType".equals(field)) {
+				scan.firstEntryType = parser.getValueAsString();
+			} else if ("eventCoding".equals(field) && value == JsonToken.START_OBJECT) {
+				scan.event = scanEventCoding(parser);
+			} else if ("eventUri".equals(field) && value == JsonToken.VALUE_STRING) {
+				scan.event = parser.getValueAsString();
+			} else if ("destination".equals(field) && value == JsonToken.START_ARRAY) {
+				while (parser.nextToken() == JsonToken.START_OBJECT) {
+					scan.destinations++;
+					while (parser.nextToken() == JsonToken.FIELD_NAME) {
+						String destinationField = parser.currentName();
+						if (parser.nextToken() == JsonToken.VALUE_STRING && "endpoint".equals(destinationField)) {
+							scan.endpoints.add(parser.getValueAsString());
+						} else {
+							parser.skipChildren();
+						}
+					}
+				}
+			} else if ("response".equals(field)) {
+				scan.isResponse = value == JsonToken.START_OBJECT;
+				parser.skipChildren();
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/*
+	 * @return system|code of the coding (the parser is on its START_OBJECT).
+	 */
+	private static String scanEventCoding(JsonParser parser) throws IOException {
+		String system = null;
+		String code = null;
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.currentName();
+			if (parser.nextToken() != JsonToken.VALUE_STRING) {
+				parser.skipChildren();
+			} else if ("system".equals(field)) {
+				system = parser.getValueAsString();
+			} else if ("code".equals(field)) {
+				code = parser.getValueAsString();
+			}
+		}
+
+		return system + "|" + code;
+	}
+
+	private String checkMessageHeader(MessageScan scan, String requestUrl) {
+		if (!"MessageHeader".equals(scan.firstEntryType)) {
+			return "The bundle must have MessageHeader first in the entry.";
+		}
+		if (scan.event == null) {
+			return "MessageHeader.event[x] is empty or does not exist.";
+		}
+		if (!events.contains(scan.event)) {
+			return "MessageHeader event " + scan.event + " is not a BSeR referral message event.";
+		}
+		if (scan.isResponse) {
+			return null;
+		}
+		if (scan.destinations == 0) {
+			return "MessageHeader.destination is empty or does not exist.";
+		}
+		for (String endpoint : scan.endpoints) {
+			if (isEngineEndpoint(endpoint, requestUrl)) {
+				return null;
+			}
+		}
+
+		return "MessageHeader.destination does not name this engine's " + PROCESS_MESSAGE + " endpoint.";
+	}
+
+	private boolean isEngineEndpoint(String endpoint, String requestUrl) {
+		String candidate = withoutTrailingSlash(endpoint.trim());
+		if (requestUrl != null && candidate.equalsIgnoreCase(withoutTrailingSlash(requestUrl))) {
+			return true;
+		}
+		for (String engineEndpoint : engineEndpoints) {
+			if (candidate.equalsIgnoreCase(engineEndpoint)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static String withoutTrailingSlash(String url) {
+		return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+	}
+
+	private void reject(HttpServletResponse response, int status, IssueType issueType, String message) throws IOException {
+		countRejection(status, message);
+
+		OperationOutcome oo = new OperationOutcome();
+		oo.addIssue().setSeverity(IssueSeverity.ERROR).setCode(issueType).setDiagnostics(message);
+
+		response.setStatus(status);
+		response.setContentType("application/fhir+json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(StaticValues.myFhirContext.newJsonParser().encodeResourceToString(oo));
+	}
+
+	private static void countRejection(int status, String message) {
+		rejected.incrementAndGet();
+		logger.info("Rejected " + PROCESS_MESSAGE + " (" + status + "): " + message);
+	}
+
+	private static class MessageScan {
+		String resourceType;
+		String type;
+		int entries;
+		boolean bundleFound;
+		String firstEntryType;
+		String event;
+		int destinations;
+		List<String> endpoints = new ArrayList<String>();
+		boolean isResponse;
+
+		/*
+		 * The MessageHeader is checked with the first entry.
+		 */
+		String checkBundle() {
+			if (!"Bundle".equals(resourceType)) {
+				return "Message must be a Bundle, not " + resourceType + ".";
+			}
+			if (!"message".equals(type)) {
+				return "Bundle.type must be message.";
+			}
+			if (entries == 0) {
+				return "The bundle must have MessageHeader first in the entry.";
+			}
+
+			return null;
+		}
+	}
+
+	/*
+	 * Copies each token it reads to the generator, except the large attachments,
+	 * which AttachmentSpool spools and the caller never sees.
+	 */
+	private static class CopyingParser extends JsonParserDelegate {
+		private final JsonGenerator generator;
+		private final List<Path> spooled;
+
+		CopyingParser(JsonParser parser, JsonGenerator generator, List<Path> spooled) {
+			super(parser);
+			this.generator = generator;
+			this.spooled = spooled;
+		}
+
+		@Override
+		public JsonToken nextToken() throws IOException {
+			JsonToken token = delegate.nextToken();
+			while (token == JsonToken.FIELD_NAME && AttachmentSpool.isAttachmentData(delegate)) {
+				AttachmentSpool.copyData(delegate, generator, spooled);
+				token = delegate.nextToken();
+			}
+
+			if (token != null) {
+				generator.copyCurrentEventExact(delegate);
+			}
+			return token;
+		}
+
+		/*
+		 * Skipped tokens are copied too.
+		 */
+		@Override
+		public JsonParser skipChildren() throws IOException {
+			if (!currentToken().isStructStart()) {
+				return this;
+			}
+
+			int open = 1;
+			while (open > 0) {
+				JsonToken token = nextToken();
+				if (token == null) {
+					break;
+				}
+				if (token.isStructStart()) {
+					open++;
+				} else if (token.isStructEnd()) {
+					open--;
+				}
+			}
+			return this;
+		}
+	}
+
+	/*
+	 * Fails once more than the limit has been read.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private final long limit;
+		private long count;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				counted(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				counted(read);
+			}
+			return read;
+		}
+
+		private void counted(int read) throws LimitExceededException {
+			count += read;
+			if (count > limit) {
+				throw new LimitExceededException(limit);
+			}
+		}
+	}
+
+	static class LimitExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitExceededException(long limit) {
+			super("Message body is over the limit of " + limit + " bytes.");
+		}
+	}
+
+	/*
+	 * Writes what is read from the stream to the buffer as well.
+	 */
+	private static class TeeInputStream extends FilterInputStream {
+		private final OutputStream copy;
+
+		TeeInputStream(InputStream in, OutputStream copy) {
+			super(in);
+			this.copy = copy;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				copy.write(b);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				copy.write(b, off, read);
+			}
+			return read;
+		}
+	}
+
+	/*
+	 * The body as HAPI reads it, held without a further copy.
+	 */
+	static class BodyBuffer extends ByteArrayOutputStream {
+		InputStream newInputStream() {
+			return new ByteArrayInputStream(buf, 0, count);
+		}
+	}
+
+	/*
+	 * A request whose body may have been decompressed on the way; if so, it no
+	 * longer says it is gzipped.
+	 */
+	private static class DecodedBodyRequest extends HttpServletRequestWrapper {
+		protected final boolean decompressed;
+
+		DecodedBodyRequest(HttpServletRequest request, boolean decompressed) {
+			super(request);
+			this.decompressed = decompressed;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return decompressed && CONTENT_ENCODING.equalsIgnoreCase(name) ? null : super.getHeader(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name) {
+			return decompressed && CONTENT_ENCODING.equalsIgnoreCase(name) ? Collections.emptyEnumeration() : super.getHeaders(name);
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			if (!decompressed) {
+				return super.getHeaderNames();
+			}
+
+			List<String> names = Collections.list(super.getHeaderNames());
+			names.removeIf(CONTENT_ENCODING::equalsIgnoreCase);
+			return Collections.enumeration(names);
+		}
+
+		/*
+		 * The body is read by blocking reads in any case, so a read listener is told
+		 * at once that it is available, and then that it is all read.
+		 */
+		static ServletInputStream servletInputStream(InputStream in) {
+			return new ServletInputStream() {
+				private boolean finished;
+
+				@Override
+				public int read() throws IOException {
+					int b = in.read();
+					finished = b == -1;
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					int read = in.read(b, off, len);
+					finished = read == -1;
+					return read;
+				}
+
+				@Override
+				public boolean isFinished() {
+					return finished;
+				}
+
+				@Override
+				public boolean isReady() {
+					return true;
+				}
+
+				@Override
+				public void setReadListener(ReadListener readListener) {
+					try {
+						if (!isFinished()) {
+							readListener.onDataAvailable();
+						}
+						if (isFinished()) {
+							readListener.onAllDataRead();
+						}
+					} catch (IOException | RuntimeException e) {
+						readListener.onError(e);
+					}
+				}
+			};
+		}
+
+		BufferedReader reader(InputStream in) {
+			String encoding = getCharacterEncoding();
+			return new BufferedReader(new InputStreamReader(in, encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8));
+		}
+	}
+
+	/*
+	 * Hands the checked body on to HAPI.
+	 */
+	private static class BufferedBodyRequest extends DecodedBodyRequest {
+		private final BodyBuffer body;
+
+		BufferedBodyRequest(HttpServletRequest request, BodyBuffer body, boolean decompressed) {
+			super(request, decompressed);
+			this.body = body;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return servletInputStream(body.newInputStream());
+		}
+
+		@Override
+		public BufferedReader getReader() {
+			return reader(body.newInputStream());
+		}
+
+		@Override
+		public int getContentLength() {
+			return body.size();
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return body.size();
+		}
+	}
+
+	/*
+	 * Hands a body the filter does not scan on to HAPI as a stream that answers
+	 * 413 once it goes over the byte limit.
+	 */
+	private class CappedBodyRequest extends DecodedBodyRequest {
+		private final ServletInputStream body;
+
+		CappedBodyRequest(HttpServletRequest request, InputStream in, boolean decompressed) {
+			super(request, decompressed);
+			this.body = servletInputStream(new LimitedInputStream(in, maxBytes) {
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					try {
+						return super.read(b, off, len);
+					} catch (LimitExceededException e) {
+						countRejection(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, e.getMessage());
+						throw new PayloadTooLargeException(e.getMessage());
+					}
+				}
+
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					int read = read(b, 0, 1);
+					return read == -1 ? -1 : b[0] & 0xff;
+				}
+			});
+		}
+
+		@Override
+		public ServletInputStream getInputStream() {
+			return body;
+		}
+
+		@Override
+		public BufferedReader getReader() {
+			return reader(body);
+		}
+
+		@Override
+		public int getContentLength() {
+			return decompressed ? -1 : super.getContentLength();
+		}
+
+		@Override
+		public long getContentLengthLong() {
+			return decompressed ? -1L : super.getContentLengthLong();
+		}
+	}
+}
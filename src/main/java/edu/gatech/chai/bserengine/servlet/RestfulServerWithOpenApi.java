@@ -1,9 +1,12 @@
 package edu.gatech.chai.bserengine.servlet;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
@@ -16,13 +19,23 @@ import ca.uhn.fhir.rest.server.IServerAddressStrategy;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.CorsInterceptor;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import edu.gatech.chai.bserengine.persistence.MessageDeduplicator;
 import edu.gatech.chai.bserengine.provider.ServerOperations;
+import edu.gatech.chai.bserengine.resilience.AdmissionControlInterceptor;
+import edu.gatech.chai.bserengine.resilience.DeadlineInterceptor;
+import edu.gatech.chai.bserengine.resilience.Destinations;
 import edu.gatech.chai.bserengine.security.OIDCInterceptor;
+import edu.gatech.chai.bserengine.utilities.PolicyNarrativeGenerator;
 import edu.gatech.chai.bserengine.utilities.StaticValues;
+import edu.gatech.chai.bserengine.utilities.VirtualThreads;
+import jakarta.servlet.AsyncContext;
 import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 public class RestfulServerWithOpenApi extends RestfulServer {
     private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(RestfulServerWithOpenApi.class);
 
     public RestfulServerWithOpenApi() {
         super(StaticValues.myFhirContext);
@@ -56,7 +69,7 @@ public class RestfulServerWithOpenApi extends RestfulServer {
 		 * Set non resource provider.
 		 */
 		List<Object> plainProviders = new ArrayList<Object>();
-		ServerOperations serverOperations = new ServerOperations();
+		ServerOperations serverOperations = new ServerOperations(MessageDeduplicator.fromEnv());
 
 		/*
 		 * add system to the plain provider.
@@ -75,9 +88,9 @@ public class RestfulServerWithOpenApi extends RestfulServer {
 		/*
 		 * Use a narrative generator. This is a completely optional step, but can be
 		 * useful as it causes HAPI to generate narratives for resources which don't
-		 * otherwise have one.
+		 * otherwise have one. Whether a flow gets one is up to NarrativePolicy.
 		 */
-		INarrativeGenerator narrativeGen = new DefaultThymeleafNarrativeGenerator();
+		INarrativeGenerator narrativeGen = new PolicyNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
 		getFhirContext().setNarrativeGenerator(narrativeGen);
 
 		/*
@@ -90,11 +103,17 @@ public class RestfulServerWithOpenApi extends RestfulServer {
 		config.addAllowedHeader("X-Requested-With");
 		config.addAllowedHeader("Content-Type");
 		config.addAllowedHeader("Authorization");
+		config.addAllowedHeader(DeadlineInterceptor.TIMEOUT_HEADER);
+		config.addAllowedHeader(ServerOperations.IDEMPOTENCY_KEY_HEADER);
+		config.addAllowedHeader("Prefer");
 
 		config.addAllowedOrigin("*");
 		
 		config.addExposedHeader("Location");
 		config.addExposedHeader("Content-Location");
+		config.addExposedHeader("Retry-After");
+		config.addExposedHeader(ServerOperations.IDEMPOTENT_REPLAYED_HEADER);
+		config.addExposedHeader(ServerOperations.PREFERENCE_APPLIED_HEADER);
 		config.setAllowedMethods(Arrays.asList("GET", "POST", "PUT", "DELETE", "OPTIONS", "PATCH"));
 
 		CorsInterceptor corsInterceptor = new CorsInterceptor(config);
@@ -112,6 +131,18 @@ public class RestfulServerWithOpenApi extends RestfulServer {
 
 		OIDCInterceptor oIDCInterceptor = new OIDCInterceptor();
 		registerInterceptor(oIDCInterceptor);
+
+		/*
+		 * Per-operation concurrency limits for $referral-request and $process-message.
+		 * Over the limit, requests get 429 with Retry-After.
+		 */
+		registerInterceptor(new AdmissionControlInterceptor());
+
+		/*
+		 * Time budget for $referral-request: X-Request-Timeout-Ms header, timeoutMs
+		 * parameter or REFERRAL_DEADLINE_MS.
+		 */
+		registerInterceptor(new DeadlineInterceptor());
 		
 		/*
 		 * Tells the server to return pretty-printed responses by default
@@ -123,5 +154,49 @@ public class RestfulServerWithOpenApi extends RestfulServer {
 		 */
 		setDefaultResponseEncoding(EncodingEnum.JSON);
 
+		/*
+		 * Size the outbound client connection pool for the thread mode, and set the
+		 * default outbound timeouts. Per-destination timeouts are set on each client.
+		 */
+		VirtualThreads.configureClientPool(getFhirContext());
+		Destinations.configureClientFactory(getFhirContext());
+
+		/*
+		 * Warm up the profile classes, parsers, narrative templates, connections and
+		 * tokens in the background. /support/ready reports when this is done.
+		 */
+		WarmUp.start(getFhirContext(), serverOperations);
+	}
+
+	/**
+	 * In virtual-thread mode (VIRTUAL_THREADS=true), the request is put in async
+	 * mode and handled on a virtual thread, which frees the container thread while
+	 * the operation waits on the FHIR store, EHR and recipient.
+	 */
+	@Override
+	protected void service(HttpServletRequest theRequest, HttpServletResponse theResponse) throws ServletException, IOException {
+		if (!VirtualThreads.isEnabled() || !theRequest.isAsyncSupported()) {
+			super.service(theRequest, theResponse);
+			return;
+		}
+
+		AsyncContext asyncContext = theRequest.startAsync(theRequest, theResponse);
+		asyncContext.setTimeout(VirtualThreads.asyncTimeoutMillis());
+		VirtualThreads.executor().execute(() -> {
+			try {
+				super.service(theRequest, theResponse);
+			} catch (Exception e) {
+				logger.error("Request " + theRequest.getRequestURI() + " failed on a virtual thread: " + e.getMessage(), e);
+				if (!theResponse.isCommitted()) {
+					try {
+						theResponse.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					} catch (IOException e1) {
+						logger.debug("Could not send the error response: " + e1.getMessage());
+					}
+				}
+			} finally {
+				asyncContext.complete();
+			}
+		});
 	}
 }
@@ -29,6 +29,7 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
 import edu.gatech.chai.SmartOnFhirClient.SmartBackendServices;
+import edu.gatech.chai.bserengine.utilities.EngineMetrics;
 import edu.gatech.chai.bserengine.utilities.StaticValues;
 
 @Controller
@@ -59,6 +60,26 @@ public class SupportApiController {
         return new ResponseEntity<String>(retVal, retCode);
     }
 
+    /**
+     * Readiness probe for the load balancer: 200 once the warm-up has finished, 503 before.
+     */
+    @GetMapping(path = "/ready", produces=MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getReady() {
+        if (WarmUp.isReady()) {
+            return new ResponseEntity<String>("{\"status\": \"ready\"}", HttpStatus.OK);
+        }
+
+        return new ResponseEntity<String>("{\"status\": \"warming up\"}", HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Engine metrics (concurrency limits, requests in flight, rejections) in the Prometheus text format.
+     */
+    @GetMapping(path = "/metrics", produces="text/plain; version=0.0.4")
+    public ResponseEntity<String> getMetrics() {
+        return new ResponseEntity<String>(EngineMetrics.scrape(), HttpStatus.OK);
+    }
+
     @GetMapping(path = "/patient", produces=MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<String> getPatient() {
         IParser parser = StaticValues.myFhirContext.newJsonParser();
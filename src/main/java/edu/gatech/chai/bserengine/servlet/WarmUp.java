@@ -0,0 +1,140 @@
+package edu.gatech.chai.bserengine.servlet;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Patient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.BSER.model.BSERCoverage;
+import edu.gatech.chai.BSER.model.BSEREarlyChildhoodNutritionObservation;
+import edu.gatech.chai.BSER.model.BSEREducationLevel;
+import edu.gatech.chai.BSER.model.BSERHA1CObservation;
+import edu.gatech.chai.BSER.model.BSERMedicationStatement;
+import edu.gatech.chai.BSER.model.BSERNRTAuthorizationStatus;
+import edu.gatech.chai.BSER.model.BSEROrganization;
+import edu.gatech.chai.BSER.model.BSERReferralFeedbackDocument;
+import edu.gatech.chai.BSER.model.BSERReferralInitiatorPractitionerRole;
+import edu.gatech.chai.BSER.model.BSERReferralMessageBundle;
+import edu.gatech.chai.BSER.model.BSERReferralMessageHeader;
+import edu.gatech.chai.BSER.model.BSERReferralRecipientPractitionerRole;
+import edu.gatech.chai.BSER.model.BSERReferralRequestComposition;
+import edu.gatech.chai.BSER.model.BSERReferralRequestDocumentBundle;
+import edu.gatech.chai.BSER.model.BSERReferralServiceRequest;
+import edu.gatech.chai.BSER.model.BSERReferralTask;
+import edu.gatech.chai.BSER.model.BSERTelcomCommunicationPreferences;
+import edu.gatech.chai.BSER.model.ODHEmploymentStatus;
+import edu.gatech.chai.USCore.model.USCoreAllergyIntolerance;
+import edu.gatech.chai.USCore.model.USCoreBMI;
+import edu.gatech.chai.USCore.model.USCoreBloodPressure;
+import edu.gatech.chai.USCore.model.USCoreBodyHeight;
+import edu.gatech.chai.USCore.model.USCoreBodyWeight;
+import edu.gatech.chai.USCore.model.USCoreConditionProblemsAndHealthConcerns;
+import edu.gatech.chai.USCore.model.USCoreSmokingStatusObservation;
+import edu.gatech.chai.bserengine.provider.ServerOperations;
+
+/**
+ * Does the work the first referrals would otherwise pay for: scanning the BSeR
+ * and US Core profile classes into the FhirContext, creating JSON parsers,
+ * loading the Thymeleaf narrative templates, and opening connections and
+ * getting tokens for the FHIR store and the recipient. It runs on its own
+ * thread once the servlet is initialized; /support/ready answers 503 until it
+ * has finished.
+ */
+public class WarmUp {
+	private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+	/*
+	 * Profile classes ServerOperations creates or parses into.
+	 */
+	static final List<Class<? extends IBaseResource>> PROFILE_CLASSES = Arrays.asList(
+		BSERCoverage.class,
+		BSEREarlyChildhoodNutritionObservation.class,
+		BSEREducationLevel.class,
+		BSERHA1CObservation.class,
+		BSERMedicationStatement.class,
+		BSERNRTAuthorizationStatus.class,
+		BSEROrganization.class,
+		BSERReferralFeedbackDocument.class,
+		BSERReferralInitiatorPractitionerRole.class,
+		BSERReferralMessageBundle.class,
+		BSERReferralMessageHeader.class,
+		BSERReferralRecipientPractitionerRole.class,
+		BSERReferralRequestComposition.class,
+		BSERReferralRequestDocumentBundle.class,
+		BSERReferralServiceRequest.class,
+		BSERReferralTask.class,
+		BSERTelcomCommunicationPreferences.class,
+		ODHEmploymentStatus.class,
+		USCoreAllergyIntolerance.class,
+		USCoreBMI.class,
+		USCoreBloodPressure.class,
+		USCoreBodyHeight.class,
+		USCoreBodyWeight.class,
+		USCoreConditionProblemsAndHealthConcerns.class,
+		USCoreSmokingStatusObservation.class);
+
+	private static volatile boolean ready = false;
+
+	public static boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Starts the warm-up in the background.
+	 */
+	public static void start(FhirContext fhirContext, ServerOperations serverOperations) {
+		Thread thread = new Thread(() -> run(fhirContext, serverOperations), "bser-warm-up");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	static void run(FhirContext fhirContext, ServerOperations serverOperations) {
+		long start = System.currentTimeMillis();
+		try {
+			loadProfiles(fhirContext);
+			generateNarrative(fhirContext);
+			serverOperations.primeConnections();
+		} catch (Exception e) {
+			// Whatever did not warm up will warm up on the first requests. Do not keep the node out of service for it.
+			logger.warn("Warm-up did not complete: " + e.getMessage(), e);
+		} finally {
+			ready = true;
+			logger.info("Warm-up finished in " + (System.currentTimeMillis() - start) + "ms. Ready for requests.");
+		}
+	}
+
+	/*
+	 * Builds the resource definitions and runs an encode/parse round trip for each
+	 * profile class, which also loads the parser and model classes.
+	 */
+	private static void loadProfiles(FhirContext fhirContext) {
+		IParser parser = fhirContext.newJsonParser();
+		for (Class<? extends IBaseResource> profileClass : PROFILE_CLASSES) {
+			try {
+				fhirContext.getResourceDefinition(profileClass);
+				IBaseResource resource = profileClass.getDeclaredConstructor().newInstance();
+				parser.parseResource(profileClass, parser.encodeResourceToString(resource));
+			} catch (Exception e) {
+				logger.debug("Warm-up of " + profileClass.getSimpleName() + " skipped: " + e.getMessage());
+			}
+		}
+	}
+
+	private static void generateNarrative(FhirContext fhirContext) {
+		if (fhirContext.getNarrativeGenerator() == null) {
+			return;
+		}
+
+		Patient patient = new Patient();
+		patient.addName(new HumanName().setFamily("WarmUp").addGiven("Patient"));
+		patient.setGender(AdministrativeGender.UNKNOWN);
+		fhirContext.getNarrativeGenerator().populateResourceNarrative(fhirContext, patient);
+	}
+}
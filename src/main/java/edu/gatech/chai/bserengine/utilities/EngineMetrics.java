@@ -0,0 +1,52 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Metrics the engine exposes at /support/metrics in the Prometheus text format.
+ * Components register a gauge or counter once, with a supplier that reads the
+ * current value when the endpoint is scraped.
+ */
+public class EngineMetrics {
+	private static final Map<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+	private static class Metric {
+		final String type;
+		final String help;
+		final Supplier<? extends Number> value;
+
+		Metric(String type, String help, Supplier<? extends Number> value) {
+			this.type = type;
+			this.help = help;
+			this.value = value;
+		}
+	}
+
+	public static void gauge(String name, String help, Supplier<? extends Number> value) {
+		metrics.put(name, new Metric("gauge", help, value));
+	}
+
+	public static void counter(String name, String help, Supplier<? extends Number> value) {
+		metrics.put(name, new Metric("counter", help, value));
+	}
+
+	public static String scrape() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+			Number value;
+			try {
+				value = entry.getValue().value.get();
+			} catch (RuntimeException e) {
+				continue;
+			}
+
+			text.append("# HELP ").append(entry.getKey()).append(' ').append(entry.getValue().help).append('\n');
+			text.append("# TYPE ").append(entry.getKey()).append(' ').append(entry.getValue().type).append('\n');
+			text.append(entry.getKey()).append(' ').append(value).append('\n');
+		}
+
+		return text.toString();
+	}
+}
@@ -0,0 +1,62 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads tuning settings from environment variables, falling back to the default
+ * when a variable is missing or malformed.
+ */
+public class EnvUtil {
+	private static final Logger logger = LoggerFactory.getLogger(EnvUtil.class);
+
+	public static String getString(String name, String defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+
+		return value.trim();
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+
+		return "true".equalsIgnoreCase(value.trim());
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		return (int) getLong(name, defaultValue);
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn(name + " is not a number (" + value + "). Using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	public static double getDouble(String name, double defaultValue) {
+		String value = System.getenv(name);
+		if (value == null || value.isBlank()) {
+			return defaultValue;
+		}
+
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn(name + " is not a number (" + value + "). Using " + defaultValue);
+			return defaultValue;
+		}
+	}
+}
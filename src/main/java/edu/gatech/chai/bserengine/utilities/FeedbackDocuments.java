@@ -0,0 +1,151 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+import edu.gatech.chai.bserengine.resilience.Deadline;
+
+/**
+ * Runs the ingestion of the feedback documents in one message side by side.
+ * Each call is its own bounded fork: the caller's thread works through the
+ * documents itself, helped by at most parallelism - 1 other threads. In
+ * virtual-thread mode (VIRTUAL_THREADS) the helpers are virtual threads.
+ * Otherwise they come from a shared pool of platform threads that turns work
+ * away rather than queue it, so a busy pool only means less parallelism and a
+ * large message never holds up another one. The caller's deadline goes with
+ * each document, and the wait for the helpers ends with it.
+ *
+ * FEEDBACK_DOCUMENT_PARALLELISM: documents of one message stored at once,
+ * the caller's thread included (default 4); also the size of the shared pool.
+ */
+public class FeedbackDocuments {
+	private static final int parallelism = EnvUtil.getInt("FEEDBACK_DOCUMENT_PARALLELISM", 4);
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+	private static final ExecutorService helpers = parallelism <= 1 ? null
+		: VirtualThreads.isEnabled() ? VirtualThreads.executor()
+		: new ThreadPoolExecutor(0, parallelism, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), runnable -> {
+			Thread thread = new Thread(runnable, "bser-feedback-document-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	/**
+	 * @return the results in the order of the work. The first failure is rethrown
+	 *         after the remaining work is cancelled.
+	 */
+	public static <T> List<T> runAll(List<Supplier<T>> work) {
+		if (helpers == null || work.size() <= 1) {
+			List<T> results = new ArrayList<T>(work.size());
+			for (Supplier<T> item : work) {
+				results.add(item.get());
+			}
+			return results;
+		}
+
+		return new Fork<T>(work).run();
+	}
+
+	private static class Fork<T> {
+		private final List<Supplier<T>> work;
+		private final Object[] results;
+		private final AtomicInteger next = new AtomicInteger();
+		// Counted down once per item, when it is done or skipped after a failure.
+		private final CountDownLatch finished;
+		private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		private final Deadline deadline = Deadline.current();
+
+		Fork(List<Supplier<T>> work) {
+			this.work = work;
+			this.results = new Object[work.size()];
+			this.finished = new CountDownLatch(work.size());
+		}
+
+		List<T> run() {
+			List<Future<?>> started = new ArrayList<Future<?>>();
+			int helperCount = Math.min(parallelism, work.size()) - 1;
+			for (int i = 0; i < helperCount; i++) {
+				try {
+					started.add(helpers.submit(() -> Deadline.runWith(deadline, this::drain)));
+				} catch (RejectedExecutionException e) {
+					// The shared pool is busy; this thread does the rest.
+					break;
+				}
+			}
+
+			try {
+				drain();
+				awaitHelpers();
+			} finally {
+				if (failure.get() != null) {
+					for (Future<?> helper : started) {
+						helper.cancel(true);
+					}
+				}
+			}
+
+			Throwable cause = failure.get();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			if (cause != null) {
+				throw new FHIRException("Feedback document ingestion failed: " + cause.getMessage(), cause);
+			}
+
+			@SuppressWarnings("unchecked")
+			List<T> list = (List<T>) Arrays.asList(results);
+			return new ArrayList<T>(list);
+		}
+
+		/*
+		 * Takes items until there are none left. Once one has failed, the rest are skipped.
+		 */
+		private void drain() {
+			int index;
+			while ((index = next.getAndIncrement()) < work.size()) {
+				try {
+					if (failure.get() == null) {
+						results[index] = work.get(index).get();
+					}
+				} catch (RuntimeException | Error e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					finished.countDown();
+				}
+			}
+		}
+
+		/*
+		 * Every item is taken by now; waits for the ones still running on helpers,
+		 * no longer than the deadline allows.
+		 */
+		private void awaitHelpers() {
+			try {
+				if (deadline == null) {
+					finished.await();
+				} else if (!finished.await(Math.max(Deadline.remainingMillis(), 0), TimeUnit.MILLISECONDS)) {
+					failure.compareAndSet(null, deadline.exceeded("the feedback documents were stored"));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure.compareAndSet(null, new FHIRException("Interrupted while storing feedback documents"));
+			}
+		}
+	}
+}
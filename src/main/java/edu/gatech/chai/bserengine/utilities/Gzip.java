@@ -0,0 +1,43 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip for outbound request bodies.
+ *
+ * OUTBOUND_GZIP_LEVEL: deflate level, 1 (fastest) to 9 (smallest) (default 1).
+ * Pretty-printed FHIR JSON shrinks to roughly a tenth at level 1 already; the
+ * higher levels cost several times the CPU for a few percent more.
+ */
+public class Gzip {
+	public static final String ENCODING = "gzip";
+
+	private static final int level = EnvUtil.getInt("OUTBOUND_GZIP_LEVEL", Deflater.BEST_SPEED);
+
+	public static byte[] compress(byte[] data) {
+		return compress(data, level);
+	}
+
+	public static byte[] compress(byte[] data, int level) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 8, 64));
+		try (OutputStream gzip = new LeveledGZIPOutputStream(out, level)) {
+			gzip.write(data);
+		} catch (IOException e) {
+			// Writing to memory does not fail.
+			throw new IllegalStateException(e);
+		}
+
+		return out.toByteArray();
+	}
+
+	private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+		LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+			super(out, 8192);
+			def.setLevel(level);
+		}
+	}
+}
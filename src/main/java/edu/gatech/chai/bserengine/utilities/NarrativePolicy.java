@@ -0,0 +1,76 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.util.function.Supplier;
+
+/**
+ * Decides per flow whether HAPI renders a narrative for the resources it
+ * encodes. The engine marks the flow around its own encodes (store writes,
+ * messages to recipients, payload logging); anything encoded outside a marked
+ * flow is a response to our own client and follows the response setting.
+ * Narratives the sender already put in a resource are kept in every flow.
+ *
+ * NARRATIVE_STORE: render narratives for resources written to the FHIR store (default false).
+ * NARRATIVE_RECIPIENT: render narratives for messages sent to recipients (default false).
+ * NARRATIVE_RESPONSE: render narratives for responses to the engine's clients (default true).
+ */
+public class NarrativePolicy {
+	public enum Flow {
+		STORE, RECIPIENT, RESPONSE, LOG
+	}
+
+	private static final boolean store = EnvUtil.getBoolean("NARRATIVE_STORE", false);
+	private static final boolean recipient = EnvUtil.getBoolean("NARRATIVE_RECIPIENT", false);
+	private static final boolean response = EnvUtil.getBoolean("NARRATIVE_RESPONSE", true);
+
+	private static final ThreadLocal<Flow> currentFlow = new ThreadLocal<Flow>();
+
+	public static Flow current() {
+		Flow flow = currentFlow.get();
+		return flow == null ? Flow.RESPONSE : flow;
+	}
+
+	public static boolean allows(Flow flow) {
+		switch (flow) {
+		case STORE:
+			return store;
+		case RECIPIENT:
+			return recipient;
+		case RESPONSE:
+			return response;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return whether a narrative may be rendered on this thread now.
+	 */
+	public static boolean allowsCurrent() {
+		return allows(current());
+	}
+
+	/**
+	 * Runs the action with the flow set, so resources it encodes get a narrative
+	 * only when the flow allows one.
+	 */
+	public static <T> T call(Flow flow, Supplier<T> action) {
+		Flow previous = currentFlow.get();
+		currentFlow.set(flow);
+		try {
+			return action.get();
+		} finally {
+			if (previous == null) {
+				currentFlow.remove();
+			} else {
+				currentFlow.set(previous);
+			}
+		}
+	}
+
+	public static void run(Flow flow, Runnable action) {
+		call(flow, () -> {
+			action.run();
+			return null;
+		});
+	}
+}
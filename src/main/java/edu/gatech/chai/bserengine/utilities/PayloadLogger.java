@@ -0,0 +1,123 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs FHIR payloads on the edu.gatech.chai.bserengine.payload logger, which
+ * logback.xml sends through an async appender. Nothing is encoded unless that
+ * logger is at DEBUG and the payload is sampled, and encoding stops once the
+ * byte cap is reached.
+ *
+ * PAYLOAD_LOG_SAMPLE_PERCENT: percentage of payloads logged (default 100).
+ * PAYLOAD_LOG_MAX_BYTES: payloads are cut off after this many bytes (default 4096).
+ */
+public class PayloadLogger {
+	private static final Logger logger = LoggerFactory.getLogger("edu.gatech.chai.bserengine.payload");
+
+	private static final int samplePercent = EnvUtil.getInt("PAYLOAD_LOG_SAMPLE_PERCENT", 100);
+	private static final int maxBytes = EnvUtil.getInt("PAYLOAD_LOG_MAX_BYTES", 4096);
+
+	public static boolean isEnabled() {
+		return logger.isDebugEnabled();
+	}
+
+	public static void log(String message, IBaseResource resource) {
+		if (resource == null || !isEnabled() || !sampled()) {
+			return;
+		}
+
+		CappedWriter writer = new CappedWriter(maxBytes);
+		try {
+			// Logging must not add a narrative to a resource that is about to be stored or sent.
+			NarrativePolicy.run(NarrativePolicy.Flow.LOG, () -> {
+				try {
+					StaticValues.myFhirContext.newJsonParser().encodeResourceToWriter(resource, writer);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (Exception e) {
+			if (!writer.isFull()) {
+				logger.debug(message + " (payload could not be encoded: " + e.getMessage() + ")");
+				return;
+			}
+		}
+
+		logger.debug(message + (writer.isFull() ? " (truncated to " + maxBytes + " bytes): " : ": ") + writer);
+	}
+
+	/**
+	 * Logs a payload that is already encoded for another purpose.
+	 */
+	public static void log(String message, String payload) {
+		if (payload == null || !isEnabled() || !sampled()) {
+			return;
+		}
+
+		if (payload.length() > maxBytes) {
+			logger.debug(message + " (truncated to " + maxBytes + " bytes): " + payload.substring(0, maxBytes));
+		} else {
+			logger.debug(message + ": " + payload);
+		}
+	}
+
+	private static boolean sampled() {
+		return samplePercent >= 100 || ThreadLocalRandom.current().nextInt(100) < samplePercent;
+	}
+
+	/**
+	 * Keeps the first maxChars characters and then aborts the encoder, so large
+	 * resources are not serialized in full just to be cut off. The payloads are
+	 * JSON, where a character is a byte for all but non-ASCII text.
+	 */
+	private static class CappedWriter extends Writer {
+		private final StringBuilder buffer;
+		private final int maxChars;
+
+		CappedWriter(int maxChars) {
+			this.buffer = new StringBuilder(Math.min(maxChars, 1024));
+			this.maxChars = maxChars;
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) {
+			int room = maxChars - buffer.length();
+			buffer.append(cbuf, off, Math.min(room, len));
+			if (len >= room) {
+				throw new CapReachedException();
+			}
+		}
+
+		boolean isFull() {
+			return buffer.length() >= maxChars;
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public String toString() {
+			return buffer.toString();
+		}
+	}
+
+	private static class CapReachedException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		CapReachedException() {
+			super("payload log cap reached", null, false, false);
+		}
+	}
+}
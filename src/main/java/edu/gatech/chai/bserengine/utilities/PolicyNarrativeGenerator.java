@@ -0,0 +1,149 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.narrative.INarrativeGenerator;
+import edu.gatech.chai.bserengine.utilities.NarrativePolicy.Flow;
+
+/**
+ * Narrative generator that renders through another generator only when the
+ * {@link NarrativePolicy} of the current flow allows it. Rendered narratives
+ * are kept by a hash of the resource content, and reused the next time a
+ * resource with the same content is encoded.
+ *
+ * NARRATIVE_CACHE_SIZE: rendered narratives kept (default 1000; 0 turns caching off).
+ */
+public class PolicyNarrativeGenerator implements INarrativeGenerator {
+	private final INarrativeGenerator delegate;
+	private final int maxEntries = EnvUtil.getInt("NARRATIVE_CACHE_SIZE", 1000);
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LinkedHashMap<String, String> rendered;
+
+	private final AtomicLong renders = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	public PolicyNarrativeGenerator(INarrativeGenerator delegate) {
+		this.delegate = delegate;
+		this.rendered = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > PolicyNarrativeGenerator.this.maxEntries;
+			}
+		};
+
+		EngineMetrics.counter("bser_narrative_rendered_total", "Narratives rendered from templates", renders::get);
+		EngineMetrics.counter("bser_narrative_cache_hits_total", "Narratives taken from the rendered narrative cache", cacheHits::get);
+		EngineMetrics.counter("bser_narrative_skipped_total", "Narratives not rendered because the flow does not allow them", skipped::get);
+	}
+
+	@Override
+	public boolean populateResourceNarrative(FhirContext theFhirContext, IBaseResource theResource) {
+		if (!NarrativePolicy.allowsCurrent()) {
+			skipped.incrementAndGet();
+			return false;
+		}
+
+		String key = cacheKey(theFhirContext, theResource);
+		if (key == null || !(theResource instanceof DomainResource)) {
+			renders.incrementAndGet();
+			return delegate.populateResourceNarrative(theFhirContext, theResource);
+		}
+
+		String div = cachedOrRendered(key, theFhirContext, theResource);
+		if (div == null || div.isBlank()) {
+			return false;
+		}
+
+		DomainResource resource = (DomainResource) theResource;
+		resource.getText().setStatus(NarrativeStatus.GENERATED);
+		resource.getText().setDivAsString(div);
+		return true;
+	}
+
+	@Override
+	public String generateResourceNarrative(FhirContext theFhirContext, IBaseResource theResource) {
+		if (!NarrativePolicy.allowsCurrent()) {
+			skipped.incrementAndGet();
+			return null;
+		}
+
+		String key = cacheKey(theFhirContext, theResource);
+		if (key == null) {
+			renders.incrementAndGet();
+			return delegate.generateResourceNarrative(theFhirContext, theResource);
+		}
+
+		return cachedOrRendered(key, theFhirContext, theResource);
+	}
+
+	private String cachedOrRendered(String key, FhirContext theFhirContext, IBaseResource theResource) {
+		lock.lock();
+		try {
+			String div = rendered.get(key);
+			if (div != null) {
+				cacheHits.incrementAndGet();
+				return div;
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		// Rendered outside the lock. Two threads may render the same content; both get the same text.
+		renders.incrementAndGet();
+		String div = delegate.generateResourceNarrative(theFhirContext, theResource);
+		if (div != null) {
+			lock.lock();
+			try {
+				rendered.put(key, div);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		return div;
+	}
+
+	/*
+	 * Type and SHA-256 of the resource as encoded without its narrative, after the
+	 * server base of its id when it has one. Ids and versions cannot be used: the
+	 * engine edits Task and ServiceRequest in place under the version it read,
+	 * and relative ids from different FHIR stores are the same. Null when
+	 * caching is off or the resource cannot carry a narrative (Bundle, Binary).
+	 */
+	private String cacheKey(FhirContext theFhirContext, IBaseResource theResource) {
+		if (maxEntries <= 0 || !(theResource instanceof DomainResource)) {
+			return null;
+		}
+
+		// The LOG flow renders nothing, so encoding here cannot come back into this generator.
+		String content = NarrativePolicy.call(Flow.LOG,
+			() -> theFhirContext.newJsonParser().setSuppressNarratives(true).encodeResourceToString(theResource));
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8));
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+
+		IIdType id = theResource.getIdElement();
+		String base = id.hasBaseUrl() ? id.getBaseUrl() + "/" : "";
+		return base + theResource.fhirType() + "#" + HexFormat.of().formatHex(digest);
+	}
+}
@@ -0,0 +1,31 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks picked by key hash. Work on the same key is done one at
+ * a time, in arrival order; work on different keys runs in parallel unless
+ * two keys happen to share a stripe. ReentrantLock, and not synchronized, so
+ * a virtual thread blocked on FHIR store I/O under the lock does not pin its
+ * carrier thread.
+ */
+public class StripedLock {
+	private final ReentrantLock[] stripes;
+
+	/**
+	 * @param stripeCount rounded up to a power of two
+	 */
+	public StripedLock(int stripeCount) {
+		int count = Integer.highestOneBit(Math.max(stripeCount, 1) - 1) << 1;
+		stripes = new ReentrantLock[Math.max(count, 1)];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantLock(true);
+		}
+	}
+
+	public ReentrantLock lockFor(String key) {
+		int hash = key == null ? 0 : key.hashCode();
+		hash ^= hash >>> 16;
+		return stripes[hash & (stripes.length - 1)];
+	}
+}
@@ -18,9 +18,11 @@ package edu.gatech.chai.bserengine.utilities;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.bserengine.resilience.TooManyRequestsException;
 
 public class ThrowFHIRExceptions {
 
@@ -35,4 +37,12 @@ public class ThrowFHIRExceptions {
 	public static InternalErrorException internalErrorException(String message) {
 		throw new InternalErrorException(message);
 	}
+
+	public static TooManyRequestsException tooManyRequestsException(String message, int retryAfterSeconds) {
+		OperationOutcome outcome = new OperationOutcome();
+		CodeableConcept detailCode = new CodeableConcept();
+		detailCode.setText(message);
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setCode(IssueType.THROTTLED).setDetails(detailCode);
+		throw new TooManyRequestsException(message, outcome, retryAfterSeconds);
+	}
 }
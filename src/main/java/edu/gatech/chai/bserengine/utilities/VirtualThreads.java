@@ -0,0 +1,60 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+
+/**
+ * Virtual-thread mode. When VIRTUAL_THREADS is true, FHIR requests are handed
+ * off from the container thread to a virtual thread, so a referral blocked on
+ * a slow EHR, FHIR store or recipient holds no platform thread. The outbound
+ * HAPI client calls then run on that virtual thread, and the client connection
+ * pool is widened so requests wait on the remote server and not on a pooled
+ * connection.
+ *
+ * VIRTUAL_THREADS: true to enable (default false).
+ * VIRTUAL_THREADS_ASYNC_TIMEOUT_MS: async timeout for a request handed off (default 0, no timeout).
+ * CLIENT_POOL_MAX: outbound connections per FHIR server (default 1000 with
+ * virtual threads; otherwise HAPI's default of 20).
+ */
+public class VirtualThreads {
+	private static final Logger logger = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private static final boolean enabled = EnvUtil.getBoolean("VIRTUAL_THREADS", false);
+	private static final ExecutorService executor = enabled ? Executors.newVirtualThreadPerTaskExecutor() : null;
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return executor that starts a virtual thread per task, or null when the mode is off.
+	 */
+	public static ExecutorService executor() {
+		return executor;
+	}
+
+	public static long asyncTimeoutMillis() {
+		return EnvUtil.getLong("VIRTUAL_THREADS_ASYNC_TIMEOUT_MS", 0L);
+	}
+
+	/**
+	 * Sizes the shared HAPI client connection pool for the thread mode in use.
+	 */
+	public static void configureClientPool(FhirContext fhirContext) {
+		int poolMax = EnvUtil.getInt("CLIENT_POOL_MAX", enabled ? 1000 : 0);
+		if (poolMax <= 0) {
+			return;
+		}
+
+		IRestfulClientFactory clientFactory = fhirContext.getRestfulClientFactory();
+		clientFactory.setPoolMaxTotal(poolMax);
+		clientFactory.setPoolMaxPerRoute(poolMax);
+		logger.info("Outbound FHIR client pool set to " + poolMax + " connections" + (enabled ? " (virtual threads)" : ""));
+	}
+}
@@ -0,0 +1,92 @@
+package edu.gatech.chai.bserengine.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+public class AttachmentSpoolTest {
+	// Over the default threshold of 1 MB once decoded.
+	private static final String LARGE_DATA = Base64.getEncoder().encodeToString(new byte[2 * 1024 * 1024]);
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	private final List<Path> spooled = new ArrayList<Path>();
+
+	@AfterEach
+	public void deleteSpooled() {
+		AttachmentSpool.delete(spooled);
+	}
+
+	/*
+	 * Copies the body the way the $process-message filter does.
+	 */
+	private String copy(String body) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JsonParser parser = jsonFactory.createParser(body); JsonGenerator generator = jsonFactory.createGenerator(out)) {
+			JsonToken token;
+			while ((token = parser.nextToken()) != null) {
+				if (token == JsonToken.FIELD_NAME && AttachmentSpool.isAttachmentData(parser)) {
+					AttachmentSpool.copyData(parser, generator, spooled);
+				} else {
+					generator.copyCurrentEventExact(parser);
+				}
+			}
+		}
+
+		return out.toString(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void spoolsALargeAttachment() throws IOException {
+		String copied = copy("{\"resourceType\":\"DocumentReference\",\"content\":[{\"attachment\":{\"contentType\":\"application/pdf\",\"data\":\"" + LARGE_DATA + "\"}}]}");
+
+		assertEquals(1, spooled.size());
+		assertEquals(2 * 1024 * 1024, Files.size(spooled.get(0)));
+		assertFalse(copied.contains(LARGE_DATA));
+		assertTrue(copied.contains(AttachmentSpool.SPOOLED_DATA_EXTENSION));
+	}
+
+	@Test
+	public void leavesBinaryDataInline() throws IOException {
+		String binary = "{\"resourceType\":\"Binary\",\"contentType\":\"application/pdf\",\"data\":\"" + LARGE_DATA + "\"}";
+		String dataFirst = "{\"data\":\"" + LARGE_DATA + "\",\"resourceType\":\"Binary\"}";
+		String bundle = "{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":["
+			+ "{\"resource\":{\"resourceType\":\"MessageHeader\"}},"
+			+ "{\"resource\":" + binary + "},"
+			+ "{\"resource\":{\"resourceType\":\"Bundle\",\"type\":\"document\",\"entry\":[{\"resource\":" + dataFirst + "}]}},"
+			+ "{\"resource\":{\"resourceType\":\"Task\",\"contained\":[" + binary + "]}}]}";
+
+		String copied = copy(bundle);
+
+		assertTrue(spooled.isEmpty());
+		assertEquals(3, copied.split(LARGE_DATA, -1).length - 1);
+		assertFalse(copied.contains(AttachmentSpool.SPOOLED_DATA_EXTENSION));
+	}
+
+	@Test
+	public void leavesSampledDataAndSignatureInline() throws IOException {
+		String copied = copy("{\"resourceType\":\"Observation\",\"valueSampledData\":{\"data\":\"1.50 2.25\"},"
+			+ "\"signature\":[{\"data\":\"" + LARGE_DATA + "\"}]}");
+
+		assertTrue(spooled.isEmpty());
+		assertTrue(copied.contains("\"1.50 2.25\""));
+		assertTrue(copied.contains(LARGE_DATA));
+	}
+}
@@ -0,0 +1,123 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.bserengine.resilience.CircuitBreaker.State;
+
+public class AdaptiveConcurrencyLimiterTest {
+	private static final String BASE_URL = "http://store.example.org/fhir";
+	// Long enough that no call in these tests is slow, and that the limit is not cut twice.
+	private static final long SLOW_TARGET_MILLIS = 10000L;
+
+	private static Destination destination(CircuitBreaker circuitBreaker) {
+		return new Destination(BASE_URL, new DestinationPolicy(1000, 1000, 2, 1L, 0L), circuitBreaker);
+	}
+
+	private static Destination destination() {
+		return destination(new CircuitBreaker(BASE_URL, 5, 60000));
+	}
+
+	@Test
+	public void growsWhileSaturatedAndFast() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 1, 1, 10, SLOW_TARGET_MILLIS, 0.5, 1000L);
+
+		destination().call(false, limiter, () -> "stored");
+
+		assertEquals(2, limiter.getLimit());
+		assertEquals(1, limiter.getCalls());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	public void cutsTheLimitWhenTheServerIsOverloaded() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 10, 1, 100, 20L, 0.5, 1000L);
+		// Cuts are at most one per target latency, counted from construction.
+		Thread.sleep(40);
+
+		assertThrows(InternalErrorException.class, () -> destination().call(false, limiter, () -> {
+			throw new InternalErrorException("store is down");
+		}));
+
+		assertEquals(5, limiter.getLimit());
+		assertEquals(1, limiter.getDropped());
+	}
+
+	@Test
+	public void requestErrorsAreNotOverload() throws InterruptedException {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 10, 1, 100, 100L, 0.5, 1000L);
+		// Past the first target latency, so an overloaded call would cut the limit.
+		Thread.sleep(150);
+
+		assertThrows(ResourceNotFoundException.class, () -> destination().call(true, limiter, () -> {
+			throw new ResourceNotFoundException("Task/1");
+		}));
+
+		assertEquals(10, limiter.getLimit());
+		assertEquals(0, limiter.getDropped());
+		assertEquals(1, limiter.getCalls());
+	}
+
+	@Test
+	public void slotIsGivenBackAfterEachAttempt() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 4, 1, 10, SLOW_TARGET_MILLIS, 0.5, 1000L);
+		AtomicInteger attempts = new AtomicInteger();
+
+		destination().call(true, limiter, () -> {
+			if (attempts.incrementAndGet() < 2) {
+				throw new InternalErrorException("store is down");
+			}
+			return "stored";
+		});
+
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(2, limiter.getCalls());
+	}
+
+	@Test
+	public void callTurnedAwayByTheCircuitIsNotCounted() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_URL, 1, 60000);
+		circuitBreaker.onFailure();
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 4, 1, 10, SLOW_TARGET_MILLIS, 0.5, 1000L);
+
+		assertThrows(CircuitOpenException.class, () -> destination(circuitBreaker).call(true, limiter, () -> "stored"));
+
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getCalls());
+		assertEquals(4, limiter.getLimit());
+	}
+
+	@Test
+	public void rejectsCallsOverTheLimitAfterTheWait() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_URL, 1, 60000);
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", true, 1, 1, 1, SLOW_TARGET_MILLIS, 0.5, 0L);
+		AtomicInteger attempts = new AtomicInteger();
+		limiter.acquire();
+		try {
+			assertThrows(TooManyRequestsException.class, () -> destination(circuitBreaker).call(true, limiter, () -> attempts.incrementAndGet()));
+			assertEquals(1, limiter.getRejected());
+		} finally {
+			limiter.cancel();
+		}
+
+		assertEquals(0, attempts.get());
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertEquals("stored", destination(circuitBreaker).call(true, limiter, () -> "stored"));
+	}
+
+	@Test
+	public void disabledLimiterOnlyRunsTheCall() {
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter("store writes", false, 1, 1, 1, SLOW_TARGET_MILLIS, 0.5, 0L);
+		limiter.acquire();
+
+		assertEquals("stored", destination().call(false, limiter, () -> "stored"));
+		assertEquals(0, limiter.getInFlight());
+		assertEquals(0, limiter.getCalls());
+	}
+}
@@ -0,0 +1,87 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import edu.gatech.chai.bserengine.resilience.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+	@Test
+	public void opensAfterFailureThresholdAndFailsFast() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 2, 60000);
+
+		circuitBreaker.beforeCall();
+		circuitBreaker.onFailure();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+
+		circuitBreaker.beforeCall();
+		circuitBreaker.onFailure();
+		assertEquals(State.OPEN, circuitBreaker.getState());
+		assertThrows(CircuitOpenException.class, circuitBreaker::beforeCall);
+	}
+
+	@Test
+	public void successResetsTheFailureCount() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 2, 60000);
+
+		circuitBreaker.onFailure();
+		circuitBreaker.onSuccess();
+		circuitBreaker.onFailure();
+
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void halfOpenLetsOneTrialThrough() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 1, 0);
+		circuitBreaker.onFailure();
+
+		circuitBreaker.beforeCall();
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+		assertThrows(CircuitOpenException.class, circuitBreaker::beforeCall);
+
+		circuitBreaker.onSuccess();
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertDoesNotThrow(circuitBreaker::beforeCall);
+	}
+
+	@Test
+	public void failedTrialOpensTheCircuitAgain() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 3, 0);
+		circuitBreaker.onFailure();
+		circuitBreaker.onFailure();
+		circuitBreaker.onFailure();
+
+		circuitBreaker.beforeCall();
+		circuitBreaker.onFailure();
+
+		assertEquals(State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void abandonedTrialFreesTheSlot() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 1, 0);
+		circuitBreaker.onFailure();
+
+		circuitBreaker.beforeCall();
+		circuitBreaker.onAbandoned();
+
+		assertEquals(State.HALF_OPEN, circuitBreaker.getState());
+		assertDoesNotThrow(circuitBreaker::beforeCall);
+	}
+
+	@Test
+	public void zeroThresholdNeverOpens() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker("store", 0, 60000);
+		for (int i = 0; i < 10; i++) {
+			circuitBreaker.onFailure();
+		}
+
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+		assertDoesNotThrow(circuitBreaker::beforeCall);
+	}
+}
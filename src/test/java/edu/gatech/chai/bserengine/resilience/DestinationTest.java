@@ -0,0 +1,91 @@
+package edu.gatech.chai.bserengine.resilience;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import edu.gatech.chai.bserengine.resilience.CircuitBreaker.State;
+
+public class DestinationTest {
+	private static final String BASE_URL = "http://store.example.org/fhir";
+
+	private static Destination destination(CircuitBreaker circuitBreaker) {
+		return new Destination(BASE_URL, new DestinationPolicy(1000, 1000, 2, 1L, 0L), circuitBreaker);
+	}
+
+	@Test
+	public void retriesIdempotentCallsOnTransientFailures() {
+		Destination destination = destination(new CircuitBreaker(BASE_URL, 5, 60000));
+		AtomicInteger attempts = new AtomicInteger();
+
+		String result = destination.call(true, () -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new InternalErrorException("store is down");
+			}
+			return "stored";
+		});
+
+		assertEquals("stored", result);
+		assertEquals(3, attempts.get());
+	}
+
+	@Test
+	public void makesOtherCallsOnce() {
+		Destination destination = destination(new CircuitBreaker(BASE_URL, 5, 60000));
+		AtomicInteger attempts = new AtomicInteger();
+
+		assertThrows(InternalErrorException.class, () -> destination.call(false, () -> {
+			attempts.incrementAndGet();
+			throw new InternalErrorException("store is down");
+		}));
+		assertEquals(1, attempts.get());
+	}
+
+	@Test
+	public void requestErrorsAreNotRetriedAndKeepTheCircuitClosed() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_URL, 1, 60000);
+		Destination destination = destination(circuitBreaker);
+		AtomicInteger attempts = new AtomicInteger();
+
+		assertThrows(ResourceNotFoundException.class, () -> destination.call(true, () -> {
+			attempts.incrementAndGet();
+			throw new ResourceNotFoundException("Task/1");
+		}));
+		assertEquals(1, attempts.get());
+		assertEquals(State.CLOSED, circuitBreaker.getState());
+	}
+
+	@Test
+	public void transientFailuresOpenTheCircuit() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_URL, 1, 60000);
+		Destination destination = destination(circuitBreaker);
+		AtomicInteger attempts = new AtomicInteger();
+
+		// The retry after the first failure is turned away by the circuit it opened.
+		assertThrows(CircuitOpenException.class, () -> destination.call(true, () -> {
+			attempts.incrementAndGet();
+			throw new InternalErrorException("store is down");
+		}));
+		assertEquals(1, attempts.get());
+		assertEquals(State.OPEN, circuitBreaker.getState());
+	}
+
+	@Test
+	public void errorInAHalfOpenTrialFreesTheTrial() {
+		CircuitBreaker circuitBreaker = new CircuitBreaker(BASE_URL, 1, 0);
+		circuitBreaker.onFailure();
+		Destination destination = destination(circuitBreaker);
+
+		assertThrows(Error.class, () -> destination.call(true, () -> {
+			throw new Error("stopped");
+		}));
+
+		assertDoesNotThrow(circuitBreaker::beforeCall);
+	}
+}
@@ -0,0 +1,195 @@
+package edu.gatech.chai.bserengine.servlet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.PayloadTooLargeException;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+
+public class MessagePreParseFilterTest {
+	private static final String ENGINE_URL = "http://engine.example.org/fhir";
+	private static final String REQUEST_URL = "http://10.0.0.5:8080/fhir/$process-message";
+	private static final String EVENT_CODING = "\"eventCoding\":{\"system\":\"http://terminology.hl7.org/CodeSystem/v2-0003\",\"code\":\"I12\"},";
+	private static final String DESTINATION = "\"destination\":[{\"endpoint\":\"" + ENGINE_URL + "/$process-message\"}],";
+	private static final String MESSAGE_HEADER = "{\"resourceType\":\"MessageHeader\",\"id\":\"1\"," + EVENT_CODING + DESTINATION
+		+ "\"focus\":[{\"reference\":\"Task/1\"}]}";
+
+	private final MessagePreParseFilter filter = new MessagePreParseFilter(ENGINE_URL, MessagePreParseFilter.DEFAULT_EVENTS, 1024L * 1024);
+
+	private String check(String body) throws IOException {
+		return filter.check(body.getBytes(StandardCharsets.UTF_8), REQUEST_URL);
+	}
+
+	private static String messageBundle(String messageHeader) {
+		return "{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":["
+			+ "{\"fullUrl\":\"MessageHeader/1\",\"resource\":" + messageHeader + "},"
+			+ "{\"fullUrl\":\"Task/1\",\"resource\":{\"resourceType\":\"Task\",\"id\":\"1\",\"status\":\"requested\"}}]}";
+	}
+
+	@Test
+	public void acceptsAMessageBundle() throws IOException {
+		assertNull(check(messageBundle(MESSAGE_HEADER)));
+	}
+
+	@Test
+	public void acceptsAMessageBundleInParameters() throws IOException {
+		assertNull(check("{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"content\",\"resource\":" + messageBundle(MESSAGE_HEADER) + "}]}"));
+	}
+
+	@Test
+	public void acceptsAResponseWithoutDestination() throws IOException {
+		String response = "{\"resourceType\":\"MessageHeader\",\"id\":\"2\"," + EVENT_CODING
+			+ "\"response\":{\"identifier\":\"1\",\"code\":\"ok\"}}";
+
+		assertNull(check(messageBundle(response)));
+	}
+
+	@Test
+	public void acceptsTheEngineUnderEitherOfItsUrls() throws IOException {
+		assertNull(check(messageBundle(MESSAGE_HEADER.replace(ENGINE_URL + "/$process-message", ENGINE_URL + "/"))));
+		assertNull(check(messageBundle(MESSAGE_HEADER.replace(ENGINE_URL + "/$process-message", REQUEST_URL))));
+	}
+
+	@Test
+	public void rejectsParametersWithoutABundle() throws IOException {
+		assertEquals("Parameters must carry the message Bundle.",
+			check("{\"resourceType\":\"Parameters\",\"parameter\":[{\"name\":\"content\",\"valueString\":\"x\"}]}"));
+	}
+
+	@Test
+	public void rejectsWhatIsNotAMessageBundle() throws IOException {
+		assertEquals("Message body must be a JSON object.", check("[]"));
+		assertEquals("Message must be a Bundle, not Patient.", check("{\"resourceType\":\"Patient\"}"));
+		assertEquals("Bundle.type must be message.", check(messageBundle(MESSAGE_HEADER).replace("\"type\":\"message\"", "\"type\":\"collection\"")));
+	}
+
+	@Test
+	public void rejectsAMessageWithoutMessageHeaderFirst() throws IOException {
+		String body = "{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":["
+			+ "{\"resource\":{\"resourceType\":\"Task\",\"id\":\"1\"}},"
+			+ "{\"resource\":" + MESSAGE_HEADER + "}]}";
+
+		assertEquals("The bundle must have MessageHeader first in the entry.", check(body));
+	}
+
+	@Test
+	public void rejectsAMessageHeaderWithoutEventOrDestination() throws IOException {
+		String withoutEvent = MESSAGE_HEADER.replace(EVENT_CODING, "");
+		String withoutDestination = MESSAGE_HEADER.replace(DESTINATION, "");
+		String emptyDestination = MESSAGE_HEADER.replace(DESTINATION, "\"destination\":[],");
+
+		assertEquals("MessageHeader.event[x] is empty or does not exist.", check(messageBundle(withoutEvent)));
+		assertEquals("MessageHeader.destination is empty or does not exist.", check(messageBundle(withoutDestination)));
+		assertEquals("MessageHeader.destination is empty or does not exist.", check(messageBundle(emptyDestination)));
+	}
+
+	@Test
+	public void rejectsAnEventThatIsNotAReferral() throws IOException {
+		String otherEvent = MESSAGE_HEADER.replace("\"code\":\"I12\"", "\"code\":\"A01\"");
+		String eventUri = MESSAGE_HEADER.replace(EVENT_CODING, "\"eventUri\":\"urn:example:event\",");
+
+		assertEquals("MessageHeader event http://terminology.hl7.org/CodeSystem/v2-0003|A01 is not a BSeR referral message event.", check(messageBundle(otherEvent)));
+		assertEquals("MessageHeader event urn:example:event is not a BSeR referral message event.", check(messageBundle(eventUri)));
+	}
+
+	@Test
+	public void rejectsAMessageForAnotherEndpoint() throws IOException {
+		String elsewhere = MESSAGE_HEADER.replace(ENGINE_URL, "http://recipient.example.org/fhir");
+
+		assertEquals("MessageHeader.destination does not name this engine's $process-message endpoint.", check(messageBundle(elsewhere)));
+	}
+
+	@Test
+	public void stopsReadingAtAWrongMessageHeader() throws IOException {
+		String body = "{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":["
+			+ "{\"resource\":" + MESSAGE_HEADER.replace(EVENT_CODING, "") + "},"
+			+ "{\"resource\":not json";
+
+		assertEquals("MessageHeader.event[x] is empty or does not exist.", check(body));
+	}
+
+	@Test
+	public void rejectsTooManyEntriesBeforeTheRestIsRead() throws IOException {
+		StringBuilder body = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"message\",\"entry\":[{\"resource\":" + MESSAGE_HEADER + "}");
+		for (int i = 0; i < 5000; i++) {
+			body.append(",{\"resource\":{\"resourceType\":\"Observation\",\"status\":\"final\"}}");
+		}
+		body.append(",not json");
+
+		assertEquals("Message Bundle has more than 5000 entries.", check(body.toString()));
+	}
+
+	@Test
+	public void failsOverTheByteLimit() {
+		MessagePreParseFilter small = new MessagePreParseFilter(ENGINE_URL, MessagePreParseFilter.DEFAULT_EVENTS, 100);
+
+		assertThrows(MessagePreParseFilter.LimitExceededException.class,
+			() -> small.check(messageBundle(MESSAGE_HEADER).getBytes(StandardCharsets.UTF_8), REQUEST_URL));
+	}
+
+	@Test
+	public void failsOnInvalidJson() {
+		assertThrows(IOException.class, () -> check("{\"resourceType\":\"Bundle\",\"type\":"));
+	}
+
+	@Test
+	public void capsBodiesThatAreNotJson() {
+		MessagePreParseFilter small = new MessagePreParseFilter(ENGINE_URL, MessagePreParseFilter.DEFAULT_EVENTS, 100);
+		byte[] xml = ("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"message\"/>" + "<entry/>".repeat(20) + "</Bundle>").getBytes(StandardCharsets.UTF_8);
+		FilterChain chain = (request, response) -> request.getInputStream().readAllBytes();
+
+		assertThrows(PayloadTooLargeException.class, () -> small.doFilter(xmlRequest(xml), null, chain));
+	}
+
+	private static HttpServletRequest xmlRequest(byte[] body) {
+		ByteArrayInputStream in = new ByteArrayInputStream(body);
+		ServletInputStream servletIn = new ServletInputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+
+			@Override
+			public boolean isFinished() {
+				return in.available() == 0;
+			}
+
+			@Override
+			public boolean isReady() {
+				return true;
+			}
+
+			@Override
+			public void setReadListener(ReadListener readListener) {
+			}
+		};
+
+		return (HttpServletRequest) Proxy.newProxyInstance(MessagePreParseFilterTest.class.getClassLoader(), new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getMethod":
+				return "POST";
+			case "getRequestURI":
+				return "/fhir/$process-message";
+			case "getContentType":
+				return "application/fhir+xml";
+			case "getContentLengthLong":
+				return -1L;
+			case "getInputStream":
+				return servletIn;
+			default:
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,85 @@
+package edu.gatech.chai.bserengine.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
+import edu.gatech.chai.bserengine.resilience.Deadline;
+import edu.gatech.chai.bserengine.resilience.DeadlineExceededException;
+
+public class FeedbackDocumentsTest {
+
+	@AfterEach
+	public void clearDeadline() {
+		Deadline.clear();
+	}
+
+	@Test
+	public void returnsResultsInTheOrderOfTheWork() {
+		List<Supplier<Integer>> work = new ArrayList<Supplier<Integer>>();
+		for (int i = 0; i < 10; i++) {
+			int item = i;
+			work.add(() -> {
+				sleep(10 - item);
+				return item;
+			});
+		}
+
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), FeedbackDocuments.runAll(work));
+	}
+
+	@Test
+	public void rethrowsTheFailure() {
+		List<Supplier<Integer>> work = new ArrayList<Supplier<Integer>>();
+		work.add(() -> 1);
+		work.add(() -> {
+			throw new UnprocessableEntityException("document 2 is not a Bundle");
+		});
+		work.add(() -> 3);
+
+		assertThrows(UnprocessableEntityException.class, () -> FeedbackDocuments.runAll(work));
+	}
+
+	@Test
+	public void waitForHelpersEndsWithTheDeadline() {
+		Thread caller = Thread.currentThread();
+		// Both items start before either finishes, so one of them is on a helper.
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		Supplier<Integer> item = () -> {
+			bothStarted.countDown();
+			try {
+				bothStarted.await(1, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (Thread.currentThread() != caller) {
+				sleep(5000);
+			}
+			return 1;
+		};
+		Deadline.start(300);
+
+		long start = System.nanoTime();
+		assertThrows(DeadlineExceededException.class, () -> FeedbackDocuments.runAll(Arrays.asList(item, item)));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}